@@ -0,0 +1,113 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the blocks of records of a {@link EsIndexRequestRingBuffer}
+ * using deflate. A preset dictionary containing the fields typically found in
+ * serialized log records is used, since the blocks are small and compressed
+ * independently.
+ *
+ * <p>
+ * Instances are not thread safe, decompression does not require an instance.
+ */
+class BufferBlockCompressor {
+
+    /**
+     * Preset dictionary. Deflate prefers the strings at the end of the
+     * dictionary, thus the most frequent strings are placed last.
+     */
+    static final byte[] DICTIONARY = ("java.lang.NullPointerException java.lang.IllegalStateException "
+            + "java.lang.IllegalArgumentException java.lang.RuntimeException org.springframework. "
+            + "\"exceptionClass\":\"\",\"exceptionMessage\":\"\",\"stackTrace\":\"\\n\\tat \\n\\tat java.\","
+            + "\"stackTraceHash\":\"\",\"count\":,\"firstTime\":,\"lastTime\":,\"timeAdjustment\":,"
+            + "\"tags\":[\"\"],\"labels\":{\"\":\"\"},\"ndc\":[\"\"],\"mdc\":{\"\":\"\"},"
+            + "\"level\":\"TRACE\"\"level\":\"DEBUG\"\"level\":\"ERROR\"\"level\":\"WARN\"\"level\":\"INFO\"},"
+            + "{\"time\":,\"thread\":\"main\",\"logger\":\"com.\",\"message\":\"")
+                    .getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+
+    /**
+     * Compress a range of a storage. The result is available from
+     * {@link #output()} until the next invocation.
+     *
+     * @return the length of the compressed data
+     */
+    int compress(BufferStorage storage, int pos, int length) {
+        if (input.length < length) {
+            input = new byte[length];
+            // deflate expands incompressible data by a few bytes per block
+            output = new byte[length + length / 1000 + 64];
+        }
+        storage.get(pos, input, 0, length);
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        int outputLength = 0;
+        while (!deflater.finished()) {
+            if (outputLength == output.length)
+                // not compressible, the caller will keep the data as it is
+                return outputLength + 1;
+            outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+        }
+        return outputLength;
+    }
+
+    /**
+     * The data compressed by the last invocation of
+     * {@link #compress(BufferStorage, int, int)}
+     */
+    byte[] output() {
+        return output;
+    }
+
+    /**
+     * Release the native resources of the compressor
+     */
+    void end() {
+        deflater.end();
+    }
+
+    /**
+     * Decompress a range of a storage written by
+     * {@link #compress(BufferStorage, int, int)}
+     *
+     * @param uncompressedLength
+     *            length of the data before compression
+     */
+    static byte[] decompress(BufferStorage storage, int pos, int length, int uncompressedLength) {
+        byte[] input = new byte[length];
+        storage.get(pos, input, 0, length);
+        byte[] result = new byte[uncompressedLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            int resultLength = 0;
+            while (!inflater.finished()) {
+                int n = inflater.inflate(result, resultLength, result.length - resultLength);
+                if (n == 0) {
+                    if (inflater.needsDictionary())
+                        inflater.setDictionary(DICTIONARY);
+                    else if (inflater.needsInput() || resultLength == result.length)
+                        throw new IllegalStateException("Compressed block is corrupted");
+                }
+                resultLength += n;
+            }
+            if (resultLength != uncompressedLength)
+                throw new IllegalStateException("Compressed block is corrupted");
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed block is corrupted", e);
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,271 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Fixed size memory backing a ring buffer. All positions have to be smaller
+ * than the capacity, ranges wrap around at the end of the storage.
+ *
+ * <p>
+ * Disjoint ranges may be accessed concurrently by different threads.
+ * Publishing the written data to other threads is left to the caller.
+ */
+public abstract class BufferStorage {
+
+    protected final int capacity;
+
+    protected BufferStorage(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Wrap a position which might be at most one capacity past the end of the
+     * storage
+     */
+    public int wrap(int pos) {
+        return pos >= capacity ? pos - capacity : pos;
+    }
+
+    public abstract byte get(int pos);
+
+    public abstract void put(int pos, byte value);
+
+    /**
+     * Copy a range to an array
+     */
+    public void get(int pos, byte[] dst, int dstOffset, int length) {
+        if (pos + length > capacity) {
+            int firstPart = capacity - pos;
+            getPart(pos, dst, dstOffset, firstPart);
+            getPart(0, dst, dstOffset + firstPart, length - firstPart);
+        } else {
+            getPart(pos, dst, dstOffset, length);
+        }
+    }
+
+    /**
+     * Copy an array to a range
+     *
+     * @return position following the written range
+     */
+    public int put(int pos, byte[] src, int srcOffset, int length) {
+        if (pos + length > capacity) {
+            int firstPart = capacity - pos;
+            putPart(pos, src, srcOffset, firstPart);
+            putPart(0, src, srcOffset + firstPart, length - firstPart);
+            return length - firstPart;
+        } else {
+            putPart(pos, src, srcOffset, length);
+            return wrap(pos + length);
+        }
+    }
+
+    public void writeTo(int pos, int length, OutputStream out) throws IOException {
+        if (pos + length > capacity) {
+            int firstPart = capacity - pos;
+            writePartTo(pos, firstPart, out);
+            writePartTo(0, length - firstPart, out);
+        } else {
+            writePartTo(pos, length, out);
+        }
+    }
+
+    /**
+     * Decode a range
+     */
+    public String toString(int pos, int length, Charset charset) {
+        byte[] tmp = new byte[length];
+        get(pos, tmp, 0, length);
+        return new String(tmp, charset);
+    }
+
+    /**
+     * Read a value written by {@link #putVarInt(int, int)}
+     */
+    public int getVarInt(int pos) {
+        // first byte
+        byte b = get(pos++);
+        if ((b & 0x80) == 0) {
+            return b;
+        }
+        int result = b & 0x7f;
+
+        // second byte
+        b = get(wrap(pos++));
+        result |= (b & 0x7f) << 7;
+        if ((b & 0x80) == 0) {
+            return result;
+        }
+
+        // remaining bytes
+        pos = wrap(pos);
+        result |= (get(pos++) << 14) & (0xff << 14);
+        result |= (get(wrap(pos)) << 22) & (0xff << 22);
+        return result;
+    }
+
+    /**
+     * Write a value using the encoding of
+     * {@link EsIndexRequestRingBuffer#intToBytes(int)}
+     *
+     * @return position following the value
+     */
+    public int putVarInt(int pos, int value) {
+        int length = EsIndexRequestRingBuffer.varIntLength(value);
+        if (length == 1) {
+            put(pos, (byte) value);
+            return wrap(pos + 1);
+        }
+        put(pos, (byte) (value & 0x7F | 0x80));
+        pos = wrap(pos + 1);
+        if (length == 2) {
+            put(pos, (byte) (value >>> 7));
+            return wrap(pos + 1);
+        }
+        put(pos, (byte) (value >>> 7 & 0x7F | 0x80));
+        pos = wrap(pos + 1);
+        put(pos, (byte) (value >>> 14));
+        pos = wrap(pos + 1);
+        put(pos, (byte) (value >>> 22));
+        return wrap(pos + 1);
+    }
+
+    /**
+     * Number of bytes of the UTF-8 encoding of a char sequence, as written by
+     * {@link #putUtf8(int, CharSequence, int)}
+     */
+    public static int utf8Length(CharSequence value) {
+        int count = value.length();
+        int result = count;
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80)
+                continue;
+            if (c < 0x800)
+                result += 1;
+            else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    // two chars, four bytes
+                    result += 2;
+                    i++;
+                }
+                // unpaired surrogates are replaced by '?'
+            } else
+                result += 2;
+        }
+        return result;
+    }
+
+    /**
+     * Encode a char sequence as UTF-8 into a range, wrapping around at the
+     * end. Unpaired surrogates are replaced by '?', as done by
+     * {@link String#getBytes(Charset)}.
+     *
+     * @param encodedLength
+     *            the length determined by {@link #utf8Length(CharSequence)}
+     * @return position following the written range
+     */
+    public int putUtf8(int pos, CharSequence value, int encodedLength) {
+        int count = value.length();
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                put(pos, (byte) c);
+                pos = wrap(pos + 1);
+            } else if (c < 0x800) {
+                pos = putByte(pos, 0xC0 | c >> 6);
+                pos = putByte(pos, 0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    pos = putByte(pos, 0xF0 | codePoint >> 18);
+                    pos = putByte(pos, 0x80 | codePoint >> 12 & 0x3F);
+                    pos = putByte(pos, 0x80 | codePoint >> 6 & 0x3F);
+                    pos = putByte(pos, 0x80 | codePoint & 0x3F);
+                } else
+                    pos = putByte(pos, '?');
+            } else {
+                pos = putByte(pos, 0xE0 | c >> 12);
+                pos = putByte(pos, 0x80 | c >> 6 & 0x3F);
+                pos = putByte(pos, 0x80 | c & 0x3F);
+            }
+        }
+        return pos;
+    }
+
+    private int putByte(int pos, int value) {
+        put(pos, (byte) value);
+        return wrap(pos + 1);
+    }
+
+    /**
+     * Copy bytes within the storage, wrapping around at the end. The target
+     * range may only overlap the source range if it starts before the source
+     * range.
+     */
+    public void copy(int srcPos, int dstPos, int length) {
+        byte[] tmp = new byte[Math.min(length, 4096)];
+        while (length > 0) {
+            int n = Math.min(length, tmp.length);
+            get(srcPos, tmp, 0, n);
+            dstPos = put(dstPos, tmp, 0, n);
+            srcPos = wrap(srcPos + n);
+            length -= n;
+        }
+    }
+
+    /**
+     * Cursors persisted by {@link #storeCursors(int, int)}
+     */
+    public static class Cursors {
+        public final int readPos;
+        public final int available;
+
+        public Cursors(int readPos, int available) {
+            this.readPos = readPos;
+            this.available = available;
+        }
+    }
+
+    /**
+     * Load the cursors stored by a previous instance using the same storage.
+     *
+     * @return the cursors, or null if the storage does not retain it's
+     *         contents or no valid cursors are present
+     */
+    public Cursors loadCursors() {
+        return null;
+    }
+
+    /**
+     * Store the cursors of the ring buffer using this storage. Must not
+     * allocate memory or block, since it is called for every element put.
+     */
+    public void storeCursors(int readPos, int available) {
+    }
+
+    /**
+     * Write the contents to durable storage
+     */
+    public void flush() {
+    }
+
+    /**
+     * Flush and release the resources of the storage. The storage must not be
+     * used afterwards.
+     */
+    public void close() {
+    }
+
+    protected abstract void getPart(int pos, byte[] dst, int dstOffset, int length);
+
+    protected abstract void putPart(int pos, byte[] src, int srcOffset, int length);
+
+    protected abstract void writePartTo(int pos, int length, OutputStream out) throws IOException;
+}
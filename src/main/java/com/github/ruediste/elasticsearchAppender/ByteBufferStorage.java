@@ -0,0 +1,83 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link BufferStorage} backed by a {@link ByteBuffer}, typically a direct
+ * buffer allocated outside of the java heap. The bulk request bodies are
+ * written to streams, thus the data is copied to the heap in chunks of
+ * {@value #COPY_CHUNK_SIZE} bytes while sending.
+ */
+public class ByteBufferStorage extends BufferStorage {
+
+    private static final int COPY_CHUNK_SIZE = 8 * 1024;
+
+    protected final ByteBuffer buffer;
+
+    /**
+     * The position and limit of a buffer are shared, thus each thread uses
+     * it's own view for bulk operations
+     */
+    private final ThreadLocal<ByteBuffer> views;
+
+    private static final ThreadLocal<byte[]> copyChunk = ThreadLocal.withInitial(() -> new byte[COPY_CHUNK_SIZE]);
+
+    /**
+     * Create a storage using a direct buffer
+     */
+    public ByteBufferStorage(int capacity) {
+        this(ByteBuffer.allocateDirect(capacity));
+    }
+
+    public ByteBufferStorage(ByteBuffer buffer) {
+        super(buffer.capacity());
+        this.buffer = buffer;
+        this.views = ThreadLocal.withInitial(buffer::duplicate);
+    }
+
+    @Override
+    public byte get(int pos) {
+        return buffer.get(pos);
+    }
+
+    @Override
+    public void put(int pos, byte value) {
+        buffer.put(pos, value);
+    }
+
+    /**
+     * Get a view of the given range, only valid for the current thread
+     */
+    private ByteBuffer view(int pos, int length) {
+        ByteBuffer view = views.get();
+        // cast to Buffer, the covariant overrides do not exist in Java 8
+        ((Buffer) view).limit(pos + length);
+        ((Buffer) view).position(pos);
+        return view;
+    }
+
+    @Override
+    protected void getPart(int pos, byte[] dst, int dstOffset, int length) {
+        view(pos, length).get(dst, dstOffset, length);
+    }
+
+    @Override
+    protected void putPart(int pos, byte[] src, int srcOffset, int length) {
+        view(pos, length).put(src, srcOffset, length);
+    }
+
+    @Override
+    protected void writePartTo(int pos, int length, OutputStream out) throws IOException {
+        byte[] chunk = copyChunk.get();
+        while (length > 0) {
+            int chunkLength = Math.min(length, chunk.length);
+            getPart(pos, chunk, 0, chunkLength);
+            out.write(chunk, 0, chunkLength);
+            pos += chunkLength;
+            length -= chunkLength;
+        }
+    }
+}
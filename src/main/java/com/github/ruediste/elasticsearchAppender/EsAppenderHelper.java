@@ -1,21 +1,93 @@
 package com.github.ruediste.elasticsearchAppender;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.Writer;
-import java.time.Instant;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.LongConsumer;
 
+import com.google.gson.Gson;
+
 public class EsAppenderHelper {
 	public String indexPattern = "'logstash-'yyyy.MM.dd";
-	private DateTimeFormatter indexFormatter;
+	private EsIndexNameCache indexNameCache;
 	public int maxStringLength = 10 * 1024;
 
+	/**
+	 * If true, the frames of causes and suppressed exceptions which are in
+	 * common with the enclosing trace are omitted from stack traces
+	 */
+	public boolean elideCommonFrames = true;
+
+	/**
+	 * Comma separated class name prefixes of framework frames. Of consecutive
+	 * framework frames, only the first is included in stack traces
+	 */
+	public String collapsedFramePackages;
+
+	private EsStackTraceRenderer stackTraceRenderer;
+
+	/**
+	 * If positive, the full stack trace of an exception is only sent once
+	 * within the window. Repeated events only carry the
+	 * {@link EsLogRecord#stackTraceHash}
+	 */
+	public Duration stackTraceDedupWindow = Duration.ZERO;
+
+	/**
+	 * Maximum number of stack trace fingerprints remembered for the
+	 * {@link #stackTraceDedupWindow}
+	 */
+	public int stackTraceDedupCacheSize = 1024;
+
+	/**
+	 * Null if stack traces are not deduplicated
+	 */
+	private EsStackTraceFingerprints stackTraceFingerprints;
+
+	/**
+	 * If true, each thread reuses a single {@link EsLogRecord}, see
+	 * {@link #acquireRecord()}
+	 */
+	public boolean garbageFree;
+
+	private static final ThreadLocal<EsLogRecord> records = ThreadLocal.withInitial(EsLogRecord::new);
+
+	/**
+	 * Rate limits per logger name prefix, see {@link EsRateLimiter}
+	 */
+	public String rateLimits;
+
+	/**
+	 * Fraction of the events to keep per level, see {@link EsRateLimiter}
+	 */
+	public String sampleRates;
+
+	/**
+	 * Null if neither rate limits nor sample rates are configured
+	 */
+	private EsRateLimiter rateLimiter;
+
+	/**
+	 * If positive, events repeated within the window are aggregated, see
+	 * {@link EsEventAggregator}
+	 */
+	public Duration aggregationWindow = Duration.ZERO;
+
+	/**
+	 * Maximum number of distinct events aggregated within the
+	 * {@link #aggregationWindow}
+	 */
+	public int aggregationMaxSize = 1024;
+
+	/**
+	 * Null if events are not aggregated
+	 */
+	private EsEventAggregator aggregator;
+
 	/**
 	 * Comma separated tags of all log records
 	 */
@@ -30,33 +102,201 @@ public class EsAppenderHelper {
 	 */
 	public String labels;
 
-	public void start() {
-		indexFormatter = DateTimeFormatter.ofPattern(indexPattern);
-	}
+	/**
+	 * Parsed {@link #tags}, null if there are none
+	 */
+	private Set<String> tagSet;
 
-	public void stop() {
-	}
+	/**
+	 * Parsed {@link #labels}, null if there are none
+	 */
+	private Map<String, String> labelMap;
 
-	public void prepareLogRecord(EsLogRecord record, long timeStamp) {
-		calcNextTimestamp(timeStamp, x -> record.time = x, x -> record.timeAdjustment = x);
+	/**
+	 * Fields which are the same for all records, serialized once. See
+	 * {@link EsLogRecord#staticFields}
+	 */
+	private byte[] staticFields;
+
+	public void start() {
+		indexNameCache = new EsIndexNameCache(indexPattern);
+		stackTraceRenderer = new EsStackTraceRenderer(maxStringLength, elideCommonFrames,
+				collapsedFramePackages == null || collapsedFramePackages.isEmpty() ? new String[] {}
+						: collapsedFramePackages.split(","));
+		rateLimiter = null;
+		if (rateLimits != null && !rateLimits.isEmpty() || sampleRates != null && !sampleRates.isEmpty())
+			rateLimiter = new EsRateLimiter(rateLimits, sampleRates);
+		stackTraceFingerprints = null;
+		if (!stackTraceDedupWindow.isZero() && !stackTraceDedupWindow.isNegative())
+			stackTraceFingerprints = new EsStackTraceFingerprints(stackTraceDedupWindow.toMillis(),
+					stackTraceDedupCacheSize);
+		tagSet = null;
 		if (tags != null && tags.length() > 0) {
-			record.tags = new LinkedHashSet<>();
+			tagSet = new LinkedHashSet<>();
 			for (String tag : tags.split(",")) {
-				record.tags.add(tag);
+				tagSet.add(tag);
 			}
+			tagSet = Collections.unmodifiableSet(tagSet);
 		}
+		labelMap = null;
 		if (labels != null && labels.length() > 0) {
-			record.labels = new LinkedHashMap<>();
+			labelMap = new LinkedHashMap<>();
 			for (String label : labels.split(",")) {
 				int idx = label.indexOf('=');
-				record.labels.put(label.substring(0, idx), label.substring(idx + 1));
+				labelMap.put(label.substring(0, idx), label.substring(idx + 1));
 			}
+			labelMap = Collections.unmodifiableMap(labelMap);
 		}
+
+		EsLogRecordWriter writer = new EsLogRecordWriter(new Gson());
+		writer.reset();
+		writeStaticFields(writer);
+		staticFields = writer.length() == 0 ? null : writer.toByteArray();
+	}
+
+	/**
+	 * Write the fields which are the same for all records using
+	 * {@link EsLogRecordWriter#writeField(String, Object)}. They are
+	 * serialized once during {@link #start()} and copied into every document.
+	 */
+	protected void writeStaticFields(EsLogRecordWriter writer) {
+		writer.writeField("tags", tagSet);
+		writer.writeField("labels", labelMap);
+	}
+
+	public void stop() {
 	}
 
+	/**
+	 * Determine if an event is suppressed by the {@link #rateLimits} or the
+	 * {@link #sampleRates}. Suppressed events should be counted using
+	 * {@link EsIndexer#countSuppressed()}.
+	 * 
+	 * @param level
+	 *            see {@link #level(String)}
+	 */
+	public boolean isSuppressed(String logger, int level) {
+		EsRateLimiter rateLimiter = this.rateLimiter;
+		return rateLimiter != null && !rateLimiter.tryAcquire(logger, level);
+	}
+
+	/**
+	 * Start aggregating repeated events if the {@link #aggregationWindow} is
+	 * set. Has to be called after {@link #start()}.
+	 * 
+	 * @param sink
+	 *            queues the records representing repeated events
+	 */
+	public void startAggregation(Consumer<EsLogRecord> sink) {
+		if (aggregationWindow.isZero() || aggregationWindow.isNegative())
+			return;
+		aggregator = new EsEventAggregator(aggregationWindow.toMillis(), aggregationMaxSize, sink);
+		aggregator.start();
+	}
+
+	/**
+	 * Stop aggregating and pass the pending aggregated records to the sink
+	 */
+	public void stopAggregation() {
+		if (aggregator != null) {
+			aggregator.stop();
+			aggregator = null;
+		}
+	}
+
+	/**
+	 * Pass a record to the aggregation. The record has to be prepared
+	 * completely.
+	 * 
+	 * @param template
+	 *            message before substituting parameters. The formatted
+	 *            message is used if null
+	 * @param exceptionFingerprint
+	 *            fingerprint returned by
+	 *            {@link #setStackTrace(EsLogRecord, Throwable)}, 0 if the
+	 *            event has no throwable
+	 * @return true if the record has to be queued, false if it has been
+	 *         aggregated
+	 */
+	public boolean aggregate(EsLogRecord record, String template, long exceptionFingerprint) {
+		EsEventAggregator aggregator = this.aggregator;
+		if (aggregator == null)
+			return true;
+		if (template == null)
+			template = record.messageChars != null ? record.messageChars.toString() : record.message;
+		return aggregator.add(record, template, exceptionFingerprint);
+	}
+
+	/**
+	 * Get a record to fill for an event. If {@link #garbageFree} is set, the
+	 * record of the current thread is cleared and returned. Has to be passed
+	 * to {@link #releaseRecord(EsLogRecord)} once it has been queued.
+	 */
+	public EsLogRecord acquireRecord() {
+		if (!garbageFree)
+			return new EsLogRecord();
+		EsLogRecord record = records.get();
+		if (record.inUse) {
+			// filling the record caused another event to be logged
+			return new EsLogRecord();
+		}
+		record.clear();
+		record.inUse = true;
+		return record;
+	}
+
+	public void releaseRecord(EsLogRecord record) {
+		record.inUse = false;
+	}
+
+	public void prepareLogRecord(EsLogRecord record, long timeStamp) {
+		long time = nextTimestamp(timeStamp);
+		record.time = time;
+		if (time != timeStamp)
+			record.timeAdjustment = time - timeStamp;
+		// shared by all records
+		record.tags = tagSet;
+		record.labels = labelMap;
+		record.staticFields = staticFields;
+	}
+
+	/**
+	 * Map the name of a log level to the level stored in the
+	 * {@link EsIndexRequestBuffer}. Unknown levels are mapped to
+	 * {@link EsIndexRequestBuffer#DEFAULT_LEVEL}
+	 */
+	public static int level(String level) {
+		if (level == null)
+			return EsIndexRequestBuffer.DEFAULT_LEVEL;
+		switch (level) {
+		case "ALL":
+			return 0;
+		case "TRACE":
+			return 1;
+		case "DEBUG":
+			return 2;
+		case "INFO":
+			return 3;
+		case "WARN":
+			return 4;
+		case "ERROR":
+			return 5;
+		case "FATAL":
+			return 6;
+		case "OFF":
+			return 7;
+		default:
+			return EsIndexRequestBuffer.DEFAULT_LEVEL;
+		}
+	}
+
+	/**
+	 * Get the index of a time stamp. The name is only formatted again once the
+	 * time stamp leaves the interval of the last name, see
+	 * {@link EsIndexNameCache}
+	 */
 	public String getIndex(long timeStamp) {
-		ZonedDateTime timeStampUtc = ZonedDateTime.ofInstant(Instant.ofEpochMilli(timeStamp), ZoneOffset.UTC);
-		return indexFormatter.format(timeStampUtc);
+		return indexNameCache.get(timeStamp);
 	}
 
 	/**
@@ -72,31 +312,78 @@ public class EsAppenderHelper {
 		return s;
 	}
 
+	/**
+	 * Truncate the content of a builder to {@link #maxStringLength}, without
+	 * creating a string
+	 */
+	public StringBuilder truncate(StringBuilder sb) {
+		if (sb.length() > maxStringLength) {
+			sb.setLength(maxStringLength);
+			sb.append("...");
+		}
+		return sb;
+	}
+
+	/**
+	 * Render the stack trace of a throwable, truncated to
+	 * {@link #maxStringLength}. Rendering stops once the length is reached,
+	 * see {@link EsStackTraceRenderer}
+	 */
 	public String getStackTrace(Throwable aThrowable) {
-		final Writer result = new StringWriter();
-		final PrintWriter printWriter = new PrintWriter(result);
-		aThrowable.printStackTrace(printWriter);
-		return truncate(result.toString());
+		return stackTraceRenderer.render(aThrowable);
 	}
 
-	private static ThreadLocal<Long> lastLogTimeStamp = new ThreadLocal<>();
+	/**
+	 * Set the {@link EsLogRecord#stackTrace} of a record. If stack traces are
+	 * deduplicated, the {@link EsLogRecord#stackTraceHash} is set as well and
+	 * the stack trace is only set if it has not been sent within the
+	 * {@link #stackTraceDedupWindow}. The time of the record has to be set.
+	 * 
+	 * @return the fingerprint of the throwable, see
+	 *         {@link EsStackTraceFingerprints#fingerprint(Throwable)}, to be
+	 *         passed to {@link #aggregate(EsLogRecord, String, long)}. 0 if
+	 *         neither deduplication nor aggregation are enabled
+	 */
+	public long setStackTrace(EsLogRecord record, Throwable aThrowable) {
+		if (stackTraceFingerprints == null) {
+			record.stackTrace = getStackTrace(aThrowable);
+			return aggregator == null ? 0 : EsStackTraceFingerprints.fingerprint(aThrowable);
+		}
+		long fingerprint = EsStackTraceFingerprints.fingerprint(aThrowable);
+		record.stackTraceHash = Long.toHexString(fingerprint);
+		if (stackTraceFingerprints.sendFullTrace(fingerprint, record.time))
+			record.stackTrace = getStackTrace(aThrowable);
+		return fingerprint;
+	}
+
+	/**
+	 * Last time stamp of the thread, held in a single element array to avoid
+	 * boxing
+	 */
+	private static ThreadLocal<long[]> lastLogTimeStamp = ThreadLocal.withInitial(() -> new long[] { Long.MIN_VALUE });
 
 	/**
 	 * adjust time stamp such that only one event is logged for the same milli
 	 * second
 	 */
 	public void calcNextTimestamp(long origTimeStamp, LongConsumer timestampConsumer, LongConsumer adjustmentConsumer) {
-		long timeStamp = origTimeStamp;
-		{
-			Long lastStamp = lastLogTimeStamp.get();
-			if (lastStamp != null && lastStamp >= timeStamp) {
-				timeStamp = lastStamp + 1;
-				adjustmentConsumer.accept(timeStamp - origTimeStamp);
-			}
-			lastLogTimeStamp.set(timeStamp);
+		long timeStamp = nextTimestamp(origTimeStamp);
+		if (timeStamp != origTimeStamp)
+			adjustmentConsumer.accept(timeStamp - origTimeStamp);
+		timestampConsumer.accept(timeStamp);
+	}
 
-			timestampConsumer.accept(timeStamp);
-		}
+	/**
+	 * Get the time stamp to use for an event of the current thread, such
+	 * that only one event is logged for the same milli second
+	 */
+	public long nextTimestamp(long origTimeStamp) {
+		long[] lastStamp = lastLogTimeStamp.get();
+		long timeStamp = origTimeStamp;
+		if (lastStamp[0] >= timeStamp)
+			timeStamp = lastStamp[0] + 1;
+		lastStamp[0] = timeStamp;
+		return timeStamp;
 	}
 
 }
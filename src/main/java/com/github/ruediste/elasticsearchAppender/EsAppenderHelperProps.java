@@ -1,5 +1,7 @@
 package com.github.ruediste.elasticsearchAppender;
 
+import java.time.Duration;
+
 public interface EsAppenderHelperProps {
 
     EsAppenderHelper getHelper();
@@ -8,6 +10,42 @@ public interface EsAppenderHelperProps {
         getHelper().maxStringLength = Integer.valueOf(maxStringLength);
     }
 
+    default void setElideCommonFrames(String elideCommonFrames) {
+        getHelper().elideCommonFrames = Boolean.valueOf(elideCommonFrames);
+    }
+
+    default void setCollapsedFramePackages(String collapsedFramePackages) {
+        getHelper().collapsedFramePackages = collapsedFramePackages;
+    }
+
+    default void setStackTraceDedupWindow(String stackTraceDedupWindow) {
+        getHelper().stackTraceDedupWindow = Duration.parse(stackTraceDedupWindow);
+    }
+
+    default void setStackTraceDedupCacheSize(String stackTraceDedupCacheSize) {
+        getHelper().stackTraceDedupCacheSize = Integer.valueOf(stackTraceDedupCacheSize);
+    }
+
+    default void setAggregationWindow(String aggregationWindow) {
+        getHelper().aggregationWindow = Duration.parse(aggregationWindow);
+    }
+
+    default void setAggregationMaxSize(String aggregationMaxSize) {
+        getHelper().aggregationMaxSize = Integer.valueOf(aggregationMaxSize);
+    }
+
+    default void setRateLimits(String rateLimits) {
+        getHelper().rateLimits = rateLimits;
+    }
+
+    default void setSampleRates(String sampleRates) {
+        getHelper().sampleRates = sampleRates;
+    }
+
+    default void setGarbageFree(String garbageFree) {
+        getHelper().garbageFree = Boolean.valueOf(garbageFree);
+    }
+
     default void setIndexPattern(String indexPattern) {
         getHelper().indexPattern = indexPattern;
     }
@@ -0,0 +1,187 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * HTTP entity containing the newline delimited body of a bulk index request
+ * for the elements of a {@link EsIndexRequestBatch}. The body is written
+ * directly from the bytes of the elements while the request is sent. The
+ * payloads are already UTF-8 encoded and are never decoded. Binary records
+ * are rendered to JSON while writing, see
+ * {@link EsLogRecordWriter#writeBinaryRecord(EsLogRecord, EsStringDictionary)}.
+ * If the batch has been rendered ahead by a {@link EsBulkRenderer}, the
+ * rendered segments are written instead.
+ *
+ * <p>
+ * The entity is repeatable as long as the batch has not been released.
+ */
+public class EsBulkEntity extends AbstractHttpEntity {
+
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    private static final byte[] ACTION_START = "{\"index\":{\"_index\":\"".getBytes(utf8);
+    private static final byte[] TYPE_START = "\",\"_type\":\"".getBytes(utf8);
+    private static final byte[] ACTION_END = "\"}}\n".getBytes(utf8);
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(utf8);
+
+    private final EsIndexRequestBatch batch;
+    private final EsIndexTypeDictionary dictionary;
+    private final EsStringDictionary strings;
+
+    /**
+     * Renders the binary records, created on demand
+     */
+    private EsLogRecordWriter renderWriter;
+
+    /**
+     * @param dictionary
+     *            used to resolve the index and type ids of the elements
+     */
+    public EsBulkEntity(EsIndexRequestBatch batch, EsIndexTypeDictionary dictionary) {
+        this(batch, dictionary, null);
+    }
+
+    /**
+     * @param strings
+     *            used to resolve the string ids of binary records
+     */
+    public EsBulkEntity(EsIndexRequestBatch batch, EsIndexTypeDictionary dictionary, EsStringDictionary strings) {
+        this.batch = batch;
+        this.dictionary = dictionary;
+        this.strings = strings;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * The length is not known in advance, the body is sent chunked
+     */
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        CompletableFuture<List<byte[]>> rendered = batch.rendered;
+        if (rendered != null) {
+            for (byte[] segment : awaitRendered(rendered))
+                out.write(segment);
+            return;
+        }
+        try {
+            batch.forEach(element -> {
+                try {
+                    write(element, out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static List<byte[]> awaitRendered(CompletableFuture<List<byte[]>> rendered) throws IOException {
+        try {
+            return rendered.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rendering of the bulk");
+        } catch (ExecutionException e) {
+            // not an I/O problem, retrying would not help
+            throw new RuntimeException("Error while rendering bulk", e.getCause());
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Write the action line and the source line of an element
+     */
+    private void write(EsIndexRequestElement element, OutputStream out) throws IOException {
+        int id = element.getVarInt(0);
+        int pos = EsIndexRequestRingBuffer.varIntLength(id);
+        if (id == EsIndexTypeDictionary.INLINE_ID) {
+            out.write(ACTION_START);
+            int length = EsIndexer.readUnsignedShort(element, pos);
+            pos += 2;
+            writeJsonStringContent(element, pos, length, out);
+            pos += length;
+            out.write(TYPE_START);
+            length = EsIndexer.readUnsignedShort(element, pos);
+            pos += 2;
+            writeJsonStringContent(element, pos, length, out);
+            pos += length;
+            out.write(ACTION_END);
+        } else {
+            // pre-encoded once per dictionary entry
+            out.write(dictionary.get(id).actionLine);
+        }
+        if (EsLogRecordWriter.isBinaryRecord(element, pos)) {
+            if (renderWriter == null)
+                renderWriter = new EsLogRecordWriter(null);
+            renderWriter.reset();
+            renderWriter.renderBinaryRecord(element, pos, strings);
+            out.write(renderWriter.array(), 0, renderWriter.length());
+        } else
+            element.writeTo(pos, element.length() - pos, out);
+        out.write('\n');
+    }
+
+    /**
+     * Write a part of an element as content of a JSON string, escaping quotes,
+     * backslashes and control characters. Since all bytes of multi byte UTF-8
+     * sequences are larger than 0x7F, the escaping can be done byte by byte.
+     */
+    private static void writeJsonStringContent(EsIndexRequestElement element, int index, int length,
+            OutputStream out) throws IOException {
+        int end = index + length;
+        int start = index;
+        for (int i = index; i < end; i++) {
+            int b = element.get(i) & 0xFF;
+            if (b >= 0x20 && b != '"' && b != '\\')
+                continue;
+            element.writeTo(start, i - start, out);
+            out.write('\\');
+            if (b == '"' || b == '\\')
+                out.write(b);
+            else {
+                out.write('u');
+                out.write('0');
+                out.write('0');
+                out.write(HEX_DIGITS[b >> 4]);
+                out.write(HEX_DIGITS[b & 0xF]);
+            }
+            start = i + 1;
+        }
+        element.writeTo(start, end - start, out);
+    }
+}
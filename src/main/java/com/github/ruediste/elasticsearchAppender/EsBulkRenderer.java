@@ -0,0 +1,123 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Renders the bodies of bulk requests before they are sent, using a pool of
+ * worker threads. The elements of a batch are split into chunks which are
+ * rendered in parallel. The resulting segments are concatenated in order by
+ * the {@link EsBulkEntity}. This pays off if the buffer contains binary
+ * records, see {@link EsIndexer#deferredRendering}.
+ *
+ * <p>
+ * The batch must not be released before the rendering has completed.
+ */
+class EsBulkRenderer {
+
+    /**
+     * Minimum number of elements of a chunk, to keep the overhead of small
+     * tasks low
+     */
+    private static final int MIN_CHUNK_SIZE = 16;
+
+    private final int parallelism;
+    private final EsIndexTypeDictionary dictionary;
+    private final EsStringDictionary strings;
+    private final ForkJoinPool pool;
+
+    EsBulkRenderer(int parallelism, String threadNamePrefix, EsIndexTypeDictionary dictionary,
+            EsStringDictionary strings) {
+        this.parallelism = parallelism;
+        this.dictionary = dictionary;
+        this.strings = strings;
+        pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName(threadNamePrefix + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Start rendering the body of a bulk request containing the elements of a
+     * batch
+     *
+     * @return the segments of the body, in order
+     */
+    CompletableFuture<List<byte[]>> render(EsIndexRequestBatch batch) {
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, (batch.size() + parallelism - 1) / parallelism);
+        List<List<EsIndexRequestElement>> chunks = new ArrayList<>();
+        batch.forEach(element -> {
+            List<EsIndexRequestElement> chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || chunk.size() >= chunkSize) {
+                chunk = new ArrayList<>(chunkSize);
+                chunks.add(chunk);
+            }
+            chunk.add(element.copy());
+        });
+
+        List<CompletableFuture<byte[]>> segments = new ArrayList<>(chunks.size());
+        for (List<EsIndexRequestElement> elements : chunks) {
+            Chunk chunk = new Chunk(elements);
+            segments.add(CompletableFuture.supplyAsync(() -> render(chunk), pool));
+        }
+        return CompletableFuture.allOf(segments.toArray(new CompletableFuture<?>[segments.size()]))
+                .thenApply(x -> {
+                    List<byte[]> result = new ArrayList<>(segments.size());
+                    for (CompletableFuture<byte[]> segment : segments)
+                        result.add(segment.join());
+                    return result;
+                });
+    }
+
+    private byte[] render(Chunk chunk) {
+        // rendered JSON is typically larger than the binary records
+        ByteArrayOutputStream out = new ByteArrayOutputStream(chunk.elementBytes() * 2);
+        try {
+            new EsBulkEntity(chunk, dictionary, strings).writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Stop the worker threads and wait for the rendering in progress to
+     * complete, since it reads from the buffer
+     */
+    void shutdown() {
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Part of a batch. The elements are views of the buffer, they stay valid
+     * until the batch is released.
+     */
+    private static class Chunk extends EsIndexRequestBatch {
+        final List<EsIndexRequestElement> elements;
+
+        Chunk(List<EsIndexRequestElement> elements) {
+            super(elements.size(), elements.stream().mapToInt(EsIndexRequestElement::length).sum());
+            this.elements = elements;
+        }
+
+        @Override
+        public void forEach(Consumer<EsIndexRequestElement> consumer) {
+            elements.forEach(consumer);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a bulk index request, as returned by a {@link EsBulkTransport}
+ */
+public class EsBulkResponse {
+
+    static final EsBulkResponse SUCCEEDED = new EsBulkResponse(true, null, Collections.emptyList());
+
+    /**
+     * True if the request has been processed and all items have been indexed
+     */
+    public final boolean succeeded;
+
+    /**
+     * Description of the failure, null if succeeded
+     */
+    public final String errorMessage;
+
+    /**
+     * Errors of the items which failed to be indexed, as JSON. Empty if the
+     * whole request failed.
+     */
+    public final List<String> failedItemErrors;
+
+    public EsBulkResponse(boolean succeeded, String errorMessage, List<String> failedItemErrors) {
+        this.succeeded = succeeded;
+        this.errorMessage = errorMessage;
+        this.failedItemErrors = failedItemErrors;
+    }
+}
@@ -0,0 +1,241 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the body of a successful bulk response without building a tree of the
+ * whole response. Elasticsearch writes the {@code errors} flag before the
+ * items, thus the items are only read if some of them failed. Only the status
+ * and the error of each item are read, the error is kept as JSON.
+ */
+class EsBulkResponseParser {
+
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    private final InputStream in;
+
+    /**
+     * Byte read ahead, -1 if none
+     */
+    private int peeked = -1;
+
+    /**
+     * If not null, the consumed bytes are appended
+     */
+    private ByteArrayOutputStream capture;
+
+    private EsBulkResponseParser(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Parse a bulk response. The stream is only read up to the point where the
+     * outcome is known.
+     */
+    static EsBulkResponse parse(InputStream in) throws IOException {
+        return new EsBulkResponseParser(in).parseResponse();
+    }
+
+    private EsBulkResponse parseResponse() throws IOException {
+        expect('{');
+        List<String> failedItemErrors = new ArrayList<>();
+        boolean errors = false;
+        if (!consumeIf('}')) {
+            do {
+                String name = readString();
+                expect(':');
+                switch (name) {
+                case "errors":
+                    errors = readLiteral().equals("true");
+                    if (!errors)
+                        return EsBulkResponse.SUCCEEDED;
+                    break;
+                case "items":
+                    readItems(failedItemErrors);
+                    break;
+                default:
+                    skipValue();
+                }
+            } while (consumeIf(','));
+            expect('}');
+        }
+        if (!errors && failedItemErrors.isEmpty())
+            return EsBulkResponse.SUCCEEDED;
+        return new EsBulkResponse(false, "One or more of the items in the bulk request failed", failedItemErrors);
+    }
+
+    /**
+     * Read the items array. Each item is an object with the operation as only
+     * key.
+     */
+    private void readItems(List<String> failedItemErrors) throws IOException {
+        expect('[');
+        if (consumeIf(']'))
+            return;
+        do {
+            expect('{');
+            if (!consumeIf('}')) {
+                do {
+                    readString();
+                    expect(':');
+                    readItem(failedItemErrors);
+                } while (consumeIf(','));
+                expect('}');
+            }
+        } while (consumeIf(','));
+        expect(']');
+    }
+
+    private void readItem(List<String> failedItemErrors) throws IOException {
+        expect('{');
+        int status = 0;
+        String error = null;
+        if (!consumeIf('}')) {
+            do {
+                String name = readString();
+                expect(':');
+                switch (name) {
+                case "status":
+                    status = Integer.parseInt(readLiteral());
+                    break;
+                case "error":
+                    error = captureValue();
+                    break;
+                default:
+                    skipValue();
+                }
+            } while (consumeIf(','));
+            expect('}');
+        }
+        if (error != null || status > 299)
+            failedItemErrors.add(error != null ? error : "Status " + status);
+    }
+
+    /**
+     * Skip a value, returning it as JSON
+     */
+    private String captureValue() throws IOException {
+        skipWhitespace();
+        capture = new ByteArrayOutputStream();
+        try {
+            skipValue();
+            return new String(capture.toByteArray(), utf8);
+        } finally {
+            capture = null;
+        }
+    }
+
+    private void skipValue() throws IOException {
+        skipWhitespace();
+        int c = peek();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int close = c == '{' ? '}' : ']';
+            read();
+            if (consumeIf(close))
+                return;
+            do {
+                if (c == '{') {
+                    skipString();
+                    expect(':');
+                }
+                skipValue();
+            } while (consumeIf(','));
+            expect(close);
+        } else {
+            readLiteral();
+        }
+    }
+
+    private void skipString() throws IOException {
+        expect('"');
+        while (true) {
+            int c = read();
+            if (c == '"')
+                return;
+            if (c == '\\')
+                read();
+        }
+    }
+
+    /**
+     * Read a string. Only the escapes found in field names are decoded.
+     */
+    private String readString() throws IOException {
+        expect('"');
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        while (true) {
+            int c = read();
+            if (c == '"')
+                return new String(result.toByteArray(), utf8);
+            if (c == '\\')
+                c = read();
+            result.write(c);
+        }
+    }
+
+    /**
+     * Read a number, true, false or null
+     */
+    private String readLiteral() throws IOException {
+        skipWhitespace();
+        StringBuilder result = new StringBuilder();
+        while (true) {
+            int c = peek();
+            if (c == ',' || c == '}' || c == ']' || isWhitespace(c))
+                break;
+            result.append((char) read());
+        }
+        if (result.length() == 0)
+            throw new IOException("Unexpected character '" + (char) peek() + "' in bulk response");
+        return result.toString();
+    }
+
+    private void expect(int expected) throws IOException {
+        skipWhitespace();
+        int c = read();
+        if (c != expected)
+            throw new IOException("Expected '" + (char) expected + "' but got '" + (char) c + "' in bulk response");
+    }
+
+    private boolean consumeIf(int expected) throws IOException {
+        skipWhitespace();
+        if (peek() != expected)
+            return false;
+        read();
+        return true;
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (isWhitespace(peek()))
+            read();
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private int peek() throws IOException {
+        if (peeked < 0) {
+            peeked = in.read();
+            if (peeked < 0)
+                throw new EOFException("Unexpected end of bulk response");
+        }
+        return peeked;
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        peeked = -1;
+        if (capture != null)
+            capture.write(c);
+        return c;
+    }
+}
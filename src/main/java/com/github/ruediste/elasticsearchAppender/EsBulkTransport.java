@@ -0,0 +1,30 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * Sends bulk index requests to Elasticsearch, see
+ * {@link EsIndexer#bulkTransport}. Implementations have to support concurrent
+ * requests if the {@link EsIndexer#indexingConcurrency} is larger than one.
+ *
+ * @see EsHttpBulkTransport
+ * @see EsJestBulkTransport
+ */
+public interface EsBulkTransport extends Closeable {
+
+    /**
+     * Send a bulk request and wait for the response. The body might be written
+     * more than once, if the request is retried.
+     *
+     * @param body
+     *            newline delimited body of the request, typically an
+     *            {@link EsBulkEntity}. The content type and encoding of the
+     *            entity are sent as headers.
+     * @throws IOException
+     *             if no response was received
+     */
+    EsBulkResponse execute(HttpEntity body) throws IOException;
+}
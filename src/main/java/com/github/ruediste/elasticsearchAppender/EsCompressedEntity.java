@@ -0,0 +1,233 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Compresses the body of another entity while it is written, without
+ * buffering the body. The {@link Compressor} is passed in, so the deflater and
+ * the buffers can be reused across requests. It is reset for each write, thus
+ * the entity is repeatable if the wrapped entity is.
+ *
+ * <p>
+ * The number of bytes before and after compression are accumulated across
+ * all writes.
+ */
+public class EsCompressedEntity extends HttpEntityWrapper {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Gzip member header: magic, deflate, no flags, no time, no extra flags,
+     * unknown OS
+     */
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    /**
+     * Gzip member trailer: CRC32 and uncompressed size
+     */
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    /**
+     * Deflater together with the buffers needed to compress a body. The
+     * wrapped entity writes into the compressor, which passes the compressed
+     * data on to the target stream. Can be reused, but only by one write at a
+     * time.
+     */
+    public static class Compressor extends OutputStream {
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * Collects the small pieces written by the wrapped entity
+         */
+        private final byte[] input = new byte[BUFFER_SIZE];
+        private int inputLength;
+
+        private final byte[] output = new byte[BUFFER_SIZE];
+        private OutputStream out;
+
+        private long uncompressedCount;
+        private long compressedCount;
+
+        public Compressor(Deflater deflater) {
+            this.deflater = deflater;
+        }
+
+        void start(OutputStream out) {
+            this.out = out;
+            deflater.reset();
+            crc.reset();
+            inputLength = 0;
+            uncompressedCount = 0;
+            compressedCount = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (inputLength == input.length)
+                deflateInput();
+            input[inputLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= input.length) {
+                deflateInput();
+                deflate(b, off, len);
+                return;
+            }
+            if (len > input.length - inputLength)
+                deflateInput();
+            System.arraycopy(b, off, input, inputLength, len);
+            inputLength += len;
+        }
+
+        /**
+         * The data is passed on when the buffers are full, the body is
+         * completed by {@link #finish()}
+         */
+        @Override
+        public void flush() {
+        }
+
+        private void deflateInput() throws IOException {
+            if (inputLength > 0) {
+                deflate(input, 0, inputLength);
+                inputLength = 0;
+            }
+        }
+
+        private void deflate(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            uncompressedCount += len;
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput())
+                writeOutput();
+        }
+
+        private void writeOutput() throws IOException {
+            int length = deflater.deflate(output, 0, output.length);
+            if (length > 0) {
+                out.write(output, 0, length);
+                compressedCount += length;
+            }
+        }
+
+        /**
+         * Compress the remaining input and write the end of the deflate
+         * stream
+         */
+        void finish() throws IOException {
+            deflateInput();
+            deflater.finish();
+            while (!deflater.finished())
+                writeOutput();
+        }
+
+        /**
+         * Write the gzip trailer, after {@link #finish()}
+         */
+        void writeGzipTrailer() throws IOException {
+            writeIntLittleEndian(output, 0, (int) crc.getValue());
+            writeIntLittleEndian(output, 4, (int) uncompressedCount);
+            out.write(output, 0, GZIP_TRAILER_LENGTH);
+        }
+
+        /**
+         * Release the memory of the deflater
+         */
+        public void end() {
+            deflater.end();
+        }
+    }
+
+    private final boolean gzip;
+    private final Compressor compressor;
+
+    private long uncompressedBytes;
+    private long compressedBytes;
+
+    /**
+     * @param gzip
+     *            if true, the body is written in the gzip format and the
+     *            deflater of the compressor has to use the nowrap mode.
+     *            Otherwise, the body is written in the zlib format used by the
+     *            deflate content encoding.
+     */
+    public EsCompressedEntity(HttpEntity wrappedEntity, boolean gzip, Compressor compressor) {
+        super(wrappedEntity);
+        this.gzip = gzip;
+        this.compressor = compressor;
+    }
+
+    @Override
+    public BasicHeader getContentEncoding() {
+        return new BasicHeader("Content-Encoding", gzip ? "gzip" : "deflate");
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return true;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        compressor.start(out);
+        if (gzip)
+            out.write(GZIP_HEADER);
+        wrappedEntity.writeTo(compressor);
+        compressor.finish();
+        if (gzip)
+            compressor.writeGzipTrailer();
+        uncompressedBytes += compressor.uncompressedCount;
+        compressedBytes += compressor.compressedCount + (gzip ? GZIP_HEADER.length + GZIP_TRAILER_LENGTH : 0);
+    }
+
+    private static void writeIntLittleEndian(byte[] buffer, int pos, int value) {
+        buffer[pos] = (byte) value;
+        buffer[pos + 1] = (byte) (value >>> 8);
+        buffer[pos + 2] = (byte) (value >>> 16);
+        buffer[pos + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * Number of bytes written to the compressor by all writes
+     */
+    public long uncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * Number of compressed bytes written by all writes
+     */
+    public long compressedBytes() {
+        return compressedBytes;
+    }
+}
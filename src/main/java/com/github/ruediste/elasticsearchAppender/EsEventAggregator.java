@@ -0,0 +1,256 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Collapses repeated events. Events are considered equal if they have the
+ * same logger, level, message template and exception fingerprint. The first
+ * event of a window is passed on unchanged. The repetitions within the window
+ * are counted and replaced by a single record, a copy of the last repetition,
+ * with the {@link EsLogRecord#count}, {@link EsLogRecord#firstTime} and
+ * {@link EsLogRecord#lastTime} set. It is passed to the sink once the window
+ * has ended.
+ *
+ * <p>
+ * At most maxSize distinct events are tracked. If more distinct events occur
+ * within a window, they are passed on without aggregation.
+ *
+ * <p>
+ * Events of different keys do not contend for a common lock. Looking up the
+ * window of an event does not allocate, the key is filled into an instance
+ * reused per thread.
+ */
+public class EsEventAggregator {
+
+    /**
+     * Key of the windows. The keys in the map are never modified, only the
+     * keys used for lookups are refilled.
+     */
+    private static final class Key {
+        String logger;
+        String level;
+        String template;
+        String exceptionClass;
+        long exceptionFingerprint;
+        int hash;
+
+        void set(String logger, String level, String template, String exceptionClass, long exceptionFingerprint) {
+            this.logger = logger;
+            this.level = level;
+            this.template = template;
+            this.exceptionClass = exceptionClass;
+            this.exceptionFingerprint = exceptionFingerprint;
+            int h = Objects.hashCode(logger);
+            h = 31 * h + Objects.hashCode(level);
+            h = 31 * h + Objects.hashCode(template);
+            h = 31 * h + Objects.hashCode(exceptionClass);
+            hash = 31 * h + Long.hashCode(exceptionFingerprint);
+        }
+
+        Key copy() {
+            Key copy = new Key();
+            copy.set(logger, level, template, exceptionClass, exceptionFingerprint);
+            return copy;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return hash == other.hash && exceptionFingerprint == other.exceptionFingerprint
+                    && Objects.equals(logger, other.logger) && Objects.equals(level, other.level)
+                    && Objects.equals(template, other.template)
+                    && Objects.equals(exceptionClass, other.exceptionClass);
+        }
+    }
+
+    /**
+     * Aggregation window of a key. Guarded by itself.
+     */
+    private static final class Window {
+        long start;
+        int count;
+        long firstTime;
+        EsLogRecord last;
+
+        /**
+         * Set when the window is removed from the map
+         */
+        boolean removed;
+
+        Window(long start) {
+            this.start = start;
+        }
+
+        /**
+         * Start a new window, after the {@link #aggregate()} of the ended one
+         * has been retrieved
+         */
+        void restart(long start) {
+            this.start = start;
+            count = 0;
+            last = null;
+        }
+
+        /**
+         * Record representing the repetitions, null if there are none
+         */
+        EsLogRecord aggregate() {
+            if (count == 0)
+                return null;
+            last.count = count;
+            last.firstTime = firstTime;
+            last.lastTime = last.time;
+            return last;
+        }
+    }
+
+    private final long windowMillis;
+    private final int maxSize;
+    private final Consumer<EsLogRecord> sink;
+
+    private final ConcurrentHashMap<Key, Window> windows = new ConcurrentHashMap<>();
+
+    /**
+     * Number of windows, including windows about to be added. Used to enforce
+     * the maxSize.
+     */
+    private final AtomicInteger windowCount = new AtomicInteger();
+
+    private final ThreadLocal<Key> lookupKeys = ThreadLocal.withInitial(Key::new);
+
+    private ScheduledExecutorService flushExecutor;
+
+    /**
+     * @param sink
+     *            receives the aggregated records
+     */
+    public EsEventAggregator(long windowMillis, int maxSize, Consumer<EsLogRecord> sink) {
+        this.windowMillis = windowMillis;
+        this.maxSize = maxSize;
+        this.sink = sink;
+    }
+
+    /**
+     * Start a thread which periodically passes the records of the ended
+     * windows to the sink
+     */
+    public void start() {
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "EsEventAggregator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleWithFixedDelay(() -> flush(System.currentTimeMillis()), windowMillis, windowMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the flush thread and pass the records of all windows to the sink
+     */
+    public void stop() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdownNow();
+            flushExecutor = null;
+        }
+        flush(Long.MAX_VALUE);
+    }
+
+    /**
+     * Add a record. The time of the record has to be set.
+     *
+     * @param template
+     *            message before the parameters have been substituted. If not
+     *            available, the formatted message
+     * @param exceptionFingerprint
+     *            see {@link EsStackTraceFingerprints#fingerprint(Throwable)},
+     *            0 if there is no exception
+     * @return true if the record has to be queued, false if it has been
+     *         aggregated
+     */
+    public boolean add(EsLogRecord record, String template, long exceptionFingerprint) {
+        Key key = lookupKeys.get();
+        key.set(record.logger, record.level, template, record.exceptionClass, exceptionFingerprint);
+        while (true) {
+            Window window = windows.get(key);
+            if (window == null) {
+                if (windowCount.get() >= maxSize)
+                    return true;
+                if (windowCount.incrementAndGet() > maxSize) {
+                    windowCount.decrementAndGet();
+                    return true;
+                }
+                if (windows.putIfAbsent(key.copy(), new Window(record.time)) == null)
+                    return true;
+                // added concurrently by another thread
+                windowCount.decrementAndGet();
+                continue;
+            }
+            EsLogRecord ended;
+            synchronized (window) {
+                if (window.removed)
+                    // removed by a concurrent flush, look up again
+                    continue;
+                if (record.time - window.start < windowMillis) {
+                    if (window.count++ == 0) {
+                        window.firstTime = record.time;
+                        window.last = new EsLogRecord();
+                    }
+                    // the record might be reused for the next event
+                    window.last.copyFrom(record);
+                    return false;
+                }
+                // the window has ended, start a new one with this record
+                ended = window.aggregate();
+                window.restart(record.time);
+            }
+            if (ended != null)
+                sink.accept(ended);
+            return true;
+        }
+    }
+
+    /**
+     * Pass the records of the windows which have ended at the given time to
+     * the sink
+     */
+    public void flush(long now) {
+        List<EsLogRecord> ended = new ArrayList<>();
+        for (Iterator<Map.Entry<Key, Window>> it = windows.entrySet().iterator(); it.hasNext();) {
+            Window window = it.next().getValue();
+            synchronized (window) {
+                if (now - window.start < windowMillis)
+                    continue;
+                window.removed = true;
+                it.remove();
+                windowCount.decrementAndGet();
+                EsLogRecord aggregate = window.aggregate();
+                if (aggregate != null)
+                    ended.add(aggregate);
+            }
+        }
+        ended.forEach(sink);
+    }
+
+    public int size() {
+        return windows.size();
+    }
+}
@@ -0,0 +1,508 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Locale;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+
+/**
+ * Minimal HTTP/1.1 client sending bulk requests over plain JDK sockets,
+ * without depending on Jest or the Apache HttpClient. Connections are kept
+ * alive and reused by subsequent requests. The request bodies are streamed
+ * using the chunked transfer encoding. Of the response, only the
+ * {@code errors} flag and the failed items are read, see
+ * {@link EsBulkResponseParser}.
+ *
+ * <p>
+ * The URL may contain a user and password, which are sent using basic
+ * authentication. For https URLs, the certificate of the server is checked
+ * against the host name of the URL.
+ */
+public class EsHttpBulkTransport implements EsBulkTransport {
+
+    private static final Charset ascii = Charset.forName("US-ASCII");
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(ascii);
+
+    /**
+     * Maximum size of the chunks of the request body
+     */
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * Maximum number of characters of an error response included in the error
+     * message
+     */
+    private static final int MAX_ERROR_BODY_LENGTH = 1000;
+
+    /**
+     * Timeout for establishing a connection, in milliseconds
+     */
+    public int connectTimeout = 3000;
+
+    /**
+     * Timeout for waiting for data from the server, in milliseconds
+     */
+    public int readTimeout = 30000;
+
+    /**
+     * Factory of the sockets of https URLs, for example to trust other
+     * certificates. Defaults to the {@link SSLSocketFactory#getDefault()
+     * default factory}
+     */
+    public SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+
+    private final String host;
+    private final int port;
+    private final boolean https;
+
+    /**
+     * Start of the request header, up to the headers depending on the body
+     */
+    private final String requestHeaderStart;
+
+    /**
+     * Idle connections, the most recently used last. Guarded by itself.
+     */
+    private final ArrayDeque<Connection> idleConnections = new ArrayDeque<>();
+
+    /**
+     * @param esUrl
+     *            URL of the Elasticsearch node, for example
+     *            {@code http://localhost:9200}
+     */
+    public EsHttpBulkTransport(String esUrl) {
+        URI uri = URI.create(esUrl);
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ENGLISH);
+        if (!scheme.equals("http") && !scheme.equals("https"))
+            throw new IllegalArgumentException("Unsupported URL " + esUrl);
+        https = scheme.equals("https");
+        host = uri.getHost();
+        port = uri.getPort() >= 0 ? uri.getPort() : https ? 443 : 80;
+
+        String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+        if (path.endsWith("/"))
+            path = path.substring(0, path.length() - 1);
+        StringBuilder header = new StringBuilder();
+        header.append("POST ").append(path).append("/_bulk HTTP/1.1\r\n");
+        header.append("Host: ").append(host).append(uri.getPort() >= 0 ? ":" + port : "").append("\r\n");
+        // percent decoded only, a '+' is kept
+        if (uri.getUserInfo() != null)
+            header.append("Authorization: Basic ")
+                    .append(Base64.getEncoder().encodeToString(uri.getUserInfo().getBytes(utf8))).append("\r\n");
+        header.append("Transfer-Encoding: chunked\r\n");
+        requestHeaderStart = header.toString();
+    }
+
+    @Override
+    public EsBulkResponse execute(HttpEntity body) throws IOException {
+        while (true) {
+            Connection connection = acquireConnection();
+            try {
+                EsBulkResponse response = connection.execute(body);
+                if (connection.keepAlive)
+                    releaseConnection(connection);
+                else
+                    connection.close();
+                return response;
+            } catch (IOException e) {
+                connection.close();
+                // the server might have closed an idle connection, retry
+                // using another connection, unless a response has been started
+                if (!connection.reused || connection.responseStarted)
+                    throw e;
+            }
+        }
+    }
+
+    private Connection acquireConnection() throws IOException {
+        synchronized (idleConnections) {
+            Connection connection = idleConnections.pollLast();
+            if (connection != null) {
+                connection.reused = true;
+                return connection;
+            }
+        }
+        return new Connection(openSocket());
+    }
+
+    private void releaseConnection(Connection connection) {
+        synchronized (idleConnections) {
+            idleConnections.addLast(connection);
+        }
+    }
+
+    private Socket openSocket() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeout);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            if (https) {
+                SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, port, true);
+                // the factory only checks the certificate chain, not whether
+                // it has been issued for the host
+                SSLParameters parameters = sslSocket.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(parameters);
+                sslSocket.startHandshake();
+                return sslSocket;
+            }
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Close the idle connections. Connections in use are closed when their
+     * request completes.
+     */
+    @Override
+    public void close() {
+        synchronized (idleConnections) {
+            for (Connection connection : idleConnections) {
+                connection.close();
+            }
+            idleConnections.clear();
+        }
+    }
+
+    /**
+     * Number of idle connections, for testing
+     */
+    int idleConnectionCount() {
+        synchronized (idleConnections) {
+            return idleConnections.size();
+        }
+    }
+
+    private class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        final ChunkedOutputStream chunkedOut;
+
+        /**
+         * True if the connection has been used by a previous request
+         */
+        boolean reused;
+
+        /**
+         * Set as soon as the first byte of the response of the current request
+         * has been received
+         */
+        boolean responseStarted;
+
+        /**
+         * Cleared if the connection cannot be reused after the current
+         * request
+         */
+        boolean keepAlive;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new BufferedInputStream(socket.getInputStream(), 8 * 1024);
+            out = socket.getOutputStream();
+            chunkedOut = new ChunkedOutputStream(out);
+        }
+
+        EsBulkResponse execute(HttpEntity body) throws IOException {
+            responseStarted = false;
+            keepAlive = true;
+
+            // request
+            StringBuilder header = new StringBuilder(requestHeaderStart);
+            appendHeader(header, body.getContentType());
+            appendHeader(header, body.getContentEncoding());
+            header.append("\r\n");
+            out.write(header.toString().getBytes(ascii));
+            chunkedOut.reset();
+            body.writeTo(chunkedOut);
+            chunkedOut.finish();
+            out.flush();
+
+            // status line and headers
+            String statusLine = readLine();
+            responseStarted = true;
+            String[] statusParts = statusLine.split(" ", 3);
+            if (statusParts.length < 2 || !statusParts[0].startsWith("HTTP/"))
+                throw new IOException("Invalid status line " + statusLine);
+            int status;
+            try {
+                status = Integer.parseInt(statusParts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line " + statusLine);
+            }
+            if (statusParts[0].equals("HTTP/1.0"))
+                keepAlive = false;
+            long contentLength = -1;
+            boolean chunked = false;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length"))
+                    contentLength = Long.parseLong(value);
+                else if (name.equalsIgnoreCase("Transfer-Encoding"))
+                    chunked = value.equalsIgnoreCase("chunked");
+                else if (name.equalsIgnoreCase("Connection"))
+                    keepAlive &= !value.equalsIgnoreCase("close");
+            }
+            if (!chunked && contentLength < 0)
+                // body ends when the connection is closed
+                keepAlive = false;
+
+            // body
+            BodyInputStream responseBody = new BodyInputStream(in, chunked, contentLength);
+            EsBulkResponse response;
+            if (status >= 200 && status < 300) {
+                response = EsBulkResponseParser.parse(responseBody);
+            } else {
+                ByteArrayOutputStream errorBody = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int n;
+                while (errorBody.size() < MAX_ERROR_BODY_LENGTH && (n = responseBody.read(buffer)) >= 0)
+                    errorBody.write(buffer, 0, n);
+                String error = new String(errorBody.toByteArray(), utf8);
+                if (error.length() > MAX_ERROR_BODY_LENGTH)
+                    error = error.substring(0, MAX_ERROR_BODY_LENGTH) + "...";
+                response = new EsBulkResponse(false, statusLine.substring(statusParts[0].length() + 1) + ": " + error,
+                        Collections.emptyList());
+            }
+            // skip the rest of the body to be able to reuse the connection
+            if (keepAlive)
+                responseBody.skipRemaining();
+            return response;
+        }
+
+        private void appendHeader(StringBuilder header, Header value) {
+            if (value != null)
+                header.append(value.getName()).append(": ").append(value.getValue()).append("\r\n");
+        }
+
+        private String readLine() throws IOException {
+            return EsHttpBulkTransport.readLine(in);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Read a line terminated by CRLF or LF, without the terminator
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int c = in.read();
+            if (c < 0)
+                throw new EOFException("Connection closed by the server");
+            if (c == '\n')
+                break;
+            line.append((char) c);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r')
+            line.setLength(length - 1);
+        return line.toString();
+    }
+
+    /**
+     * Writes the data as chunks of the chunked transfer encoding. The data is
+     * collected in a buffer, leaving room for the chunk header in front, such
+     * that each chunk is passed to the socket at once.
+     */
+    static class ChunkedOutputStream extends OutputStream {
+
+        /**
+         * Room for the chunk size in hex and CRLF
+         */
+        private static final int HEADER_SPACE = 10;
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[HEADER_SPACE + CHUNK_SIZE + CRLF.length];
+        private int pos = HEADER_SPACE;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        void reset() {
+            pos = HEADER_SPACE;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (pos == HEADER_SPACE + CHUNK_SIZE)
+                writeChunk();
+            buffer[pos++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (pos == HEADER_SPACE + CHUNK_SIZE)
+                    writeChunk();
+                int n = Math.min(len, HEADER_SPACE + CHUNK_SIZE - pos);
+                System.arraycopy(b, off, buffer, pos, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Chunks are only written when the buffer is full, the body is
+         * completed by {@link #finish()}
+         */
+        @Override
+        public void flush() {
+        }
+
+        private void writeChunk() throws IOException {
+            int length = pos - HEADER_SPACE;
+            if (length == 0)
+                return;
+            // chunk size and CRLF, right aligned in front of the data
+            int start = HEADER_SPACE - 2;
+            buffer[start] = '\r';
+            buffer[start + 1] = '\n';
+            for (int remaining = length; remaining > 0; remaining >>>= 4)
+                buffer[--start] = (byte) Character.forDigit(remaining & 0xF, 16);
+            buffer[pos++] = '\r';
+            buffer[pos++] = '\n';
+            out.write(buffer, start, pos - start);
+            pos = HEADER_SPACE;
+        }
+
+        /**
+         * Write the remaining data and the last chunk
+         */
+        void finish() throws IOException {
+            writeChunk();
+            out.write(LAST_CHUNK);
+        }
+    }
+
+    /**
+     * Body of a response, delimited by the content length, the chunked
+     * transfer encoding or the end of the stream
+     */
+    static class BodyInputStream extends InputStream {
+        private final InputStream in;
+        private final boolean chunked;
+
+        /**
+         * Remaining bytes of the body or the current chunk, -1 if reading until
+         * the end of the stream
+         */
+        private long remaining;
+        private boolean eof;
+
+        BodyInputStream(InputStream in, boolean chunked, long contentLength) {
+            this.in = in;
+            this.chunked = chunked;
+            remaining = chunked ? 0 : contentLength;
+            eof = !chunked && contentLength == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!prepareRead())
+                return -1;
+            int c = in.read();
+            if (c < 0)
+                return endOfStream();
+            consumed(1);
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!prepareRead())
+                return -1;
+            int n = in.read(b, off, remaining < 0 ? len : (int) Math.min(len, remaining));
+            if (n < 0)
+                return endOfStream();
+            consumed(n);
+            return n;
+        }
+
+        /**
+         * @return false if the end of the body has been reached
+         */
+        private boolean prepareRead() throws IOException {
+            if (eof)
+                return false;
+            if (chunked && remaining == 0) {
+                String line = readLine(in);
+                int semicolon = line.indexOf(';');
+                long size = Long.parseLong((semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+                if (size == 0) {
+                    // skip the trailers
+                    while (!readLine(in).isEmpty())
+                        ;
+                    eof = true;
+                    return false;
+                }
+                remaining = size;
+            }
+            return true;
+        }
+
+        private void consumed(int n) throws IOException {
+            if (remaining < 0)
+                return;
+            remaining -= n;
+            if (remaining == 0) {
+                if (chunked)
+                    readLine(in);
+                else
+                    eof = true;
+            }
+        }
+
+        private int endOfStream() throws IOException {
+            if (remaining >= 0)
+                throw new EOFException("Connection closed by the server");
+            eof = true;
+            return -1;
+        }
+
+        void skipRemaining() throws IOException {
+            byte[] buffer = new byte[1024];
+            while (read(buffer, 0, buffer.length) >= 0)
+                ;
+        }
+    }
+}
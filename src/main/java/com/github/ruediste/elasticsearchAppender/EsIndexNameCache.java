@@ -0,0 +1,156 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Formats index names from time stamps using a {@link DateTimeFormatter}
+ * pattern in UTC. The last name is cached together with the interval of time
+ * stamps it is valid for, thus looking up a time stamp within the interval is
+ * a single range check. The name is only formatted again once a time stamp
+ * outside of the interval is looked up.
+ *
+ * <p>
+ * The interval is derived from the smallest time unit used in the pattern, for
+ * example a day for {@code 'logstash-'yyyy.MM.dd} or an hour for
+ * {@code 'logstash-'yyyy.MM.dd.HH}. Each pattern requires its own cache.
+ */
+public class EsIndexNameCache {
+
+    private static class Entry {
+        final String name;
+        /**
+         * First time stamp the name is valid for, in epoch millis
+         */
+        final long start;
+        /**
+         * First time stamp after the interval
+         */
+        final long end;
+
+        Entry(String name, long start, long end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final DateTimeFormatter formatter;
+    private final ChronoUnit granularity;
+
+    /**
+     * Entry of the last formatted time stamp. Replaced as a whole, such that a
+     * single volatile read yields a consistent entry.
+     */
+    private volatile Entry current = new Entry(null, 0, 0);
+
+    public EsIndexNameCache(String pattern) {
+        formatter = DateTimeFormatter.ofPattern(pattern);
+        granularity = granularity(pattern);
+    }
+
+    /**
+     * Get the index name of a time stamp
+     */
+    public String get(long timeStamp) {
+        Entry entry = current;
+        if (timeStamp >= entry.start && timeStamp < entry.end)
+            return entry.name;
+        return format(timeStamp);
+    }
+
+    private String format(long timeStamp) {
+        ZonedDateTime time = ZonedDateTime.ofInstant(Instant.ofEpochMilli(timeStamp), ZoneOffset.UTC);
+        String name = formatter.format(time);
+        if (granularity == ChronoUnit.FOREVER) {
+            current = new Entry(name, Long.MIN_VALUE, Long.MAX_VALUE);
+        } else {
+            ZonedDateTime start;
+            switch (granularity) {
+            case YEARS:
+                start = time.withDayOfYear(1).truncatedTo(ChronoUnit.DAYS);
+                break;
+            case MONTHS:
+                start = time.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS);
+                break;
+            default:
+                start = time.truncatedTo(granularity);
+            }
+            current = new Entry(name, start.toInstant().toEpochMilli(),
+                    start.plus(1, granularity).toInstant().toEpochMilli());
+        }
+        return name;
+    }
+
+    /**
+     * Determine the smallest time unit used by a pattern. Letters whose unit
+     * is not aligned to the calendar, like week based fields, map to a smaller
+     * unit which is. Patterns without any time field result in
+     * {@link ChronoUnit#FOREVER}.
+     */
+    static ChronoUnit granularity(String pattern) {
+        ChronoUnit result = ChronoUnit.FOREVER;
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                // an escaped quote toggles twice
+                quoted = !quoted;
+                continue;
+            }
+            if (quoted || !(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'))
+                continue;
+            ChronoUnit unit = unit(c);
+            if (unit.getDuration().compareTo(result.getDuration()) < 0)
+                result = unit;
+        }
+        return result;
+    }
+
+    private static ChronoUnit unit(char letter) {
+        switch (letter) {
+        case 'G':
+        case 'u':
+        case 'y':
+            return ChronoUnit.YEARS;
+        case 'Q':
+        case 'q':
+        case 'M':
+        case 'L':
+            return ChronoUnit.MONTHS;
+        case 'Y':
+        case 'w':
+        case 'W':
+        case 'D':
+        case 'd':
+        case 'F':
+        case 'E':
+        case 'e':
+        case 'c':
+            return ChronoUnit.DAYS;
+        case 'a':
+        case 'h':
+        case 'K':
+        case 'k':
+        case 'H':
+            return ChronoUnit.HOURS;
+        case 'm':
+            return ChronoUnit.MINUTES;
+        case 's':
+            return ChronoUnit.SECONDS;
+        case 'V':
+        case 'z':
+        case 'O':
+        case 'X':
+        case 'x':
+        case 'Z':
+            // the zone is always UTC
+            return ChronoUnit.FOREVER;
+        default:
+            return ChronoUnit.MILLIS;
+        }
+    }
+}
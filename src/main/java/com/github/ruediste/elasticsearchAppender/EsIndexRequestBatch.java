@@ -0,0 +1,60 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Consecutive elements drained from a {@link EsIndexRequestBuffer} which still
+ * reside in the buffer. The space of the elements is only released by
+ * {@link EsIndexRequestBuffer#release(EsIndexRequestBatch)}, thus the elements
+ * can be visited any number of times until then.
+ */
+public abstract class EsIndexRequestBatch {
+
+    static final EsIndexRequestBatch EMPTY = new EsIndexRequestBatch(0, 0) {
+
+        @Override
+        public void forEach(Consumer<EsIndexRequestElement> consumer) {
+        }
+    };
+
+    private final int size;
+    private final int elementBytes;
+
+    /**
+     * Body of the bulk request containing the elements, if rendered ahead of
+     * sending by a {@link EsBulkRenderer}. Null if the body is rendered while
+     * sending.
+     */
+    volatile CompletableFuture<List<byte[]>> rendered;
+
+    EsIndexRequestBatch(int size, int elementBytes) {
+        this.size = size;
+        this.elementBytes = elementBytes;
+    }
+
+    /**
+     * Number of elements in this batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Sum of the lengths of the elements in this batch
+     */
+    public int elementBytes() {
+        return elementBytes;
+    }
+
+    /**
+     * Visit the elements of this batch in order. The element passed to the
+     * consumer is only valid during the invocation of the consumer.
+     */
+    public abstract void forEach(Consumer<EsIndexRequestElement> consumer);
+}
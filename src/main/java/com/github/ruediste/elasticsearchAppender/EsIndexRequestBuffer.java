@@ -0,0 +1,187 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Fixed capacity buffer storing serialized log events. Any number of threads
+ * may put elements, while a single thread drains them.
+ */
+public interface EsIndexRequestBuffer {
+
+    /**
+     * Level of the elements put without specifying a level. Corresponds to
+     * INFO, see {@link EsAppenderHelper#level(String)}
+     */
+    int DEFAULT_LEVEL = 3;
+
+    /**
+     * Action taken when an element is put but the buffer is full
+     */
+    enum OverflowPolicy {
+        /**
+         * Discard the element being put
+         */
+        DISCARD,
+        /**
+         * Wait for space to become available, up to a maximum time. If there is
+         * still no space, the element is discarded
+         */
+        BLOCK,
+        /**
+         * Evict the oldest elements which have not been drained yet
+         */
+        DROP_OLDEST,
+        /**
+         * Evict the elements with the lowest level which have not been drained
+         * yet, oldest first. Elements with a higher level than the element being
+         * put are never evicted.
+         */
+        DROP_LOWEST_LEVEL
+    }
+
+    /**
+     * Put an element with the {@link #DEFAULT_LEVEL} into the buffer.
+     *
+     * @see #put(int, byte[]...)
+     */
+    default boolean put(byte[]... elementParts) {
+        return put(DEFAULT_LEVEL, elementParts);
+    }
+
+    /**
+     * Put an element into the buffer.
+     *
+     * @param level
+     *            level of the element, between 0 and 255. Higher levels
+     *            indicate a higher severity. The
+     *            {@link EsIndexRequestRingBuffer} stores 255 as 254
+     * @param elementParts
+     *            parts of the element. The individual arrays will be
+     *            concatenated
+     * @return true if the element has been added, false if there was no space
+     *         remaining
+     */
+    boolean put(int level, byte[]... elementParts);
+
+    /**
+     * Put an element consisting of a range of an array into the buffer. Allows
+     * to reuse the array for the next element.
+     *
+     * @see #put(int, byte[]...)
+     */
+    boolean put(int level, byte[] element, int offset, int length);
+
+    /**
+     * Put an element consisting of the start of a header array followed by the
+     * UTF-8 encoding of a payload. The payload is encoded directly into the
+     * buffer, without creating an intermediate array.
+     *
+     * @see #put(int, byte[]...)
+     */
+    boolean put(int level, byte[] header, int headerLength, CharSequence payload);
+
+    /**
+     * Set the action taken if the buffer is full. Only
+     * {@link OverflowPolicy#DISCARD} is supported by default.
+     *
+     * @param maxBlockTime
+     *            maximum time to wait for space when using
+     *            {@link OverflowPolicy#BLOCK}
+     */
+    default void setOverflowPolicy(OverflowPolicy policy, Duration maxBlockTime) {
+        if (policy != OverflowPolicy.DISCARD)
+            throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support " + policy);
+    }
+
+    /**
+     * Set a listener which is notified with the number of elements evicted to
+     * make room for new elements
+     */
+    default void setEvictionListener(IntConsumer listener) {
+    }
+
+    /**
+     * Drain elements from the buffer, copying each element into a new array.
+     *
+     * @param maxCount
+     * @param maxSize
+     *            maximum number of bytes to drain from the buffer (sum of
+     *            drained elements). Ignored for the first element retrieved,
+     *            such that single long elements cannot block the whole buffer.
+     *            -1 for no limit
+     * @param maxWait
+     *            duration to wait maximally for at least one element to become
+     *            available, null for infinite wait, {@link Duration#ZERO} for
+     *            no waiting
+     * @return
+     * @see #drainBatch(int, int, Duration)
+     */
+    default List<byte[]> drain(int maxCount, int maxSize, Duration maxWait) {
+        EsIndexRequestBatch batch = drainBatch(maxCount, maxSize, maxWait);
+        if (batch.isEmpty())
+            return Collections.emptyList();
+        List<byte[]> result = new ArrayList<>(batch.size());
+        batch.forEach(element -> result.add(element.toByteArray()));
+        release(batch);
+        return result;
+    }
+
+    /**
+     * Drain elements from the buffer without copying them. The elements
+     * following the elements of the batches which have not been released yet
+     * are returned. The space of the elements is only released by
+     * {@link #release(EsIndexRequestBatch)}. The parameters are the same as
+     * for {@link #drain(int, int, Duration)}.
+     */
+    EsIndexRequestBatch drainBatch(int maxCount, int maxSize, Duration maxWait);
+
+    /**
+     * Release the space used by the elements of a batch. The batches have to be
+     * released in the order they were drained.
+     */
+    void release(EsIndexRequestBatch batch);
+
+    /**
+     * Wait until at least the given number of elements or bytes are available
+     * to be drained, the maximum wait time passed or {@link #wakeUp()} is
+     * called. Elements of batches which have not been released yet are not
+     * counted.
+     * 
+     * @return true if enough elements or bytes are available
+     */
+    boolean awaitElements(int minCount, int minBytes, Duration maxWait);
+
+    /**
+     * Cause a consumer waiting in {@link #drainBatch(int, int, Duration)} or
+     * {@link #awaitElements(int, int, Duration)} to
+     * return, even if no elements are available. If no consumer is waiting,
+     * the next wait returns immediately.
+     */
+    void wakeUp();
+
+    /**
+     * Discard all elements in the buffer
+     */
+    void reset();
+
+    double usedCapacityFraction();
+
+    int capacity();
+
+    /**
+     * Number of bytes currently used
+     */
+    int available();
+
+    /**
+     * Number of elements in the buffer, including the elements of batches
+     * which have not been released yet
+     */
+    int availableElements();
+
+    int remainingCapacity();
+}
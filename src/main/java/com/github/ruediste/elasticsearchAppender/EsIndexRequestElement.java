@@ -0,0 +1,90 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * View of an element stored in a {@link EsIndexRequestBuffer}. The element
+ * might wrap around the end of the buffer, in which case it consists of two
+ * parts.
+ *
+ * <p>
+ * Instances are reused while visiting the elements of a
+ * {@link EsIndexRequestBatch} and must not be retained.
+ */
+public class EsIndexRequestElement {
+
+    private BufferStorage storage;
+    private int offset;
+    private int length;
+
+    void set(BufferStorage storage, int offset, int length) {
+        this.storage = storage;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Create a view of the same element, which can be retained until the batch
+     * containing the element is released
+     */
+    EsIndexRequestElement copy() {
+        EsIndexRequestElement result = new EsIndexRequestElement();
+        result.set(storage, offset, length);
+        return result;
+    }
+
+    /**
+     * Create a view of a stand alone element
+     */
+    public static EsIndexRequestElement of(byte[] element) {
+        EsIndexRequestElement result = new EsIndexRequestElement();
+        result.set(new HeapBufferStorage(element), 0, element.length);
+        return result;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Length of the first part of the element. If the element does not wrap
+     * around, this is equal to the {@link #length()}.
+     */
+    public int firstPartLength() {
+        return Math.min(length, storage.capacity() - offset);
+    }
+
+    public byte get(int index) {
+        return storage.get(storage.wrap(offset + index));
+    }
+
+    /**
+     * Read a value written by {@link BufferStorage#putVarInt(int, int)}
+     */
+    public int getVarInt(int index) {
+        return storage.getVarInt(storage.wrap(offset + index));
+    }
+
+    public void copyTo(int index, byte[] dst, int dstOffset, int length) {
+        storage.get(storage.wrap(offset + index), dst, dstOffset, length);
+    }
+
+    public void writeTo(int index, int length, OutputStream out) throws IOException {
+        storage.writeTo(storage.wrap(offset + index), length, out);
+    }
+
+    /**
+     * Decode a part of the element
+     */
+    public String toString(int index, int length, Charset charset) {
+        return storage.toString(storage.wrap(offset + index), length, charset);
+    }
+
+    public byte[] toByteArray() {
+        byte[] result = new byte[length];
+        copyTo(0, result, 0, length);
+        return result;
+    }
+}
@@ -0,0 +1,440 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Ring buffer designed to store serialized log events, supporting multiple
+ * producers without locking.
+ *
+ * <p>
+ * Producers reserve space for an element by incrementing the write cursor with
+ * a CAS. The element is then copied into the reserved space without holding any
+ * lock. Finally the element is published by setting the commit bit of its first
+ * slot. The single consumer only reads elements up to the first element which
+ * is not committed yet, which keeps the order of the elements put by a single
+ * thread.
+ *
+ * <p>
+ * The elements are framed by their variable length encoded length, as in
+ * {@link EsIndexRequestRingBuffer}, but without the level, and each element
+ * starts at a multiple of {@link #SLOT_SIZE} bytes. The capacity is rounded
+ * down to a multiple of the slot size. Only
+ * {@link EsIndexRequestBuffer.OverflowPolicy#DISCARD} is supported.
+ */
+public class EsIndexRequestLockFreeRingBuffer implements EsIndexRequestBuffer {
+
+    /**
+     * Granularity of the space reservations. Each slot has a commit bit.
+     */
+    static final int SLOT_SIZE = 8;
+
+    private final BufferStorage buffer;
+    private final int capacity;
+
+    /**
+     * One bit for each slot, set if an element starting at the slot has been
+     * completely written
+     */
+    private final AtomicLongArray committed;
+
+    /**
+     * Position the next element will be written to. Grows monotonically, the
+     * index in the buffer is the cursor modulo the capacity.
+     */
+    private final AtomicLong writeCursor = new AtomicLong();
+
+    /**
+     * Position of the next element to be read. Only written by the consumer.
+     */
+    private volatile long readCursor;
+
+    /**
+     * Position of the first element not contained in a drained batch. Only
+     * accessed by the consumer.
+     */
+    private long peekCursor;
+
+    /**
+     * Number of elements in batches which have not been released yet. Only
+     * accessed by the consumer.
+     */
+    private long peekedElements;
+
+    /**
+     * Number of elements put. Striped to avoid contention between producers
+     */
+    private final LongAdder putElements = new LongAdder();
+
+    /**
+     * Number of elements drained. Only written by the consumer.
+     */
+    private volatile long drainedElements;
+
+    /**
+     * Set while the consumer waits for elements to become available
+     */
+    private volatile Thread waitingConsumer;
+
+    /**
+     * Set by {@link #wakeUp()}, cleared when the consumer stops waiting
+     */
+    private volatile boolean wakeUpRequested;
+
+    public EsIndexRequestLockFreeRingBuffer(int capacity) {
+        this(new HeapBufferStorage(roundCapacity(capacity)));
+    }
+
+    /**
+     * Create a buffer using the given storage. The capacity of the storage has
+     * to be a multiple of the {@link #SLOT_SIZE}.
+     */
+    public EsIndexRequestLockFreeRingBuffer(BufferStorage storage) {
+        this.capacity = storage.capacity();
+        if (capacity <= 0 || capacity % SLOT_SIZE != 0)
+            throw new IllegalArgumentException(
+                    "Capacity has to be a positive multiple of " + SLOT_SIZE + " but was " + capacity);
+        this.buffer = storage;
+        int slotCount = this.capacity / SLOT_SIZE;
+        this.committed = new AtomicLongArray((slotCount + 63) / 64);
+    }
+
+    /**
+     * Put an element into the buffer. The level is not stored.
+     */
+    @Override
+    public boolean put(int level, byte[]... elementParts) {
+        int elementLengthSum = 0;
+        for (byte[] element : elementParts) {
+            elementLengthSum += element.length;
+        }
+        long start = reserve(elementLengthSum);
+        if (start < 0)
+            return false;
+
+        // copy element
+        int pos = index(start);
+        pos = buffer.putVarInt(pos, elementLengthSum);
+        for (byte[] element : elementParts) {
+            pos = buffer.put(pos, element, 0, element.length);
+        }
+        publish(start);
+        return true;
+    }
+
+    /**
+     * Put an element into the buffer. The level is not stored.
+     */
+    @Override
+    public boolean put(int level, byte[] element, int offset, int length) {
+        long start = reserve(length);
+        if (start < 0)
+            return false;
+        int pos = index(start);
+        pos = buffer.putVarInt(pos, length);
+        buffer.put(pos, element, offset, length);
+        publish(start);
+        return true;
+    }
+
+    /**
+     * Put an element into the buffer. The level is not stored.
+     */
+    @Override
+    public boolean put(int level, byte[] header, int headerLength, CharSequence payload) {
+        int payloadLength = BufferStorage.utf8Length(payload);
+        long start = reserve(headerLength + payloadLength);
+        if (start < 0)
+            return false;
+        int pos = index(start);
+        pos = buffer.putVarInt(pos, headerLength + payloadLength);
+        pos = buffer.put(pos, header, 0, headerLength);
+        buffer.putUtf8(pos, payload, payloadLength);
+        publish(start);
+        return true;
+    }
+
+    /**
+     * Reserve the space for an element
+     * 
+     * @return cursor of the reserved space, or -1 if the element has to be
+     *         discarded
+     */
+    private long reserve(int elementLength) {
+        int recordLength = align(EsIndexRequestRingBuffer.varIntLength(elementLength) + elementLength);
+        if (recordLength > capacity)
+            return -1;
+        while (true) {
+            long start = writeCursor.get();
+            if (start + recordLength - readCursor > capacity) {
+                // discard
+                return -1;
+            }
+            if (writeCursor.compareAndSet(start, start + recordLength))
+                return start;
+        }
+    }
+
+    /**
+     * Publish an element which has been completely written
+     */
+    private void publish(long start) {
+        putElements.increment();
+        setCommitted(index(start));
+        Thread consumer = waitingConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+    @Override
+    public EsIndexRequestBatch drainBatch(int maxCount, int maxSize, Duration maxWait) {
+        waitUntilElementsAvailable(maxWait);
+        long start = peekCursor;
+        if (!isCommittedElement(start))
+            return EsIndexRequestBatch.EMPTY;
+
+        long read = start;
+        int count = 0;
+        int elementLengthSum = 0;
+        do {
+            int elementLength = buffer.getVarInt(index(read));
+
+            // don't break when retrieving first element
+            if (maxSize >= 0 && count > 0 && elementLengthSum + elementLength > maxSize)
+                break;
+
+            elementLengthSum += elementLength;
+            count++;
+            read += align(EsIndexRequestRingBuffer.varIntLength(elementLength) + elementLength);
+        } while (count < maxCount && isCommittedElement(read));
+
+        peekCursor = read;
+        peekedElements += count;
+        return new Batch(start, read, count, elementLengthSum);
+    }
+
+    @Override
+    public void release(EsIndexRequestBatch batch) {
+        if (batch.isEmpty())
+            return;
+        Batch b = (Batch) batch;
+        if (b.start != readCursor)
+            throw new IllegalStateException("Batches have to be released in the order they were drained");
+
+        // the commit bits have to be cleared before the space is released
+        long read = b.start;
+        while (read < b.end) {
+            int pos = index(read);
+            int elementLength = buffer.getVarInt(pos);
+            clearCommitted(pos);
+            read += align(EsIndexRequestRingBuffer.varIntLength(elementLength) + elementLength);
+        }
+        drainedElements += b.size();
+        peekedElements -= b.size();
+        readCursor = b.end;
+    }
+
+    private class Batch extends EsIndexRequestBatch {
+        final long start;
+        final long end;
+
+        Batch(long start, long end, int size, int elementLengthSum) {
+            super(size, elementLengthSum);
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void forEach(Consumer<EsIndexRequestElement> consumer) {
+            EsIndexRequestElement element = new EsIndexRequestElement();
+            long read = start;
+            while (read < end) {
+                int pos = index(read);
+                int elementLength = buffer.getVarInt(pos);
+                int headerLength = EsIndexRequestRingBuffer.varIntLength(elementLength);
+                element.set(buffer, index(pos + headerLength), elementLength);
+                consumer.accept(element);
+                read += align(headerLength + elementLength);
+            }
+        }
+    }
+
+    private void waitUntilElementsAvailable(Duration maxWait) {
+        if (maxWait != null && maxWait.isZero())
+            return;
+        if (isCommittedElement(peekCursor))
+            return;
+        long end = maxWait == null ? 0 : System.nanoTime() + maxWait.toNanos();
+        waitingConsumer = Thread.currentThread();
+        try {
+            // the commit bit has to be checked after registering as waiting
+            // consumer to avoid missing a wakeup
+            while (!isCommittedElement(peekCursor) && !wakeUpRequested) {
+                if (Thread.interrupted())
+                    throw new RuntimeException(new InterruptedException());
+                if (maxWait == null) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = end - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+        } finally {
+            waitingConsumer = null;
+            wakeUpRequested = false;
+        }
+    }
+
+    @Override
+    public boolean awaitElements(int minCount, int minBytes, Duration maxWait) {
+        if (drainableReached(minCount, minBytes))
+            return true;
+        long end = System.nanoTime() + maxWait.toNanos();
+        waitingConsumer = Thread.currentThread();
+        try {
+            // the condition has to be checked after registering as waiting
+            // consumer to avoid missing a wakeup
+            while (!drainableReached(minCount, minBytes) && !wakeUpRequested) {
+                if (Thread.interrupted())
+                    throw new RuntimeException(new InterruptedException());
+                long remaining = end - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            waitingConsumer = null;
+            wakeUpRequested = false;
+        }
+        return drainableReached(minCount, minBytes);
+    }
+
+    /**
+     * Check if enough elements are available which are not part of a drained
+     * batch. Elements which are being put are counted as well.
+     */
+    private boolean drainableReached(int minCount, int minBytes) {
+        // read the drained count first, such that the result never gets too
+        // large
+        long drained = drainedElements;
+        return putElements.sum() - drained - peekedElements >= minCount
+                || writeCursor.get() - peekCursor >= minBytes;
+    }
+
+    @Override
+    public void wakeUp() {
+        wakeUpRequested = true;
+        Thread consumer = waitingConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Discard all committed elements, including the elements of drained
+     * batches. Must only be called by the consumer.
+     */
+    @Override
+    public void reset() {
+        long read = readCursor;
+        long count = 0;
+        while (read - readCursor < capacity && isCommitted(index(read))) {
+            int pos = index(read);
+            int elementLength = buffer.getVarInt(pos);
+            clearCommitted(pos);
+            count++;
+            read += align(EsIndexRequestRingBuffer.varIntLength(elementLength) + elementLength);
+        }
+        drainedElements += count;
+        readCursor = read;
+        peekCursor = read;
+        peekedElements = 0;
+    }
+
+    @Override
+    public double usedCapacityFraction() {
+        return ((double) available()) / capacity;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of bytes currently reserved, including the padding of the
+     * elements
+     */
+    @Override
+    public int available() {
+        return (int) (writeCursor.get() - readCursor);
+    }
+
+    @Override
+    public int availableElements() {
+        // read the drained count first, such that the result never gets negative
+        long drained = drainedElements;
+        return (int) (putElements.sum() - drained);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - available();
+    }
+
+    /**
+     * Round a capacity down to a multiple of the {@link #SLOT_SIZE}
+     */
+    static int roundCapacity(int capacity) {
+        return capacity - capacity % SLOT_SIZE;
+    }
+
+    private int index(long cursor) {
+        return (int) (cursor % capacity);
+    }
+
+    private static int align(int length) {
+        return (length + SLOT_SIZE - 1) & -SLOT_SIZE;
+    }
+
+    /**
+     * Check if a committed element starts at the given cursor, which has to be
+     * at or after the read cursor. Only called by the consumer.
+     */
+    private boolean isCommittedElement(long cursor) {
+        // if the buffer is full, the cursor points to the first element again
+        return cursor - readCursor < capacity && isCommitted(index(cursor));
+    }
+
+    private boolean isCommitted(int pos) {
+        int slot = pos / SLOT_SIZE;
+        return (committed.get(slot >>> 6) & (1L << slot)) != 0;
+    }
+
+    private void setCommitted(int pos) {
+        int slot = pos / SLOT_SIZE;
+        int word = slot >>> 6;
+        long bit = 1L << slot;
+        while (true) {
+            long value = committed.get(word);
+            if (committed.compareAndSet(word, value, value | bit))
+                return;
+        }
+    }
+
+    private void clearCommitted(int pos) {
+        int slot = pos / SLOT_SIZE;
+        int word = slot >>> 6;
+        long bit = 1L << slot;
+        while (true) {
+            long value = committed.get(word);
+            if (committed.compareAndSet(word, value, value & ~bit))
+                return;
+        }
+    }
+}
@@ -2,153 +2,680 @@ package com.github.ruediste.elasticsearchAppender;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 /**
- * Ring buffer designed to store serialized log events
+ * Ring buffer designed to store serialized log events. All accesses are
+ * synchronized on the buffer instance.
+ * 
+ * <p>
+ * Each record consists of the variable length encoded element length, followed
+ * by a single byte holding the level of the element and the element itself.
+ * The level allows to evict elements based on their severity without parsing
+ * them.
+ * 
+ * <p>
+ * Optionally, the records which have not been drained yet can be compressed
+ * into blocks by {@link #compact()}, which allows to buffer more elements
+ * when the consumer falls behind. A block is stored as a record with the
+ * level {@link #BLOCK_LEVEL}, containing the highest level of its elements,
+ * the number of elements, the sum of the element lengths, the length of the
+ * uncompressed records and the compressed records. Blocks are drained,
+ * evicted and released as a whole, and decompressed while visiting the
+ * elements of a batch.
+ * 
+ * @see EsIndexRequestLockFreeRingBuffer
  */
-public class EsIndexRequestRingBuffer {
+public class EsIndexRequestRingBuffer implements EsIndexRequestBuffer {
 
-    private byte[] buffer = null;
+    /**
+     * Level stored in the framing of compressed blocks. Elements put with this
+     * level are stored with the level below.
+     */
+    private static final int BLOCK_LEVEL = 0xFF;
+
+    /**
+     * Maximum number of blocks compressed by a single {@link #compact()}, to
+     * limit the time producers have to wait
+     */
+    private static final int MAX_COMPACTION_BLOCKS = 4;
+
+    private final BufferStorage buffer;
 
     private final int capacity;
     private int writePos = 0;
     private int available = 0;
     private int availableElements = 0;
 
+    /**
+     * Number of bytes at the start of the buffer which belong to batches that
+     * have not been released yet
+     */
+    private int peeked = 0;
+    private int peekedElements = 0;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DISCARD;
+    private Duration maxBlockTime = Duration.ZERO;
+    private IntConsumer evictionListener = n -> {
+    };
+
+    /**
+     * Bytes of the undrained records per level, reused by
+     * {@link #evict(int, boolean, int)}
+     */
+    private final int[] bytesPerLevel = new int[256];
+
+    /**
+     * Number of producers waiting for space to become available
+     */
+    private int waitingProducers;
+
+    /**
+     * Set by {@link #wakeUp()}, cleared when the consumer stops waiting
+     */
+    private boolean wakeUpRequested;
+
+    /**
+     * Set while the consumer waits in
+     * {@link #awaitElements(int, int, Duration)}
+     */
+    private boolean consumerAwaiting;
+
+    /**
+     * Compressor of the blocks, null if compaction is disabled
+     */
+    private BufferBlockCompressor compressor;
+    private int blockSize;
+
+    /**
+     * Number of bytes at the end of the buffer used by records which have not
+     * been drained and are not part of a block
+     */
+    private int uncompressedTail;
+
+    /**
+     * Number of threads waiting in {@link #awaitCompactable(Duration)}
+     */
+    private int waitingCompactors;
+
     public EsIndexRequestRingBuffer(int capacity) {
-        this.capacity = capacity;
-        this.buffer = new byte[capacity];
+        this(new HeapBufferStorage(capacity));
     }
 
     /**
-     * Put an element into the buffer.
-     * 
-     * @param elementParts
-     *            parts of the element. The individual arrays will be
-     *            concatenated
-     * @return true if the element has been added, false if there was no space
-     *         remaining
+     * Create a buffer using the given storage. If the storage contains cursors
+     * persisted by a previous buffer, the elements of the previous buffer are
+     * restored.
      */
-    public boolean put(byte[]... elementParts) {
+    public EsIndexRequestRingBuffer(BufferStorage storage) {
+        this.capacity = storage.capacity();
+        this.buffer = storage;
+        BufferStorage.Cursors cursors = storage.loadCursors();
+        if (cursors != null)
+            restore(cursors);
+    }
+
+    private void restore(BufferStorage.Cursors cursors) {
+        // count the elements and check the framing
+        int pos = cursors.readPos;
+        int remaining = cursors.available;
+        int count = 0;
+        int tail = 0;
+        while (remaining > 0) {
+            int elementLength = buffer.getVarInt(pos);
+            int recordLength = recordLength(elementLength);
+            if (recordLength > remaining) {
+                // corrupted, start with an empty buffer
+                reset();
+                return;
+            }
+            remaining -= recordLength;
+            if (isBlock(pos, elementLength)) {
+                count += readBlock(pos, elementLength).count;
+                tail = 0;
+            } else {
+                count++;
+                tail += recordLength;
+            }
+            pos = buffer.wrap(pos + recordLength);
+        }
+        writePos = pos;
+        available = cursors.available;
+        availableElements = count;
+        uncompressedTail = tail;
+    }
+
+    @Override
+    public boolean put(int level, byte[]... elementParts) {
         int elementLengthSum = 0;
         for (byte[] element : elementParts) {
             elementLengthSum += element.length;
         }
-        byte[] lengthBB = intToBytes(elementLengthSum);
         synchronized (this) {
-            if (available + elementLengthSum + lengthBB.length <= capacity) {
-                appendBytes(lengthBB);
-
-                for (byte[] element : elementParts) {
-                    appendBytes(element);
-                }
-
-                availableElements++;
-                return true;
-            } else {
-                // discard
+            if (!startRecord(level, elementLengthSum))
                 return false;
+            for (byte[] element : elementParts) {
+                writePos = buffer.put(writePos, element, 0, element.length);
             }
+            commitRecord(elementLengthSum);
+            return true;
         }
     }
 
-    private void appendBytes(byte[] element) {
-        if (writePos + element.length > capacity) {
-            // need to split
-            int firstPart = capacity - writePos;
-            int secondPart = element.length - firstPart;
-            System.arraycopy(element, 0, buffer, writePos, firstPart);
-            System.arraycopy(element, firstPart, buffer, 0, secondPart);
-            writePos = secondPart;
-        } else {
-            System.arraycopy(element, 0, buffer, writePos, element.length);
-            writePos += element.length;
+    @Override
+    public synchronized boolean put(int level, byte[] element, int offset, int length) {
+        if (!startRecord(level, length))
+            return false;
+        writePos = buffer.put(writePos, element, offset, length);
+        commitRecord(length);
+        return true;
+    }
+
+    @Override
+    public boolean put(int level, byte[] header, int headerLength, CharSequence payload) {
+        // determine the length before entering the monitor
+        int payloadLength = BufferStorage.utf8Length(payload);
+        int elementLength = headerLength + payloadLength;
+        synchronized (this) {
+            if (!startRecord(level, elementLength))
+                return false;
+            writePos = buffer.put(writePos, header, 0, headerLength);
+            writePos = buffer.putUtf8(writePos, payload, payloadLength);
+            commitRecord(elementLength);
+            return true;
         }
-        if (writePos >= capacity)
-            writePos -= capacity;
-        if (available == 0)
+    }
+
+    /**
+     * Make room for a record and write its framing. Has to be called while
+     * holding the monitor.
+     *
+     * @return false if the element has to be discarded
+     */
+    private boolean startRecord(int level, int elementLength) {
+        int recordLength = recordLength(elementLength);
+        if (available + recordLength > capacity && !makeRoom(recordLength, level))
+            return false;
+        writePos = buffer.putVarInt(writePos, elementLength);
+        buffer.put(writePos, (byte) Math.min(level, BLOCK_LEVEL - 1));
+        writePos = buffer.wrap(writePos + 1);
+        return true;
+    }
+
+    /**
+     * Make a record whose element has been written available
+     */
+    private void commitRecord(int elementLength) {
+        int recordLength = recordLength(elementLength);
+        uncompressedTail += recordLength;
+        if (available == peeked || consumerAwaiting || (waitingCompactors > 0 && uncompressedTail >= blockSize))
             notifyAll();
-        available += element.length;
+        available += recordLength;
+        availableElements++;
+        storeCursors();
+    }
+
+    @Override
+    public synchronized void setOverflowPolicy(OverflowPolicy policy, Duration maxBlockTime) {
+        this.overflowPolicy = policy;
+        this.maxBlockTime = maxBlockTime;
+    }
+
+    @Override
+    public synchronized void setEvictionListener(IntConsumer listener) {
+        this.evictionListener = listener;
     }
 
     /**
+     * Try to make room for a record according to the {@link OverflowPolicy}
      * 
-     * @param maxCount
-     * @param maxSize
-     *            maximum number of bytes to drain from the buffer (sum of
-     *            drained elements). Ignored for the first element retrieved,
-     *            such that single long elements cannot block the whole buffer.
-     *            -1 for no limit
-     * @param maxWait
-     *            duration to wait maximally for at least one element to become
-     *            available, null for infinite wait, {@link Duration#ZERO} for
-     *            no waiting
-     * @return
+     * @return true if there is enough space for the record
      */
-    public synchronized List<byte[]> drain(int maxCount, int maxSize, Duration maxWait) {
+    private boolean makeRoom(int recordLength, int level) {
+        if (recordLength > capacity)
+            return false;
+        switch (overflowPolicy) {
+        case DISCARD:
+            return false;
+        case BLOCK:
+            return waitForSpace(recordLength);
+        case DROP_OLDEST:
+            return evict(recordLength, false, 0);
+        case DROP_LOWEST_LEVEL:
+            return evict(recordLength, true, level & 0xFF);
+        default:
+            throw new UnsupportedOperationException("Unknown overflow policy " + overflowPolicy);
+        }
+    }
 
-        waitUntilElementsAvailable(maxWait);
-        if (available == 0)
-            return Collections.emptyList();
+    private boolean waitForSpace(int recordLength) {
+        long end = System.nanoTime() + maxBlockTime.toNanos();
+        waitingProducers++;
+        try {
+            while (available + recordLength > capacity) {
+                long remaining = end - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            // don't fail the logging thread, discard the element instead
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waitingProducers--;
+        }
+    }
 
-        if (available == this.capacity) {
-            // notify all waiting threads, since the queue was full before
-            notifyAll();
+    /**
+     * Evict records which have not been drained yet, to make room for a record
+     * of the given length. Since drained batches are read without holding the
+     * lock, their records cannot be moved. The records following the evicted
+     * ones are therefore moved towards the start of the undrained records. To
+     * amortize the copying, additional records are evicted, up to 1/16 of the
+     * capacity.
+     * 
+     * @param byLevel
+     *            if true, records with lower levels are evicted first, and
+     *            only records up to the given level are evicted. Otherwise the
+     *            oldest records are evicted
+     * @return true if there is enough space for the record
+     */
+    private boolean evict(int recordLength, boolean byLevel, int maxLevel) {
+        int needed = available + recordLength - capacity;
+        int undrained = available - peeked;
+        int start = buffer.wrap(writePos - undrained + capacity);
+
+        // records with a lower level than the threshold level are evicted,
+        // the oldest records with the threshold level until the quota is
+        // reached, plus some slack
+        int thresholdLevel = 0;
+        int quota;
+        int slack = capacity / 16;
+        if (byLevel) {
+            Arrays.fill(bytesPerLevel, 0);
+            int pos = start;
+            for (int remaining = undrained; remaining > 0;) {
+                int elementLength = buffer.getVarInt(pos);
+                int length = recordLength(elementLength);
+                bytesPerLevel[recordLevel(pos, elementLength)] += length;
+                pos = buffer.wrap(pos + length);
+                remaining -= length;
+            }
+            int lowerLevelBytes = 0;
+            while (lowerLevelBytes + bytesPerLevel[thresholdLevel] < needed) {
+                lowerLevelBytes += bytesPerLevel[thresholdLevel];
+                thresholdLevel++;
+                if (thresholdLevel > maxLevel)
+                    return false;
+            }
+            quota = needed - lowerLevelBytes;
+        } else {
+            if (undrained < needed)
+                return false;
+            quota = needed;
         }
 
-        List<byte[]> result = new ArrayList<>();
+        // evict the records, moving the remaining ones
+        int src = start;
+        int dst = start;
+        int keptBytes = 0;
+        int evictedCount = 0;
+        int tail = 0;
+        boolean evictThreshold = true;
+        for (int remaining = undrained; remaining > 0;) {
+            int elementLength = buffer.getVarInt(src);
+            int length = recordLength(elementLength);
+            boolean block = isBlock(src, elementLength);
+            int level = byLevel ? recordLevel(src, elementLength) : 0;
+            boolean evict;
+            if (level == thresholdLevel) {
+                evict = evictThreshold && (quota > 0 || length <= quota + slack);
+                if (evict)
+                    quota -= length;
+                else
+                    evictThreshold = false;
+            } else
+                evict = level < thresholdLevel;
+            if (evict) {
+                evictedCount += block ? readBlock(src, elementLength).count : 1;
+                if (peeked == 0 && keptBytes == 0) {
+                    // evicting from the start of the buffer, no need to move
+                    dst = buffer.wrap(src + length);
+                }
+            } else {
+                if (src != dst)
+                    buffer.copy(src, dst, length);
+                dst = buffer.wrap(dst + length);
+                keptBytes += length;
+                tail = block ? 0 : tail + length;
+            }
+            src = buffer.wrap(src + length);
+            remaining -= length;
+        }
+        writePos = dst;
+        available = peeked + keptBytes;
+        availableElements -= evictedCount;
+        uncompressedTail = tail;
+        storeCursors();
+        evictionListener.accept(evictedCount);
+        return available + recordLength <= capacity;
+    }
 
-        int elementLengthSum = 0;
+    private int levelAt(int pos, int elementLength) {
+        return buffer.get(buffer.wrap(pos + varIntLength(elementLength))) & 0xFF;
+    }
 
-        do {
+    private boolean isBlock(int pos, int elementLength) {
+        return levelAt(pos, elementLength) == BLOCK_LEVEL;
+    }
 
-            int elementLength;
-            {
-                int oldAvailable = available;
-                elementLength = readInt();
-                elementLengthSum += elementLength;
+    /**
+     * Level of a record, which is the highest level of the elements for blocks
+     */
+    private int recordLevel(int pos, int elementLength) {
+        int level = levelAt(pos, elementLength);
+        if (level == BLOCK_LEVEL)
+            return buffer.get(buffer.wrap(pos + varIntLength(elementLength) + 1)) & 0xFF;
+        return level;
+    }
 
-                // don't break when retrieving first element
-                if (maxSize >= 0 && !result.isEmpty() && elementLengthSum > maxSize) {
-                    available = oldAvailable;
+    /**
+     * Header of a compressed block
+     */
+    private static class Block {
+        int count;
+        int elementBytes;
+        int uncompressedLength;
+        int dataPos;
+        int dataLength;
+    }
+
+    /**
+     * Read the header of the block stored in a record
+     */
+    private Block readBlock(int pos, int elementLength) {
+        Block block = new Block();
+        int elementPos = buffer.wrap(pos + varIntLength(elementLength) + 1);
+        int p = buffer.wrap(elementPos + 1);
+        block.count = buffer.getVarInt(p);
+        p = buffer.wrap(p + varIntLength(block.count));
+        block.elementBytes = buffer.getVarInt(p);
+        p = buffer.wrap(p + varIntLength(block.elementBytes));
+        block.uncompressedLength = buffer.getVarInt(p);
+        p = buffer.wrap(p + varIntLength(block.uncompressedLength));
+        block.dataPos = p;
+        block.dataLength = elementLength - (p - elementPos + (p < elementPos ? capacity : 0));
+        return block;
+    }
+
+    /**
+     * Enable the compression of the records at the end of the buffer into
+     * blocks by {@link #compact()}.
+     * 
+     * @param blockSize
+     *            number of bytes of records compressed into a single block,
+     *            0 to disable compaction. Blocks already compressed are kept.
+     */
+    public synchronized void setCompactionBlockSize(int blockSize) {
+        if (compressor != null)
+            compressor.end();
+        this.blockSize = blockSize;
+        compressor = blockSize > 0 ? new BufferBlockCompressor() : null;
+    }
+
+    /**
+     * Wait until the records at the end of the buffer which have not been
+     * compressed yet fill a block, or the maximum wait time passed
+     * 
+     * @return true if {@link #compact()} would compress a block
+     */
+    public synchronized boolean awaitCompactable(Duration maxWait) throws InterruptedException {
+        long end = System.nanoTime() + maxWait.toNanos();
+        waitingCompactors++;
+        try {
+            while (compressor == null || uncompressedTail < blockSize) {
+                long remaining = end - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        } finally {
+            waitingCompactors--;
+        }
+    }
+
+    /**
+     * Compress the records at the end of the buffer which have not been drained
+     * yet into blocks. Only full blocks are compressed, the remaining records
+     * are moved behind the blocks. If the records of a block cannot be
+     * compressed, they are kept as they are. Producers wait while the blocks
+     * are compressed, thus at most {@link #MAX_COMPACTION_BLOCKS} blocks are
+     * compressed by a single invocation.
+     * 
+     * @return true if records have been compressed
+     */
+    public synchronized boolean compact() {
+        if (compressor == null || uncompressedTail < blockSize)
+            return false;
+        int src = buffer.wrap(writePos - uncompressedTail + capacity);
+        int dst = src;
+        int remaining = uncompressedTail;
+        for (int i = 0; i < MAX_COMPACTION_BLOCKS && remaining >= blockSize; i++) {
+            // collect the records of the block, at least one
+            int pos = src;
+            int length = 0;
+            int count = 0;
+            int elementBytes = 0;
+            int maxLevel = 0;
+            while (length < remaining) {
+                int elementLength = buffer.getVarInt(pos);
+                int recordLength = recordLength(elementLength);
+                if (count > 0 && length + recordLength > blockSize)
                     break;
-                }
+                maxLevel = Math.max(maxLevel, levelAt(pos, elementLength));
+                length += recordLength;
+                elementBytes += elementLength;
+                count++;
+                pos = buffer.wrap(pos + recordLength);
             }
 
-            int firstSlot = writePos - available;
-            if (firstSlot < 0)
-                firstSlot += capacity;
+            // the records are read before the block is written, and the block
+            // is smaller than the records
+            int dataLength = compressor.compress(buffer, src, length);
+            int elementLength = 1 + varIntLength(count) + varIntLength(elementBytes) + varIntLength(length)
+                    + dataLength;
+            if (recordLength(elementLength) < length) {
+                dst = buffer.putVarInt(dst, elementLength);
+                buffer.put(dst, (byte) BLOCK_LEVEL);
+                dst = buffer.wrap(dst + 1);
+                buffer.put(dst, (byte) maxLevel);
+                dst = buffer.wrap(dst + 1);
+                dst = buffer.putVarInt(dst, count);
+                dst = buffer.putVarInt(dst, elementBytes);
+                dst = buffer.putVarInt(dst, length);
+                dst = buffer.put(dst, compressor.output(), 0, dataLength);
+            } else {
+                if (src != dst)
+                    buffer.copy(src, dst, length);
+                dst = buffer.wrap(dst + length);
+            }
+            src = pos;
+            remaining -= length;
+        }
 
-            // read element
-            byte[] element = new byte[elementLength];
+        if (src != dst)
+            buffer.copy(src, dst, remaining);
+        int newWritePos = buffer.wrap(dst + remaining);
+        int freed = writePos - newWritePos;
+        if (freed < 0)
+            freed += capacity;
+        if (waitingProducers > 0)
+            notifyAll();
+        writePos = newWritePos;
+        available -= freed;
+        uncompressedTail = remaining;
+        storeCursors();
+        return true;
+    }
 
-            if (firstSlot + elementLength <= capacity) {
-                // all elements are in one chunk
-                System.arraycopy(buffer, firstSlot, element, 0, elementLength);
-                firstSlot += elementLength;
-            } else {
-                // there is a wrap around
+    @Override
+    public synchronized EsIndexRequestBatch drainBatch(int maxCount, int maxSize, Duration maxWait) {
+        waitUntilElementsAvailable(maxWait);
+        return drainAvailable(maxCount, maxSize, false);
+    }
+
+    /**
+     * Drain elements without waiting. In contrast to
+     * {@link #drainBatch(int, int, Duration)}, the size limit applies to the
+     * first element as well. Used to fill up a batch containing elements of
+     * other buffers.
+     */
+    synchronized EsIndexRequestBatch drainBatchStrict(int maxCount, int maxSize) {
+        return drainAvailable(maxCount, maxSize, true);
+    }
 
-                // copy the elements up to the end of elements
-                int firstChunkLength = capacity - firstSlot;
-                int secondChunkLength = elementLength - firstChunkLength;
+    private EsIndexRequestBatch drainAvailable(int maxCount, int maxSize, boolean limitFirst) {
+        if (available == peeked)
+            return EsIndexRequestBatch.EMPTY;
 
-                System.arraycopy(buffer, firstSlot, element, 0, firstChunkLength);
+        int start = writePos - available + peeked;
+        if (start < 0)
+            start += capacity;
 
-                // copy the remaining elements from the start of elements
-                System.arraycopy(buffer, 0, element, firstChunkLength, secondChunkLength);
-                firstSlot = secondChunkLength;
+        int pos = start;
+        int records = 0;
+        int count = 0;
+        int elementLengthSum = 0;
+        int recordLengthSum = 0;
+        do {
+            int elementLength = buffer.getVarInt(pos);
+            int elementCount = 1;
+            int elementBytes = elementLength;
+            if (isBlock(pos, elementLength)) {
+                Block block = readBlock(pos, elementLength);
+                elementCount = block.count;
+                elementBytes = block.elementBytes;
             }
-            result.add(element);
-            available -= elementLength;
-            availableElements--;
-        } while (available > 0 && result.size() < maxCount);
 
-        return result;
+            // don't break when retrieving first element, unless requested
+            if (count > 0 || limitFirst) {
+                if (maxSize >= 0 && elementLengthSum + elementBytes > maxSize)
+                    break;
+                // blocks are drained as a whole
+                if (count + elementCount > maxCount)
+                    break;
+            }
 
+            int recordLength = recordLength(elementLength);
+            elementLengthSum += elementBytes;
+            recordLengthSum += recordLength;
+            count += elementCount;
+            records++;
+            pos += recordLength;
+            if (pos >= capacity)
+                pos -= capacity;
+        } while (peeked + recordLengthSum < available && count < maxCount);
+
+        if (count == 0)
+            return EsIndexRequestBatch.EMPTY;
+        peeked += recordLengthSum;
+        peekedElements += count;
+        uncompressedTail = Math.min(uncompressedTail, available - peeked);
+        return new Batch(start, records, count, elementLengthSum, recordLengthSum);
+    }
+
+    @Override
+    public synchronized void release(EsIndexRequestBatch batch) {
+        if (batch.isEmpty())
+            return;
+        Batch b = (Batch) batch;
+        int readPos = writePos - available;
+        if (readPos < 0)
+            readPos += capacity;
+        if (b.start != readPos)
+            throw new IllegalStateException("Batches have to be released in the order they were drained");
+
+        if (available == this.capacity || waitingProducers > 0) {
+            // notify all waiting threads, since the queue was full before
+            notifyAll();
+        }
+        available -= b.recordLengthSum;
+        peeked -= b.recordLengthSum;
+        peekedElements -= b.size();
+        availableElements -= b.size();
+        storeCursors();
+    }
+
+    private void storeCursors() {
+        int readPos = writePos - available;
+        if (readPos < 0)
+            readPos += capacity;
+        buffer.storeCursors(readPos, available);
+    }
+
+    private class Batch extends EsIndexRequestBatch {
+        final int start;
+        final int records;
+        final int recordLengthSum;
+
+        /**
+         * Decompressed blocks by record index, created when first visited
+         */
+        private BufferStorage[] blocks;
+
+        Batch(int start, int records, int size, int elementLengthSum, int recordLengthSum) {
+            super(size, elementLengthSum);
+            this.start = start;
+            this.records = records;
+            this.recordLengthSum = recordLengthSum;
+        }
+
+        @Override
+        public void forEach(Consumer<EsIndexRequestElement> consumer) {
+            EsIndexRequestElement element = new EsIndexRequestElement();
+            int pos = start;
+            for (int i = 0; i < records; i++) {
+                int elementLength = buffer.getVarInt(pos);
+                if (isBlock(pos, elementLength)) {
+                    BufferStorage block = decompressedBlock(i, pos, elementLength);
+                    for (int blockPos = 0; blockPos < block.capacity();) {
+                        int length = block.getVarInt(blockPos);
+                        element.set(block, blockPos + varIntLength(length) + 1, length);
+                        consumer.accept(element);
+                        blockPos += recordLength(length);
+                    }
+                    pos += recordLength(elementLength);
+                    if (pos >= capacity)
+                        pos -= capacity;
+                    continue;
+                }
+                pos += varIntLength(elementLength) + 1;
+                if (pos >= capacity)
+                    pos -= capacity;
+                element.set(buffer, pos, elementLength);
+                consumer.accept(element);
+                pos += elementLength;
+                if (pos >= capacity)
+                    pos -= capacity;
+            }
+        }
+
+        private synchronized BufferStorage decompressedBlock(int record, int pos, int elementLength) {
+            if (blocks == null)
+                blocks = new BufferStorage[records];
+            if (blocks[record] == null) {
+                Block block = readBlock(pos, elementLength);
+                blocks[record] = new HeapBufferStorage(BufferBlockCompressor.decompress(buffer, block.dataPos,
+                        block.dataLength, block.uncompressedLength));
+            }
+            return blocks[record];
+        }
     }
 
     private void waitUntilElementsAvailable(Duration maxWait) {
@@ -163,7 +690,7 @@ public class EsIndexRequestRingBuffer {
             actualWait = maxWait;
         }
 
-        if (available == 0) {
+        if (available == peeked && !wakeUpRequested) {
             Instant now = Instant.now();
             Instant end = now.plus(actualWait);
             while (true) {
@@ -174,43 +701,99 @@ public class EsIndexRequestRingBuffer {
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
                 }
-                if (available > 0)
+                if (available > peeked || wakeUpRequested)
                     break;
                 now = Instant.now();
                 if (now.isAfter(end))
                     break;
             }
         }
+        wakeUpRequested = false;
+    }
+
+    @Override
+    public synchronized boolean awaitElements(int minCount, int minBytes, Duration maxWait) {
+        long end = System.nanoTime() + maxWait.toNanos();
+        consumerAwaiting = true;
+        try {
+            while (!drainableReached(minCount, minBytes) && !wakeUpRequested) {
+                long remaining = end - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            consumerAwaiting = false;
+            wakeUpRequested = false;
+        }
+        return drainableReached(minCount, minBytes);
+    }
+
+    private boolean drainableReached(int minCount, int minBytes) {
+        return drainableElements() >= minCount || drainableBytes() >= minBytes;
+    }
+
+    /**
+     * Number of elements which are not part of a drained batch
+     */
+    synchronized int drainableElements() {
+        return availableElements - peekedElements;
+    }
+
+    /**
+     * Number of bytes used by the elements which are not part of a drained
+     * batch, including the framing
+     */
+    synchronized int drainableBytes() {
+        return available - peeked;
     }
 
+    @Override
+    public synchronized void wakeUp() {
+        wakeUpRequested = true;
+        notifyAll();
+    }
+
+    @Override
     public synchronized void reset() {
         this.writePos = 0;
         this.available = 0;
         availableElements = 0;
+        peeked = 0;
+        peekedElements = 0;
+        uncompressedTail = 0;
+        buffer.storeCursors(0, 0);
     }
 
+    @Override
     public synchronized double usedCapacityFraction() {
         return ((double) available) / capacity;
     }
 
+    @Override
     public synchronized int capacity() {
         return this.capacity;
     }
 
+    @Override
     public synchronized int available() {
         return this.available;
     }
 
+    @Override
     public synchronized int availableElements() {
         return this.availableElements;
     }
 
+    @Override
     public int remainingCapacity() {
         return this.capacity - this.available;
     }
 
     void setBufferContents(byte[] bb) {
-        System.arraycopy(bb, 0, buffer, 0, bb.length);
+        buffer.put(0, bb, 0, bb.length);
         writePos = bb.length;
         available = bb.length;
     }
@@ -219,39 +802,30 @@ public class EsIndexRequestRingBuffer {
         int firstSlot = writePos - available;
         if (firstSlot < 0)
             firstSlot += capacity;
+        int result = buffer.getVarInt(firstSlot);
+        available -= varIntLength(result);
+        return result;
+    }
 
-        // first byte
-        byte b = buffer[firstSlot++];
-        available--;
-        if ((b & 0x80) == 0) {
-            return b;
-        }
-        int result = b & 0x7f;
-
-        // second byte
-        if (firstSlot >= capacity)
-            firstSlot -= capacity;
-        b = buffer[firstSlot++];
-        available--;
-        result |= (b & 0x7f) << 7;
-        if ((b & 0x80) == 0) {
-            return result;
-        }
-
-        // remaining bytes
-        if (firstSlot >= capacity)
-            firstSlot -= capacity;
-        b = buffer[firstSlot++];
-        available--;
-        result |= (b << 14) & (0xff << 14);
-
-        if (firstSlot >= capacity)
-            firstSlot -= capacity;
-        b = buffer[firstSlot++];
-        available--;
-        result |= (b << 22) & (0xff << 22);
+    /**
+     * Number of bytes used by a record containing an element of the given
+     * length
+     */
+    static int recordLength(int elementLength) {
+        return varIntLength(elementLength) + 1 + elementLength;
+    }
 
-        return result;
+    /**
+     * Number of bytes used by the variable length encoding of the given value
+     */
+    static int varIntLength(int i) {
+        if ((i & ~0x7F) == 0)
+            return 1;
+        if ((i & ~0x3FFF) == 0)
+            return 2;
+        if ((i & ~0x3FFFFFFF) == 0)
+            return 4;
+        throw new ArithmeticException("Length is more than 2**29");
     }
 
     byte[] intToBytes(int i) {
@@ -0,0 +1,378 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Buffer consisting of multiple {@link EsIndexRequestRingBuffer} stripes. Each
+ * producing thread always puts its elements into the same stripe, such that
+ * threads putting concurrently mostly use different stripes and do not contend
+ * for the same monitor and cache lines. The elements put by a single thread
+ * keep their order.
+ *
+ * <p>
+ * The consumer drains the stripes round-robin into a single batch. Since a
+ * thread is bound to its stripe, an element is discarded if the stripe of the
+ * thread is full, even if other stripes have space remaining. The
+ * {@link EsIndexRequestBuffer.OverflowPolicy} is applied to each stripe
+ * separately.
+ */
+public class EsIndexRequestStripedBuffer implements EsIndexRequestBuffer {
+
+    private final EsIndexRequestRingBuffer[] stripes;
+    private final int capacity;
+
+    /**
+     * Stripe to start draining the next batch from. Only accessed by the
+     * consumer.
+     */
+    private int nextStripe;
+
+    /**
+     * Set while the consumer waits for elements to become available
+     */
+    private volatile Thread waitingConsumer;
+
+    /**
+     * Set by {@link #wakeUp()}, cleared when the consumer stops waiting
+     */
+    private volatile boolean wakeUpRequested;
+
+    /**
+     * Per stripe, the number of drainable elements and bytes at which a
+     * producer putting into the stripe unparks the {@link #waitingConsumer}.
+     * Set by the consumer before parking, such that the consumer is only woken
+     * up once the awaited elements might be available, instead of on every
+     * put.
+     */
+    private final AtomicIntegerArray wakeUpElements;
+    private final AtomicIntegerArray wakeUpBytes;
+
+    /**
+     * Drainable elements and bytes of each stripe when arming the wake up.
+     * Only accessed by the consumer.
+     */
+    private final int[] armedElements;
+    private final int[] armedBytes;
+
+    /**
+     * Stripes and parts of the batch being drained. Only accessed by the
+     * consumer.
+     */
+    private final EsIndexRequestRingBuffer[] drainedStripes;
+    private final EsIndexRequestBatch[] drainedParts;
+
+    /**
+     * Create a buffer splitting the capacity evenly among the given number of
+     * stripes
+     */
+    public EsIndexRequestStripedBuffer(int capacity, int stripeCount) {
+        this(stripeCount, i -> new HeapBufferStorage(capacity / stripeCount));
+    }
+
+    /**
+     * Create a buffer with the given number of stripes, using the storage
+     * created by the factory for each stripe
+     */
+    public EsIndexRequestStripedBuffer(int stripeCount, IntFunction<BufferStorage> storageFactory) {
+        if (stripeCount <= 0)
+            throw new IllegalArgumentException("Stripe count has to be positive but was " + stripeCount);
+        stripes = new EsIndexRequestRingBuffer[stripeCount];
+        int capacity = 0;
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new EsIndexRequestRingBuffer(storageFactory.apply(i));
+            capacity += stripes[i].capacity();
+        }
+        this.capacity = capacity;
+        wakeUpElements = new AtomicIntegerArray(stripeCount);
+        wakeUpBytes = new AtomicIntegerArray(stripeCount);
+        armedElements = new int[stripeCount];
+        armedBytes = new int[stripeCount];
+        drainedStripes = new EsIndexRequestRingBuffer[stripeCount];
+        drainedParts = new EsIndexRequestBatch[stripeCount];
+    }
+
+    @Override
+    public boolean put(int level, byte[]... elementParts) {
+        int index = stripeIndex();
+        if (!stripes[index].put(level, elementParts))
+            return false;
+        signalConsumer(index);
+        return true;
+    }
+
+    @Override
+    public boolean put(int level, byte[] element, int offset, int length) {
+        int index = stripeIndex();
+        if (!stripes[index].put(level, element, offset, length))
+            return false;
+        signalConsumer(index);
+        return true;
+    }
+
+    @Override
+    public boolean put(int level, byte[] header, int headerLength, CharSequence payload) {
+        int index = stripeIndex();
+        if (!stripes[index].put(level, header, headerLength, payload))
+            return false;
+        signalConsumer(index);
+        return true;
+    }
+
+    @Override
+    public void setOverflowPolicy(OverflowPolicy policy, Duration maxBlockTime) {
+        for (EsIndexRequestRingBuffer stripe : stripes) {
+            stripe.setOverflowPolicy(policy, maxBlockTime);
+        }
+    }
+
+    @Override
+    public void setEvictionListener(IntConsumer listener) {
+        for (EsIndexRequestRingBuffer stripe : stripes) {
+            stripe.setEvictionListener(listener);
+        }
+    }
+
+    private int stripeIndex() {
+        return (int) (Thread.currentThread().getId() % stripes.length);
+    }
+
+    /**
+     * Unpark the waiting consumer if the wake up thresholds of the given
+     * stripe are reached
+     */
+    private void signalConsumer(int index) {
+        Thread consumer = waitingConsumer;
+        if (consumer == null)
+            return;
+        EsIndexRequestRingBuffer stripe = stripes[index];
+        if (stripe.drainableElements() >= wakeUpElements.get(index)
+                || stripe.drainableBytes() >= wakeUpBytes.get(index))
+            LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Set the wake up thresholds of the stripes before parking the consumer.
+     * If the total is short of the awaited elements by n, at least one stripe
+     * has to receive n divided by the number of stripes before the total can
+     * be reached, thus each stripe wakes up the consumer after receiving that
+     * share. The consumer then rearms the thresholds with the remaining
+     * shortfall.
+     *
+     * @return true if the awaited elements are drainable already
+     */
+    private boolean armWakeUp(int minCount, int minBytes) {
+        long count = 0;
+        long bytes = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            armedElements[i] = stripes[i].drainableElements();
+            armedBytes[i] = stripes[i].drainableBytes();
+            count += armedElements[i];
+            bytes += armedBytes[i];
+        }
+        if (count >= minCount || bytes >= minBytes)
+            return true;
+        long countShare = (minCount - count + stripes.length - 1) / stripes.length;
+        long bytesShare = (minBytes - bytes + stripes.length - 1) / stripes.length;
+        boolean reached = false;
+        for (int i = 0; i < stripes.length; i++) {
+            int elementThreshold = (int) Math.min(Integer.MAX_VALUE, armedElements[i] + countShare);
+            int bytesThreshold = (int) Math.min(Integer.MAX_VALUE, armedBytes[i] + bytesShare);
+            wakeUpElements.set(i, elementThreshold);
+            wakeUpBytes.set(i, bytesThreshold);
+            // a producer which put before the threshold was set might have
+            // missed it
+            if (stripes[i].drainableElements() >= elementThreshold
+                    || stripes[i].drainableBytes() >= bytesThreshold)
+                reached = true;
+        }
+        if (reached)
+            LockSupport.unpark(Thread.currentThread());
+        return false;
+    }
+
+    @Override
+    public EsIndexRequestBatch drainBatch(int maxCount, int maxSize, Duration maxWait) {
+        EsIndexRequestBatch batch = drainAvailable(maxCount, maxSize);
+        if (!batch.isEmpty() || (maxWait != null && maxWait.isZero()))
+            return batch;
+
+        long end = maxWait == null ? 0 : System.nanoTime() + maxWait.toNanos();
+        waitingConsumer = Thread.currentThread();
+        try {
+            // the stripes have to be checked after registering as waiting
+            // consumer to avoid missing a wakeup
+            while (true) {
+                batch = drainAvailable(maxCount, maxSize);
+                if (!batch.isEmpty() || wakeUpRequested)
+                    return batch;
+                if (Thread.interrupted())
+                    throw new RuntimeException(new InterruptedException());
+                if (armWakeUp(1, Integer.MAX_VALUE))
+                    continue;
+                if (maxWait == null) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = end - System.nanoTime();
+                    if (remaining <= 0)
+                        return batch;
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+        } finally {
+            waitingConsumer = null;
+            wakeUpRequested = false;
+        }
+    }
+
+    @Override
+    public boolean awaitElements(int minCount, int minBytes, Duration maxWait) {
+        if (drainableReached(minCount, minBytes))
+            return true;
+        long end = System.nanoTime() + maxWait.toNanos();
+        waitingConsumer = Thread.currentThread();
+        try {
+            // the stripes have to be checked after registering as waiting
+            // consumer to avoid missing a wakeup
+            while (!wakeUpRequested) {
+                if (Thread.interrupted())
+                    throw new RuntimeException(new InterruptedException());
+                if (armWakeUp(minCount, minBytes))
+                    break;
+                long remaining = end - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            waitingConsumer = null;
+            wakeUpRequested = false;
+        }
+        return drainableReached(minCount, minBytes);
+    }
+
+    private boolean drainableReached(int minCount, int minBytes) {
+        int count = 0;
+        int bytes = 0;
+        for (EsIndexRequestRingBuffer stripe : stripes) {
+            count += stripe.drainableElements();
+            bytes += stripe.drainableBytes();
+        }
+        return count >= minCount || bytes >= minBytes;
+    }
+
+    @Override
+    public void wakeUp() {
+        wakeUpRequested = true;
+        Thread consumer = waitingConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Drain the available elements of the stripes, without waiting. Nothing is
+     * allocated if no element is available.
+     */
+    private EsIndexRequestBatch drainAvailable(int maxCount, int maxSize) {
+        int partCount = 0;
+        int count = 0;
+        int elementBytes = 0;
+        int start = nextStripe;
+        for (int i = 0; i < stripes.length && count < maxCount; i++) {
+            EsIndexRequestRingBuffer stripe = stripes[(start + i) % stripes.length];
+            EsIndexRequestBatch part;
+            if (count == 0)
+                part = stripe.drainBatch(maxCount, maxSize, Duration.ZERO);
+            else
+                part = stripe.drainBatchStrict(maxCount - count,
+                        maxSize < 0 ? -1 : Math.max(0, maxSize - elementBytes));
+            if (part.isEmpty())
+                continue;
+            drainedStripes[partCount] = stripe;
+            drainedParts[partCount] = part;
+            partCount++;
+            count += part.size();
+            elementBytes += part.elementBytes();
+        }
+        nextStripe = (start + 1) % stripes.length;
+        if (partCount == 0)
+            return EsIndexRequestBatch.EMPTY;
+        StripedBatch batch = new StripedBatch(Arrays.copyOf(drainedStripes, partCount),
+                Arrays.copyOf(drainedParts, partCount), count, elementBytes);
+        Arrays.fill(drainedParts, 0, partCount, null);
+        return batch;
+    }
+
+    @Override
+    public void release(EsIndexRequestBatch batch) {
+        if (batch.isEmpty())
+            return;
+        StripedBatch b = (StripedBatch) batch;
+        for (int i = 0; i < b.parts.length; i++) {
+            b.buffers[i].release(b.parts[i]);
+        }
+    }
+
+    private static class StripedBatch extends EsIndexRequestBatch {
+        final EsIndexRequestRingBuffer[] buffers;
+        final EsIndexRequestBatch[] parts;
+
+        StripedBatch(EsIndexRequestRingBuffer[] buffers, EsIndexRequestBatch[] parts, int size, int elementBytes) {
+            super(size, elementBytes);
+            this.buffers = buffers;
+            this.parts = parts;
+        }
+
+        @Override
+        public void forEach(Consumer<EsIndexRequestElement> consumer) {
+            for (EsIndexRequestBatch part : parts) {
+                part.forEach(consumer);
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (EsIndexRequestRingBuffer stripe : stripes) {
+            stripe.reset();
+        }
+    }
+
+    @Override
+    public double usedCapacityFraction() {
+        return ((double) available()) / capacity;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public int available() {
+        int result = 0;
+        for (EsIndexRequestRingBuffer stripe : stripes) {
+            result += stripe.available();
+        }
+        return result;
+    }
+
+    @Override
+    public int availableElements() {
+        int result = 0;
+        for (EsIndexRequestRingBuffer stripe : stripes) {
+            result += stripe.availableElements();
+        }
+        return result;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - available();
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns ids to the (index, type) pairs of the queued documents, such that the
+ * elements stored in a {@link EsIndexRequestBuffer} only contain the id instead
+ * of the names. Ids are never reused, thus an id stays valid as long as the
+ * dictionary exists. Looking up the id of a known pair does not allocate.
+ *
+ * <p>
+ * The id {@link #INLINE_ID} is reserved for elements which contain the names
+ * themselves. It is returned once the maximum size is reached, which limits
+ * the memory used if the index pattern creates a lot of indices. Unknown
+ * pairs of a full dictionary are not looked up while holding the lock.
+ */
+public class EsIndexTypeDictionary {
+
+    /**
+     * Id of elements containing the index and type names
+     */
+    public static final int INLINE_ID = 0;
+
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    private static final byte[] ACTION_START = "{\"index\":{\"_index\":".getBytes(utf8);
+    private static final byte[] TYPE_START = ",\"_type\":".getBytes(utf8);
+    private static final byte[] ACTION_END = "}}\n".getBytes(utf8);
+
+    /**
+     * Index and type registered under an id
+     */
+    public static class Entry {
+        public final String index;
+        public final String type;
+
+        /**
+         * Action line of the bulk request body used to index a document into
+         * the index and type, including the trailing newline
+         */
+        final byte[] actionLine;
+
+        Entry(String index, String type) {
+            this.index = index;
+            this.type = type;
+            EsLogRecordWriter writer = new EsLogRecordWriter(null);
+            writer.writeRaw(ACTION_START);
+            writer.writeString(index);
+            writer.writeRaw(TYPE_START);
+            writer.writeString(type);
+            writer.writeRaw(ACTION_END);
+            actionLine = writer.toByteArray();
+        }
+    }
+
+    private final int maxSize;
+
+    /**
+     * Ids by index and type
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> ids = new ConcurrentHashMap<>();
+
+    /**
+     * Entries by id. Replaced when growing, the entries are set before the id
+     * is published.
+     */
+    private volatile Entry[] entries = new Entry[16];
+
+    /**
+     * Number of registered entries. Guarded by this.
+     */
+    private int size;
+
+    /**
+     * Set once the maximum size is reached
+     */
+    private volatile boolean full;
+
+    public EsIndexTypeDictionary() {
+        this(1024);
+    }
+
+    public EsIndexTypeDictionary(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the id of an index and type, registering them if necessary
+     *
+     * @return the id, or {@link #INLINE_ID} if the dictionary is full
+     */
+    public int id(String index, String type) {
+        ConcurrentHashMap<String, Integer> types = ids.get(index);
+        if (types != null) {
+            Integer id = types.get(type);
+            if (id != null)
+                return id;
+        }
+        if (full)
+            return INLINE_ID;
+        return register(index, type);
+    }
+
+    private synchronized int register(String index, String type) {
+        ConcurrentHashMap<String, Integer> types = ids.get(index);
+        Integer existing = types == null ? null : types.get(type);
+        if (existing != null)
+            return existing;
+        if (size >= maxSize) {
+            full = true;
+            return INLINE_ID;
+        }
+        if (types == null) {
+            types = new ConcurrentHashMap<>();
+            ids.put(index, types);
+        }
+        int id = size + 1;
+        Entry[] newEntries = entries;
+        if (id >= newEntries.length)
+            newEntries = Arrays.copyOf(newEntries, newEntries.length * 2);
+        newEntries[id] = new Entry(index, type);
+        entries = newEntries;
+        size++;
+        types.put(type, id);
+        return id;
+    }
+
+    /**
+     * Get the entry of an id returned by {@link #id(String, String)}
+     */
+    public Entry get(int id) {
+        Entry[] entries = this.entries;
+        Entry entry = id > 0 && id < entries.length ? entries[id] : null;
+        if (entry == null)
+            throw new IllegalArgumentException("Unknown index/type id " + id);
+        return entry;
+    }
+
+    /**
+     * Number of registered (index, type) pairs
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
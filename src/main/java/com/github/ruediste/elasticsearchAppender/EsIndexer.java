@@ -1,36 +1,43 @@
 package com.github.ruediste.elasticsearchAppender;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.nio.charset.Charset;
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
+import com.github.ruediste.elasticsearchAppender.EsIndexRequestBuffer.OverflowPolicy;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.gson.Gson;
 
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestClientFactory;
 import io.searchbox.client.config.HttpClientConfig;
 import io.searchbox.client.http.JestHttpClient;
 import io.searchbox.core.Bulk;
-import io.searchbox.core.BulkResult;
-import io.searchbox.core.BulkResult.BulkResultItem;
 import io.searchbox.core.Index;
 
 /**
- * Read from a {@link EsIndexRequestRingBuffer}
+ * Read from a {@link EsIndexRequestBuffer}
  * 
  * <img src="doc-files/overview.png" alt="">
  */
@@ -39,7 +46,13 @@ public class EsIndexer implements EsIndexerMBean {
 	private static final Charset utf8 = Charset.forName("UTF-8");
 	private static final AtomicInteger nextThreadNr = new AtomicInteger();
 
-	EsIndexRequestRingBuffer buffer;
+	EsIndexRequestBuffer buffer;
+
+	/**
+	 * Buffer of the priority lane, null if {@link #priorityCapacity} is zero
+	 */
+	EsIndexRequestBuffer priorityBuffer;
+	private final List<BufferStorage> storages = new ArrayList<>();
 
 	/**
 	 * Name of the thread to perform the index requests. If null, a thread name will
@@ -52,17 +65,172 @@ public class EsIndexer implements EsIndexerMBean {
 	 */
 	public int capacity = 10 * 1024 * 1024;
 
+	/**
+	 * Part of the {@link #capacity} reserved for a priority lane, holding the
+	 * events with at least the {@link #priorityLevel}. The priority lane is
+	 * always drained first, and is not delayed by the events in the other lane.
+	 * Defaults to 0, which disables the priority lane.
+	 */
+	public int priorityCapacity = 0;
+
+	/**
+	 * Minimum level of the events put into the priority lane, see
+	 * {@link EsAppenderHelper#level(String)}. Defaults to WARN
+	 */
+	public int priorityLevel = EsAppenderHelper.level("WARN");
+
+	/**
+	 * If true, a {@link EsIndexRequestLockFreeRingBuffer} is used, allowing
+	 * logging threads to put events without contending for a lock. Defaults to
+	 * false
+	 */
+	public boolean lockFreeBuffer = false;
+
+	/**
+	 * Number of stripes to split the buffer into. Each logging thread puts its
+	 * events into one of the stripes, reducing contention between threads. See
+	 * {@link EsIndexRequestStripedBuffer}. Not supported together with the
+	 * {@link #lockFreeBuffer} and {@link BufferStorageType#MAPPED}. Defaults to
+	 * 1, which does not use striping.
+	 */
+	public int bufferStripes = 1;
+
+	/**
+	 * Action taken if an event is queued while the buffer is full. Only
+	 * {@link OverflowPolicy#DISCARD} is supported by the {@link #lockFreeBuffer}.
+	 * Defaults to {@link OverflowPolicy#DISCARD}
+	 */
+	public OverflowPolicy overflowPolicy = OverflowPolicy.DISCARD;
+
+	/**
+	 * Maximum time to wait for space in the buffer when using
+	 * {@link OverflowPolicy#BLOCK}. Defaults to 100ms
+	 */
+	public Duration overflowMaxBlockTime = Duration.ofMillis(100);
+
+	/**
+	 * Memory used for the buffer. Defaults to {@link BufferStorageType#HEAP}
+	 */
+	public BufferStorageType bufferStorage = BufferStorageType.HEAP;
+
+	public enum BufferStorageType {
+		/**
+		 * Use a byte array on the java heap
+		 */
+		HEAP,
+		/**
+		 * Use a direct {@link java.nio.ByteBuffer} allocated outside of the java
+		 * heap. Allows large buffers without increasing the heap size.
+		 */
+		DIRECT,
+		/**
+		 * Use the memory mapped {@link EsIndexer#bufferFile}. Events which have
+		 * not been indexed are retained across restarts. Not supported by the
+		 * {@link EsIndexer#lockFreeBuffer}.
+		 */
+		MAPPED
+	}
+
+	/**
+	 * File used by {@link BufferStorageType#MAPPED}. If null, a file in the
+	 * temp directory is derived from the {@link #name}
+	 */
+	public String bufferFile;
+
+	/**
+	 * Interval to write the contents of a {@link BufferStorageType#MAPPED}
+	 * buffer to disk. If zero, the buffer is only written when the indexer is
+	 * stopped, and by the operating system. Defaults to 1s
+	 */
+	public Duration bufferFlushInterval = Duration.ofSeconds(1);
+
 	/**
 	 * Number of documents to maximally include in a bulk. Defaults to 100
 	 */
 	public int maxBulkDocumentCount = 100;
 
+	/**
+	 * Minimum number of documents to include in a bulk. If fewer documents are
+	 * available, the indexer waits up to the {@link #lingerTime} for more
+	 * documents. Defaults to 1
+	 */
+	public int minBulkDocumentCount = 1;
+
+	/**
+	 * Maximum time to wait for the {@link #minBulkDocumentCount} or
+	 * {@link #maxBulkMemorySize} to be reached after the first document of a
+	 * bulk became available. Larger values result in fewer, larger bulks at the
+	 * cost of a higher latency. Defaults to zero, which sends all available
+	 * documents immediately
+	 */
+	public Duration lingerTime = Duration.ZERO;
+
 	/**
 	 * Maximum memory size the requests in a bulk can take up in the buffer. Avoids
 	 * sending bulks with few large documents. Initialized to 1MiB
 	 */
 	public int maxBulkMemorySize = 1 * 1024;
 
+	/**
+	 * Number of bulks which are sent to ElasticSearch concurrently. The bulks
+	 * are drained from the buffer by the indexing thread and sent by separate
+	 * worker threads. The space of a bulk is released once all bulks drained
+	 * before it have been completed. Defaults to 1, which sends the bulks from
+	 * the indexing thread
+	 */
+	public int indexingConcurrency = 1;
+
+	/**
+	 * If true, log records are stored in the buffer in a compact binary
+	 * format, and rendered to JSON while the bulk requests are sent. This
+	 * moves the JSON serialization off the logging threads. See
+	 * {@link EsLogRecordWriter#writeBinaryRecord(EsLogRecord, EsStringDictionary)}
+	 */
+	public boolean deferredRendering = false;
+
+	/**
+	 * Number of threads rendering the bodies of the bulk requests ahead of
+	 * sending them. The elements of a bulk are rendered in parallel chunks,
+	 * and the next bulk is drained and rendered while the previous one is
+	 * being sent. Only used if the bulks are sent using the built in bulk
+	 * entity. Defaults to 0, which renders each bulk while sending it
+	 */
+	public int renderingConcurrency = 0;
+
+	/**
+	 * Compression of the bulk request bodies. Only used if the bulks are sent
+	 * using the built in bulk entity. Defaults to {@link Compression#NONE}
+	 */
+	public Compression compression = Compression.NONE;
+
+	public enum Compression {
+		NONE,
+		/**
+		 * Send the bodies with the gzip content encoding
+		 */
+		GZIP,
+		/**
+		 * Send the bodies with the deflate content encoding, using the zlib
+		 * format
+		 */
+		DEFLATE
+	}
+
+	/**
+	 * Compression level from 0 to 9, see {@link Deflater#setLevel(int)}.
+	 * Defaults to {@link Deflater#DEFAULT_COMPRESSION}
+	 */
+	public int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * If true, the events in the buffer which have not been drained yet are
+	 * compressed into blocks by a background thread, such that more events can
+	 * be buffered if the indexing falls behind. See
+	 * {@link EsIndexRequestRingBuffer#compact()}. Not supported together with
+	 * the {@link #lockFreeBuffer} and {@link #bufferStripes}. Defaults to false
+	 */
+	public boolean bufferCompression = false;
+
 	/**
 	 * Time to wait while stopping until all events are processed
 	 */
@@ -88,11 +256,44 @@ public class EsIndexer implements EsIndexerMBean {
 	public String mBeanName;
 
 	/**
-	 * Client to connect to ElasticSearch. If set to null, a new client will be
-	 * created during {@link #start()} using {@link #esUrl}
+	 * Client to connect to ElasticSearch. If set to null and neither a
+	 * {@link #bulkTransport} is set nor the {@link #builtInTransport} is
+	 * enabled, a new client will be created during {@link #start()} using
+	 * {@link #esUrl}. The bulk requests of a created client are streamed from
+	 * the buffer, see {@link EsBulkEntity}, while the bulk requests of a client
+	 * set by the user are built and sent using Jest.
 	 */
 	public JestClient jestClient;
 
+	/**
+	 * Client created during {@link #start()}, if any
+	 */
+	private JestClient createdJestClient;
+
+	/**
+	 * Transport used to send the bulk requests, streamed from the buffer. If
+	 * set, no {@link #jestClient} is used.
+	 */
+	public EsBulkTransport bulkTransport;
+
+	/**
+	 * If true and neither a {@link #jestClient} nor a {@link #bulkTransport}
+	 * is set, the bulk requests are sent using a {@link EsHttpBulkTransport}
+	 * instead of a Jest client. Defaults to false
+	 */
+	public boolean builtInTransport = false;
+
+	/**
+	 * Transport the bulk requests are streamed to, null if the bulk requests
+	 * are sent using Jest
+	 */
+	private EsBulkTransport activeBulkTransport;
+
+	/**
+	 * Transport created during {@link #start()}, if any
+	 */
+	private EsBulkTransport createdBulkTransport;
+
 	/**
 	 * Name of this indexer. Used to derive other names from
 	 */
@@ -127,28 +328,169 @@ public class EsIndexer implements EsIndexerMBean {
 	}
 
 	public void queue(String index, String type, Object payload) {
-		queue(index, type, ((JestHttpClient) jestClient).getGson().toJson(payload));
+		queue(index, type, payload, EsIndexRequestBuffer.DEFAULT_LEVEL);
+	}
+
+	/**
+	 * Queue a document. The level is used by
+	 * {@link OverflowPolicy#DROP_LOWEST_LEVEL}, see
+	 * {@link EsAppenderHelper#level(String)}
+	 */
+	public void queue(String index, String type, Object payload, int level) {
+		queue(index, type, gson().toJson(payload), level);
 	}
 
 	private AtomicLong totalEventDiscardedCount = new AtomicLong();
 	private SlidingWindow eventDiscardedCount;
 
+	/**
+	 * Suppressed events, counted without locking. They are added to the
+	 * {@link #eventSuppressedCount} when it is read.
+	 */
+	private final LongAdder totalEventSuppressedCount = new LongAdder();
+	private SlidingWindow eventSuppressedCount;
+
+	/**
+	 * Part of the {@link #totalEventSuppressedCount} already added to the
+	 * {@link #eventSuppressedCount}. Guarded by the window.
+	 */
+	private long eventSuppressedCountAdded;
+
+	/**
+	 * Count an event which has been suppressed by the rate limits or the
+	 * sampling, see {@link EsAppenderHelper#isSuppressed(String, int)}
+	 */
+	public void countSuppressed() {
+		totalEventSuppressedCount.increment();
+	}
+
 	public void queue(String index, String type, String payload) {
+		queue(index, type, payload, EsIndexRequestBuffer.DEFAULT_LEVEL);
+	}
+
+	public void queue(String index, String type, String payload, int level) {
 		if (softStopping || !started) {
 			totalEventDiscardedCount.incrementAndGet();
 			return;
 		}
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		try (DataOutputStream dos = new DataOutputStream(baos)) {
-			dos.writeUTF(index);
-			dos.writeUTF(type);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		EsLogRecordWriter writer = acquireWriter();
+		try {
+			writeElementHeader(writer, index, type);
+			// the payload is encoded directly into the buffer
+			put(writer, payload, level);
+		} finally {
+			writer.inUse = false;
 		}
-		if (!buffer.put(baos.toByteArray(), payload.getBytes(utf8))) {
-			// discarded
+	}
+
+	/**
+	 * Queue a log record. The record is serialized by a
+	 * {@link EsLogRecordWriter} directly to UTF-8, without reflection and
+	 * without intermediate Strings. With {@link #deferredRendering}, it is
+	 * written in the binary format instead, if the record supports it.
+	 */
+	public void queue(String index, String type, EsLogRecord record, int level) {
+		if (softStopping || !started) {
 			totalEventDiscardedCount.incrementAndGet();
-			eventDiscardedCount.addEvent(System.currentTimeMillis());
+			return;
+		}
+		EsLogRecordWriter writer = acquireWriter();
+		try {
+			writeElementHeader(writer, index, type);
+			if (deferredRendering && EsLogRecordWriter.isBinarySupported(record))
+				// the dictionary does not survive a restart of the JVM
+				writer.writeBinaryRecord(record, bufferStorage == BufferStorageType.MAPPED ? null : strings);
+			else
+				writer.writeRecord(record);
+			put(writer, null, level);
+		} finally {
+			writer.inUse = false;
+		}
+	}
+
+	/**
+	 * Ids of the index and type pairs of the queued documents. Kept across
+	 * restarts, since the ids are never reused.
+	 */
+	private final EsIndexTypeDictionary dictionary = new EsIndexTypeDictionary();
+
+	/**
+	 * Ids of the strings of the binary records, see
+	 * {@link #deferredRendering}. Kept across restarts as well.
+	 */
+	private final EsStringDictionary strings = new EsStringDictionary();
+
+	/**
+	 * Write the header of an element. The elements stored in a
+	 * {@link BufferStorageType#MAPPED} storage contain the names, since the
+	 * dictionary does not survive a restart of the JVM.
+	 */
+	private void writeElementHeader(EsLogRecordWriter writer, String index, String type) {
+		int id = bufferStorage == BufferStorageType.MAPPED ? EsIndexTypeDictionary.INLINE_ID
+				: dictionary.id(index, type);
+		if (id == EsIndexTypeDictionary.INLINE_ID)
+			writer.writeElementHeader(index, type);
+		else
+			writer.writeElementHeader(id);
+	}
+
+	private final ThreadLocal<EsLogRecordWriter> writers = ThreadLocal
+			.withInitial(() -> new EsLogRecordWriter(gson()));
+
+	/**
+	 * Get the writer of the current thread. If the writer is already in use,
+	 * for example if serializing an extension value caused another event to be
+	 * logged, a new writer is returned.
+	 */
+	private EsLogRecordWriter acquireWriter() {
+		EsLogRecordWriter writer = writers.get();
+		if (writer.inUse)
+			writer = new EsLogRecordWriter(gson());
+		writer.reset();
+		writer.inUse = true;
+		return writer;
+	}
+
+	/**
+	 * Gson used if there is no {@link JestHttpClient} to take it from
+	 */
+	private Gson defaultGson;
+
+	private Gson gson() {
+		if (jestClient instanceof JestHttpClient)
+			return ((JestHttpClient) jestClient).getGson();
+		if (defaultGson == null)
+			defaultGson = new Gson();
+		return defaultGson;
+	}
+
+	/**
+	 * Put the content of the writer, followed by the payload if not null, into
+	 * the buffer of the level
+	 */
+	private void put(EsLogRecordWriter writer, String payload, int level) {
+		boolean priority = priorityBuffer != null && level >= priorityLevel;
+		EsIndexRequestBuffer target = priority ? priorityBuffer : buffer;
+		boolean added = payload == null ? target.put(level, writer.array(), 0, writer.length())
+				: target.put(level, writer.array(), writer.length(), payload);
+		if (added) {
+			if (priority) {
+				// stop waiting for events of the other lane
+				buffer.wakeUp();
+			}
+		} else {
+			// discarded
+			countDiscarded(1, priority);
+		}
+	}
+
+	private void countDiscarded(int count, boolean priority) {
+		long now = System.currentTimeMillis();
+		totalEventDiscardedCount.addAndGet(count);
+		eventDiscardedCount.addEvents(now, count);
+		if (priority) {
+			priorityStatistics.totalEventDiscardedCount.addAndGet(count);
+			priorityStatistics.eventDiscardedCount.addEvents(now, count);
 		}
 	}
 
@@ -160,8 +502,32 @@ public class EsIndexer implements EsIndexerMBean {
 		stopped = new CountDownLatch(1);
 		createBuffer();
 		eventDiscardedCount = new SlidingWindow(slidingWindowSlotSize, slidingWindowSlotCount);
+		eventSuppressedCount = new SlidingWindow(slidingWindowSlotSize, slidingWindowSlotCount);
+		eventSuppressedCountAdded = totalEventSuppressedCount.sum();
 		eventIndexedCount = new SlidingWindow(slidingWindowSlotSize, slidingWindowSlotCount);
 		eventIndexingFailedCount = new SlidingWindow(slidingWindowSlotSize, slidingWindowSlotCount);
+		priorityStatistics = new LaneStatistics();
+		inFlightBulks.clear();
+		if (renderingConcurrency > 0)
+			renderer = new EsBulkRenderer(renderingConcurrency,
+					(threadName != null ? threadName : "esLogIndexer-" + name) + "-renderer-", dictionary, strings);
+		else
+			renderer = null;
+		if (indexingConcurrency > 1 || renderer != null) {
+			String workerNamePrefix = (threadName != null ? threadName : "esLogIndexer-" + name) + "-worker-";
+			AtomicInteger nextWorkerNr = new AtomicInteger();
+			indexingWorkers = Executors.newFixedThreadPool(indexingConcurrency, r -> {
+				Thread worker = new Thread(r, workerNamePrefix + nextWorkerNr.getAndIncrement());
+				worker.setDaemon(true);
+				return worker;
+			});
+			// when rendering ahead, one more bulk is drained and rendered
+			// while all workers are sending
+			idleIndexingWorkers = new Semaphore(indexingConcurrency + (renderer != null ? 1 : 0));
+		} else {
+			indexingWorkers = null;
+			idleIndexingWorkers = null;
+		}
 		started = true;
 
 		if (performJMXRegistration) {
@@ -176,11 +542,39 @@ public class EsIndexer implements EsIndexerMBean {
 			}
 
 		}
-		if (jestClient == null) {
-			JestClientFactory factory = new JestClientFactory();
-			factory.setHttpClientConfig(new HttpClientConfig.Builder(esUrl).multiThreaded(true).build());
-			jestClient = factory.getObject();
+		createdBulkTransport = null;
+		if (bulkTransport != null) {
+			activeBulkTransport = bulkTransport;
+		} else if (jestClient == null && builtInTransport) {
+			createdBulkTransport = new EsHttpBulkTransport(esUrl);
+			activeBulkTransport = createdBulkTransport;
+		} else {
+			if (jestClient == null) {
+				JestClientFactory factory = new JestClientFactory();
+				factory.setHttpClientConfig(new HttpClientConfig.Builder(esUrl).multiThreaded(true).build());
+				jestClient = factory.getObject();
+				createdJestClient = jestClient;
+			}
+			if (jestClient == createdJestClient && jestClient instanceof JestHttpClient)
+				activeBulkTransport = new EsJestBulkTransport((JestHttpClient) jestClient, esUrl);
+			else
+				activeBulkTransport = null;
 		}
+		if (bufferCompression && buffer instanceof EsIndexRequestRingBuffer) {
+			EsIndexRequestRingBuffer ringBuffer = (EsIndexRequestRingBuffer) buffer;
+			compactor = new Thread(() -> compactionLoop(ringBuffer),
+					(threadName != null ? threadName : "esLogIndexer-" + name) + "-compactor");
+			compactor.setDaemon(true);
+			compactor.start();
+		} else
+			compactor = null;
+		if (bufferStorage == BufferStorageType.MAPPED && !bufferFlushInterval.isZero()) {
+			flusher = new Thread(this::flushLoop,
+					(threadName != null ? threadName : "esLogIndexer-" + name) + "-flusher");
+			flusher.setDaemon(true);
+			flusher.start();
+		} else
+			flusher = null;
 		Thread thread = new Thread(this::indexingLoop,
 				threadName != null ? threadName : "esLogIndexer-" + name + "-" + nextThreadNr.getAndIncrement());
 		thread.setDaemon(true);
@@ -188,7 +582,80 @@ public class EsIndexer implements EsIndexerMBean {
 	}
 
 	void createBuffer() {
-		buffer = new EsIndexRequestRingBuffer(capacity);
+		storages.clear();
+		int bulkCapacity = capacity;
+		if (priorityCapacity > 0) {
+			bulkCapacity -= priorityCapacity;
+			priorityBuffer = new EsIndexRequestRingBuffer(createBufferStorage(priorityCapacity, true));
+			configureBuffer(priorityBuffer, true);
+		} else
+			priorityBuffer = null;
+
+		if (lockFreeBuffer && bufferStorage == BufferStorageType.MAPPED) {
+			logger.warn("The lock free buffer does not support the mapped buffer storage, using the synchronized buffer");
+		}
+		boolean striped = bufferStripes > 1;
+		if (striped && (lockFreeBuffer || bufferStorage == BufferStorageType.MAPPED)) {
+			logger.warn("Buffer stripes are not supported together with the lock free buffer or the mapped buffer storage, using a single buffer");
+			striped = false;
+		}
+		if (striped) {
+			int stripeCapacity = bulkCapacity / bufferStripes;
+			buffer = new EsIndexRequestStripedBuffer(bufferStripes, i -> createBufferStorage(stripeCapacity, false));
+		} else if (lockFreeBuffer && bufferStorage != BufferStorageType.MAPPED) {
+			buffer = new EsIndexRequestLockFreeRingBuffer(
+					createBufferStorage(EsIndexRequestLockFreeRingBuffer.roundCapacity(bulkCapacity), false));
+		} else {
+			buffer = new EsIndexRequestRingBuffer(createBufferStorage(bulkCapacity, false));
+		}
+		configureBuffer(buffer, false);
+		if (bufferCompression) {
+			if (buffer instanceof EsIndexRequestRingBuffer)
+				((EsIndexRequestRingBuffer) buffer).setCompactionBlockSize(Math.min(64 * 1024, bulkCapacity / 16));
+			else
+				logger.warn("Buffer compression is only supported by the synchronized buffer without stripes, ignoring it");
+		}
+	}
+
+	private void configureBuffer(EsIndexRequestBuffer buffer, boolean priority) {
+		if (buffer instanceof EsIndexRequestLockFreeRingBuffer && overflowPolicy != OverflowPolicy.DISCARD) {
+			logger.warn("The lock free buffer only supports the overflow policy DISCARD, ignoring " + overflowPolicy);
+		} else {
+			buffer.setOverflowPolicy(overflowPolicy, overflowMaxBlockTime);
+		}
+		buffer.setEvictionListener(count -> countDiscarded(count, priority));
+	}
+
+	/**
+	 * Create the storage of a buffer. The storage is closed when the indexer
+	 * stops.
+	 */
+	BufferStorage createBufferStorage(int capacity, boolean priority) {
+		BufferStorage storage;
+		switch (bufferStorage) {
+		case HEAP:
+			storage = new HeapBufferStorage(capacity);
+			break;
+		case DIRECT:
+			storage = new ByteBufferStorage(capacity);
+			break;
+		case MAPPED: {
+			File file = bufferFile != null ? new File(bufferFile)
+					: new File(System.getProperty("java.io.tmpdir"), "esLogBuffer-" + name + ".dat");
+			if (priority)
+				file = new File(file.getPath() + ".priority");
+			try {
+				storage = MappedBufferStorage.open(file, capacity);
+			} catch (IOException e) {
+				throw new RuntimeException("Error while opening buffer file " + file, e);
+			}
+			break;
+		}
+		default:
+			throw new UnsupportedOperationException("Unknown buffer storage " + bufferStorage);
+		}
+		storages.add(storage);
+		return storage;
 	}
 
 	volatile boolean started;
@@ -201,6 +668,8 @@ public class EsIndexer implements EsIndexerMBean {
 		if (!started)
 			return;
 		softStopping = true;
+		// send lingering bulks immediately
+		buffer.wakeUp();
 		try {
 			if (!stopped.await(stopTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
 				hardStopping = true;
@@ -222,73 +691,339 @@ public class EsIndexer implements EsIndexerMBean {
 		}
 	}
 
-	private boolean indexingFailing = false;
-	private volatile long totalEventIndexingFailedCount;
+	private final AtomicBoolean indexingFailing = new AtomicBoolean();
+	private final AtomicLong totalEventIndexingFailedCount = new AtomicLong();
 	private SlidingWindow eventIndexingFailedCount;
-	private volatile long totalEventIndexedCount;
+	private final AtomicLong totalEventIndexedCount = new AtomicLong();
 	private SlidingWindow eventIndexedCount;
 
+	/**
+	 * Statistics of the events passing through the priority lane. The events
+	 * are included in the overall statistics as well.
+	 */
+	private class LaneStatistics {
+		final AtomicLong totalEventDiscardedCount = new AtomicLong();
+		final SlidingWindow eventDiscardedCount = new SlidingWindow(slidingWindowSlotSize, slidingWindowSlotCount);
+		final AtomicLong totalEventIndexingFailedCount = new AtomicLong();
+		final SlidingWindow eventIndexingFailedCount = new SlidingWindow(slidingWindowSlotSize,
+				slidingWindowSlotCount);
+		final AtomicLong totalEventIndexedCount = new AtomicLong();
+		final SlidingWindow eventIndexedCount = new SlidingWindow(slidingWindowSlotSize, slidingWindowSlotCount);
+	}
+
+	private LaneStatistics priorityStatistics;
+
+	/**
+	 * Sends the bulks if the {@link #indexingConcurrency} is larger than one
+	 * or the bulks are rendered ahead, null otherwise
+	 */
+	private ExecutorService indexingWorkers;
+
+	/**
+	 * One permit for each worker which is not sending a bulk, plus one if
+	 * rendering ahead. A permit is acquired before draining a bulk, such that
+	 * elements keep accumulating in the buffer while all workers are busy.
+	 */
+	private Semaphore idleIndexingWorkers;
+
+	/**
+	 * Renders the bulks ahead of sending, null if the
+	 * {@link #renderingConcurrency} is zero
+	 */
+	private EsBulkRenderer renderer;
+
+	/**
+	 * Compresses the events in the buffer, null if the
+	 * {@link #bufferCompression} is disabled
+	 */
+	private Thread compactor;
+
+	/**
+	 * Writes the buffer to disk every {@link #bufferFlushInterval}, independent
+	 * of the indexing thread, which might be blocked while Elasticsearch is not
+	 * reachable. Null if the buffer is not {@link BufferStorageType#MAPPED}
+	 */
+	private Thread flusher;
+
+	/**
+	 * Bulks passed to the {@link #indexingWorkers} whose batches have not been
+	 * released yet, in the order they were drained. Only accessed by the
+	 * indexing thread.
+	 */
+	private final ArrayDeque<InFlightBulk> inFlightBulks = new ArrayDeque<>();
+
+	private static class InFlightBulk {
+		final EsIndexRequestBuffer buffer;
+		final EsIndexRequestBatch batch;
+		volatile boolean completed;
+
+		InFlightBulk(EsIndexRequestBuffer buffer, EsIndexRequestBatch batch) {
+			this.buffer = buffer;
+			this.batch = batch;
+		}
+	}
+
 	private void indexingLoop() {
 		try {
+			// nano time when the linger time of the current bulk ends, 0 if no
+			// bulk is lingering
+			long lingerDeadline = 0;
 			while (!hardStopping) {
-				List<byte[]> elements = buffer.drain(maxBulkDocumentCount, maxBulkMemorySize * 1024,
-						Duration.ofSeconds(1));
-				if (hardStopping || elements.isEmpty() && softStopping)
-					return;
-				processElements(elements);
+				// wait for an idle worker before draining the next bulk
+				releaseCompletedBulks();
+				boolean workerReserved = false;
+				if (idleIndexingWorkers != null) {
+					if (!idleIndexingWorkers.tryAcquire(100, TimeUnit.MILLISECONDS))
+						continue;
+					workerReserved = true;
+					releaseCompletedBulks();
+				}
+				try {
+					// the priority lane is drained first, and sent without
+					// waiting
+					if (priorityBuffer != null) {
+						EsIndexRequestBatch batch = priorityBuffer.drainBatch(maxBulkDocumentCount,
+								maxBulkMemorySize * 1024, Duration.ZERO);
+						if (!batch.isEmpty()) {
+							index(priorityBuffer, batch, true);
+							workerReserved = false;
+							continue;
+						}
+					}
+
+					// wait for the first document
+					boolean available = buffer.awaitElements(1, Integer.MAX_VALUE, Duration.ofSeconds(1));
+					if (hardStopping)
+						return;
+					if (!available) {
+						if (softStopping && (priorityBuffer == null || priorityBuffer.availableElements() == 0))
+							return;
+						// woken up by the priority lane or a stop request
+						continue;
+					}
+
+					// wait for more documents, unless stopping
+					if (!lingerTime.isZero() && !softStopping) {
+						if (lingerDeadline == 0)
+							lingerDeadline = System.nanoTime() + lingerTime.toNanos();
+						long remaining = lingerDeadline - System.nanoTime();
+						if (remaining > 0
+								&& !buffer.awaitElements(Math.min(minBulkDocumentCount, maxBulkDocumentCount),
+										maxBulkMemorySize * 1024, Duration.ofNanos(remaining))) {
+							if (System.nanoTime() - lingerDeadline < 0)
+								// woken up early, keep the deadline
+								continue;
+						}
+					}
+					lingerDeadline = 0;
+
+					EsIndexRequestBatch batch = buffer.drainBatch(maxBulkDocumentCount, maxBulkMemorySize * 1024,
+							Duration.ZERO);
+					if (batch.isEmpty())
+						continue;
+					index(buffer, batch, false);
+					workerReserved = false;
+				} finally {
+					if (workerReserved)
+						idleIndexingWorkers.release();
+				}
 			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
 		} finally {
+			if (indexingWorkers != null)
+				awaitInFlightBulks();
+			if (renderer != null)
+				renderer.shutdown();
+			if (compactor != null)
+				stopCompactor();
+			endCompressors();
+			if (flusher != null) {
+				flusher.interrupt();
+				Uninterruptibles.joinUninterruptibly(flusher);
+			}
+			if (createdBulkTransport != null) {
+				try {
+					createdBulkTransport.close();
+				} catch (IOException e) {
+					logger.warn("Error while closing the bulk transport: " + e);
+				}
+			}
+			// remaining events are kept by persistent storages
+			storages.forEach(BufferStorage::close);
 			stopped.countDown();
 		}
 
 	}
 
-	protected void processElements(List<byte[]> elements) {
-		if (elements.size() == 0)
+	/**
+	 * Compress the events in the buffer whenever a block is filled, until
+	 * interrupted
+	 */
+	private void compactionLoop(EsIndexRequestRingBuffer buffer) {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				if (buffer.awaitCompactable(Duration.ofSeconds(1)))
+					buffer.compact();
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * Flush the buffer storages periodically, until interrupted
+	 */
+	private void flushLoop() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Thread.sleep(bufferFlushInterval.toMillis());
+				flushStorages();
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * Write the contents of the buffer storages to disk
+	 */
+	void flushStorages() {
+		storages.forEach(BufferStorage::flush);
+	}
+
+	/**
+	 * Stop the {@link #compactor} and wait for the compression in progress to
+	 * complete, since it writes to the buffer storage
+	 */
+	private void stopCompactor() {
+		compactor.interrupt();
+		Uninterruptibles.joinUninterruptibly(compactor);
+		((EsIndexRequestRingBuffer) buffer).setCompactionBlockSize(0);
+	}
+
+	/**
+	 * Index a drained batch, either directly or using an
+	 * {@link #indexingWorkers indexing worker}. In the latter case, an idle
+	 * worker has to be reserved by the caller.
+	 */
+	private void index(EsIndexRequestBuffer buffer, EsIndexRequestBatch batch, boolean priority) {
+		if (indexingWorkers == null) {
+			countProcessed(batch.size(), processElements(batch), priority);
+			buffer.release(batch);
 			return;
-		Bulk.Builder bulk = new Bulk.Builder();
-		for (byte[] element : elements) {
-			EsIndexRequest req = toIndexRequest(element);
-			bulk.addAction(new Index.Builder(req.payload).index(req.index).type(req.type).build());
 		}
-		while (true) {
+		if (renderer != null && activeBulkTransport != null)
+			batch.rendered = renderer.render(batch);
+		InFlightBulk bulk = new InFlightBulk(buffer, batch);
+		inFlightBulks.add(bulk);
+		indexingWorkers.execute(() -> {
 			try {
-				BulkResult result = jestClient.execute(bulk.build());
-				long now = System.currentTimeMillis();
-				if (!result.isSucceeded()) {
-					List<BulkResultItem> failedItems = result.getFailedItems();
+				countProcessed(batch.size(), processElements(batch), priority);
+				bulk.completed = true;
+			} catch (RuntimeException e) {
+				if (!hardStopping) {
+					logger.error("Error while indexing bulk, dropping " + batch.size() + " documents\n"
+							+ Throwables.getStackTraceAsString(e));
+					countProcessed(batch.size(), batch.size(), priority);
+					bulk.completed = true;
+				}
+			} finally {
+				idleIndexingWorkers.release();
+				// let the indexing thread release the batch
+				this.buffer.wakeUp();
+			}
+		});
+	}
 
-					totalEventIndexingFailedCount += failedItems.size();
-					eventIndexingFailedCount.addEvents(now, failedItems.size());
+	/**
+	 * Release the batches of the completed bulks. The batches of each buffer
+	 * are released in the order they were drained, thus a bulk which is still
+	 * in flight holds back the bulks drained after it from the same buffer.
+	 */
+	private void releaseCompletedBulks() {
+		EsIndexRequestBuffer blocked = null;
+		for (Iterator<InFlightBulk> it = inFlightBulks.iterator(); it.hasNext();) {
+			InFlightBulk bulk = it.next();
+			if (bulk.buffer == blocked)
+				continue;
+			if (bulk.completed) {
+				bulk.buffer.release(bulk.batch);
+				it.remove();
+			} else if (blocked == null)
+				blocked = bulk.buffer;
+			else
+				// both lanes are blocked
+				return;
+		}
+	}
 
-					totalEventIndexedCount += (elements.size() - failedItems.size());
-					eventIndexedCount.addEvents(now, elements.size() - failedItems.size());
+	/**
+	 * Wait for the bulks in flight to complete, unless stopping hard
+	 */
+	private void awaitInFlightBulks() {
+		indexingWorkers.shutdown();
+		try {
+			while (!hardStopping && !indexingWorkers.awaitTermination(100, TimeUnit.MILLISECONDS))
+				;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (hardStopping)
+			indexingWorkers.shutdownNow();
+		releaseCompletedBulks();
+	}
 
-					if (!indexingFailing) {
-						String message = "Errors in bulk index request. Bulk contained " + elements.size()
+	private void countProcessed(int elementCount, int failedCount, boolean priority) {
+		long now = System.currentTimeMillis();
+		totalEventIndexingFailedCount.addAndGet(failedCount);
+		eventIndexingFailedCount.addEvents(now, failedCount);
+		totalEventIndexedCount.addAndGet(elementCount - failedCount);
+		eventIndexedCount.addEvents(now, elementCount - failedCount);
+		if (priority) {
+			priorityStatistics.totalEventIndexingFailedCount.addAndGet(failedCount);
+			priorityStatistics.eventIndexingFailedCount.addEvents(now, failedCount);
+			priorityStatistics.totalEventIndexedCount.addAndGet(elementCount - failedCount);
+			priorityStatistics.eventIndexedCount.addEvents(now, elementCount - failedCount);
+		}
+	}
+
+	/**
+	 * Index the elements of a batch. The elements stay in the buffer until this
+	 * method returns.
+	 * 
+	 * @return number of elements which failed to be indexed
+	 */
+	protected int processElements(EsIndexRequestBatch batch) {
+		if (batch.size() == 0)
+			return 0;
+		int elementCount = batch.size();
+		while (true) {
+			try {
+				EsBulkResponse result = executeBulk(batch);
+				if (!result.succeeded) {
+					List<String> failedItems = result.failedItemErrors;
+					if (indexingFailing.compareAndSet(false, true)) {
+						String message = "Errors in bulk index request. Bulk contained " + elementCount
 								+ " documents, " + failedItems.size() + " failed. Bulk error message: "
-								+ result.getErrorMessage() + ".";
+								+ result.errorMessage + ".";
 						if (failedItems.size() > 0) {
-							message += " Error message of first failed item: " + failedItems.get(0).error;
+							message += " Error message of first failed item: " + failedItems.get(0);
 						}
 						logger.error(message + " Continuing to try, but suppressing log output");
-						indexingFailing = true;
 					}
+					return failedItems.size();
 				} else {
-					totalEventIndexedCount += elements.size();
-					eventIndexedCount.addEvents(now, elements.size());
-					if (indexingFailing) {
+					if (indexingFailing.compareAndSet(true, false)) {
 						logger.info("Indexing successful for the first time after a failure");
-						indexingFailing = false;
 					}
+					return 0;
 				}
-				break;
 			} catch (IOException e) {
-				if (!indexingFailing) {
+				if (indexingFailing.compareAndSet(false, true)) {
 					String trace = Throwables.getStackTraceAsString(e);
 					logger.error("Error while connecting to elastic search. Continuing to try but suppressing output.\n"
 							+ trace);
-					indexingFailing = true;
 				}
 				try {
 					Thread.sleep(failurePause.toMillis());
@@ -299,21 +1034,112 @@ public class EsIndexer implements EsIndexerMBean {
 		}
 	}
 
+	/**
+	 * Send a bulk request containing the elements of a batch
+	 */
+	private EsBulkResponse executeBulk(EsIndexRequestBatch batch) throws IOException {
+		EsBulkTransport transport = activeBulkTransport;
+		if (transport == null) {
+			Bulk.Builder bulk = new Bulk.Builder();
+			batch.forEach(element -> {
+				EsIndexRequest req = toIndexRequest(element);
+				bulk.addAction(new Index.Builder(req.payload).index(req.index).type(req.type).build());
+			});
+			return EsJestBulkTransport.toBulkResponse(jestClient.execute(bulk.build()));
+		}
+
+		EsBulkEntity bulkEntity = new EsBulkEntity(batch, dictionary, strings);
+		if (compression == Compression.NONE)
+			return transport.execute(bulkEntity);
+		EsCompressedEntity.Compressor compressor = acquireCompressor();
+		EsCompressedEntity compressedEntity = new EsCompressedEntity(bulkEntity, compression == Compression.GZIP,
+				compressor);
+		try {
+			return transport.execute(compressedEntity);
+		} finally {
+			releaseCompressor(compressor);
+			totalUncompressedBulkBytes.addAndGet(compressedEntity.uncompressedBytes());
+			totalCompressedBulkBytes.addAndGet(compressedEntity.compressedBytes());
+		}
+	}
+
+	/**
+	 * Compressors which are not in use, reused across bulks. Guarded by
+	 * itself.
+	 */
+	private final ArrayDeque<EsCompressedEntity.Compressor> compressors = new ArrayDeque<>();
+
+	private final AtomicLong totalUncompressedBulkBytes = new AtomicLong();
+	private final AtomicLong totalCompressedBulkBytes = new AtomicLong();
+
+	private EsCompressedEntity.Compressor acquireCompressor() {
+		synchronized (compressors) {
+			EsCompressedEntity.Compressor compressor = compressors.poll();
+			if (compressor != null)
+				return compressor;
+		}
+		// gzip adds its own header and trailer
+		return new EsCompressedEntity.Compressor(new Deflater(compressionLevel, compression == Compression.GZIP));
+	}
+
+	private void releaseCompressor(EsCompressedEntity.Compressor compressor) {
+		synchronized (compressors) {
+			compressors.push(compressor);
+		}
+	}
+
+	/**
+	 * Free the memory of the pooled compressors. They are created again after
+	 * a restart, possibly with a different configuration.
+	 */
+	private void endCompressors() {
+		synchronized (compressors) {
+			compressors.forEach(EsCompressedEntity.Compressor::end);
+			compressors.clear();
+		}
+	}
+
 	EsIndexRequest toIndexRequest(byte[] element) {
+		return toIndexRequest(EsIndexRequestElement.of(element));
+	}
+
+	/**
+	 * Parse an element. The element starts with a header containing the index
+	 * and the type, either directly or as id of the {@link #dictionary}, see
+	 * {@link EsLogRecordWriter#writeElementHeader(String, String)}, followed by
+	 * the payload. Binary records are rendered to JSON.
+	 */
+	EsIndexRequest toIndexRequest(EsIndexRequestElement element) {
 		EsIndexRequest request = new EsIndexRequest();
-		ByteArrayInputStream bais = new ByteArrayInputStream(element);
-		try (DataInputStream dis = new DataInputStream(bais)) {
-			request.index = dis.readUTF();
-			request.type = dis.readUTF();
-			byte[] tmp = new byte[bais.available()];
-			bais.read(tmp);
-			request.payload = new String(tmp, utf8);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		int id = element.getVarInt(0);
+		int pos = EsIndexRequestRingBuffer.varIntLength(id);
+		if (id == EsIndexTypeDictionary.INLINE_ID) {
+			int length = readUnsignedShort(element, pos);
+			pos += 2;
+			request.index = element.toString(pos, length, utf8);
+			pos += length;
+			length = readUnsignedShort(element, pos);
+			pos += 2;
+			request.type = element.toString(pos, length, utf8);
+			pos += length;
+		} else {
+			EsIndexTypeDictionary.Entry entry = dictionary.get(id);
+			request.index = entry.index;
+			request.type = entry.type;
 		}
+		if (EsLogRecordWriter.isBinaryRecord(element, pos)) {
+			EsLogRecordWriter writer = new EsLogRecordWriter(null);
+			writer.renderBinaryRecord(element, pos, strings);
+			request.payload = new String(writer.array(), 0, writer.length(), utf8);
+		} else
+			request.payload = element.toString(pos, element.length() - pos, utf8);
 		return request;
 	}
 
+	static int readUnsignedShort(EsIndexRequestElement element, int index) {
+		return (element.get(index) & 0xFF) << 8 | element.get(index + 1) & 0xFF;
+	}
+
 	@Override
 	public long getTotalEventDiscardedCount() {
 		return totalEventDiscardedCount.get();
@@ -321,29 +1147,94 @@ public class EsIndexer implements EsIndexerMBean {
 
 	@Override
 	public long getTotalEventIndexingFailedCount() {
-		return totalEventIndexingFailedCount;
+		return totalEventIndexingFailedCount.get();
 	}
 
 	@Override
 	public long getQueueLength() {
-		return buffer.availableElements();
+		long result = buffer.availableElements();
+		if (priorityBuffer != null)
+			result += priorityBuffer.availableElements();
+		return result;
 	}
 
 	@Override
 	public long getTotalEventIndexedCount() {
-		return totalEventIndexedCount;
+		return totalEventIndexedCount.get();
 	}
 
 	@Override
 	public double getQueueFillFraction() {
-		return buffer.usedCapacityFraction();
+		if (priorityBuffer == null)
+			return buffer.usedCapacityFraction();
+		return ((double) buffer.available() + priorityBuffer.available())
+				/ (buffer.capacity() + priorityBuffer.capacity());
 	}
 
 	@Override
 	public void resetStatistics() {
 		totalEventDiscardedCount.set(0);
-		totalEventIndexedCount = 0;
-		totalEventIndexingFailedCount = 0;
+		totalEventIndexedCount.set(0);
+		totalEventIndexingFailedCount.set(0);
+		synchronized (eventSuppressedCount) {
+			totalEventSuppressedCount.reset();
+			eventSuppressedCountAdded = 0;
+		}
+		priorityStatistics.totalEventDiscardedCount.set(0);
+		priorityStatistics.totalEventIndexedCount.set(0);
+		priorityStatistics.totalEventIndexingFailedCount.set(0);
+		totalUncompressedBulkBytes.set(0);
+		totalCompressedBulkBytes.set(0);
+	}
+
+	@Override
+	public long getTotalUncompressedBulkBytes() {
+		return totalUncompressedBulkBytes.get();
+	}
+
+	@Override
+	public long getTotalCompressedBulkBytes() {
+		return totalCompressedBulkBytes.get();
+	}
+
+	@Override
+	public long getPriorityQueueLength() {
+		return priorityBuffer == null ? 0 : priorityBuffer.availableElements();
+	}
+
+	@Override
+	public double getPriorityQueueFillFraction() {
+		return priorityBuffer == null ? 0 : priorityBuffer.usedCapacityFraction();
+	}
+
+	@Override
+	public long getTotalPriorityEventIndexedCount() {
+		return priorityStatistics.totalEventIndexedCount.get();
+	}
+
+	@Override
+	public long getPriorityEventIndexedCount() {
+		return priorityStatistics.eventIndexedCount.getEventCount(System.currentTimeMillis());
+	}
+
+	@Override
+	public long getTotalPriorityEventDiscardedCount() {
+		return priorityStatistics.totalEventDiscardedCount.get();
+	}
+
+	@Override
+	public long getPriorityEventDiscardedCount() {
+		return priorityStatistics.eventDiscardedCount.getEventCount(System.currentTimeMillis());
+	}
+
+	@Override
+	public long getTotalPriorityEventIndexingFailedCount() {
+		return priorityStatistics.totalEventIndexingFailedCount.get();
+	}
+
+	@Override
+	public long getPriorityEventIndexingFailedCount() {
+		return priorityStatistics.eventIndexingFailedCount.getEventCount(System.currentTimeMillis());
 	}
 
 	@Override
@@ -356,6 +1247,23 @@ public class EsIndexer implements EsIndexerMBean {
 		return eventDiscardedCount.getEventCount(System.currentTimeMillis());
 	}
 
+	@Override
+	public long getTotalEventSuppressedCount() {
+		return totalEventSuppressedCount.sum();
+	}
+
+	@Override
+	public long getEventSuppressedCount() {
+		SlidingWindow window = eventSuppressedCount;
+		long now = System.currentTimeMillis();
+		synchronized (window) {
+			long total = totalEventSuppressedCount.sum();
+			window.addEvents(now, total - eventSuppressedCountAdded);
+			eventSuppressedCountAdded = total;
+			return window.getEventCount(now);
+		}
+	}
+
 	@Override
 	public long getEventIndexingFailedCount() {
 		return eventIndexingFailedCount.getEventCount(System.currentTimeMillis());
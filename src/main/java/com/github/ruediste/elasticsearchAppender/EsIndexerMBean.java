@@ -17,9 +17,40 @@ public interface EsIndexerMBean {
 
     public long getEventLostCount();
 
+    public long getTotalEventSuppressedCount();
+
+    public long getEventSuppressedCount();
+
     public long getQueueLength();
 
     public double getQueueFillFraction();
 
+    public long getPriorityQueueLength();
+
+    public double getPriorityQueueFillFraction();
+
+    public long getTotalPriorityEventIndexedCount();
+
+    public long getPriorityEventIndexedCount();
+
+    public long getTotalPriorityEventDiscardedCount();
+
+    public long getPriorityEventDiscardedCount();
+
+    public long getTotalPriorityEventIndexingFailedCount();
+
+    public long getPriorityEventIndexingFailedCount();
+
+    /**
+     * Size of the bulk request bodies before compression, only counted if
+     * compression is enabled
+     */
+    public long getTotalUncompressedBulkBytes();
+
+    /**
+     * Size of the compressed bulk request bodies
+     */
+    public long getTotalCompressedBulkBytes();
+
     public void resetStatistics();
 }
@@ -1,6 +1,7 @@
 package com.github.ruediste.elasticsearchAppender;
 
 import java.time.Duration;
+import java.util.Locale;
 
 public interface EsIndexerProps {
     EsIndexer getIndexer();
@@ -13,14 +14,88 @@ public interface EsIndexerProps {
         getIndexer().capacity = EsIndexer.parseMemorySizeValue(capacity);
     }
 
+    default void setPriorityCapacity(String priorityCapacity) {
+        getIndexer().priorityCapacity = EsIndexer.parseMemorySizeValue(priorityCapacity);
+    }
+
+    default void setPriorityLevel(String priorityLevel) {
+        getIndexer().priorityLevel = EsAppenderHelper.level(priorityLevel.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    default void setLockFreeBuffer(String lockFreeBuffer) {
+        getIndexer().lockFreeBuffer = Boolean.valueOf(lockFreeBuffer);
+    }
+
+    default void setBufferStripes(String bufferStripes) {
+        getIndexer().bufferStripes = Integer.valueOf(bufferStripes);
+    }
+
+    default void setOverflowPolicy(String overflowPolicy) {
+        getIndexer().overflowPolicy = EsIndexRequestBuffer.OverflowPolicy
+                .valueOf(overflowPolicy.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    default void setOverflowMaxBlockTime(String overflowMaxBlockTime) {
+        getIndexer().overflowMaxBlockTime = Duration.parse(overflowMaxBlockTime);
+    }
+
+    default void setBufferStorage(String bufferStorage) {
+        getIndexer().bufferStorage = EsIndexer.BufferStorageType
+                .valueOf(bufferStorage.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    default void setBufferFile(String bufferFile) {
+        getIndexer().bufferFile = bufferFile;
+    }
+
+    default void setBufferFlushInterval(String bufferFlushInterval) {
+        getIndexer().bufferFlushInterval = Duration.parse(bufferFlushInterval);
+    }
+
     default void setMaxBulkDocumentCount(String maxBulkDocumentCount) {
         getIndexer().maxBulkDocumentCount = Integer.valueOf(maxBulkDocumentCount);
     }
 
+    default void setMinBulkDocumentCount(String minBulkDocumentCount) {
+        getIndexer().minBulkDocumentCount = Integer.valueOf(minBulkDocumentCount);
+    }
+
+    default void setLingerTime(String lingerTime) {
+        getIndexer().lingerTime = Duration.parse(lingerTime);
+    }
+
     default void setMaxBulkMemorySize(String maxBulkMemorySize) {
         getIndexer().maxBulkMemorySize = EsIndexer.parseMemorySizeValue(maxBulkMemorySize);
     }
 
+    default void setIndexingConcurrency(String indexingConcurrency) {
+        getIndexer().indexingConcurrency = Integer.valueOf(indexingConcurrency);
+    }
+
+    default void setDeferredRendering(String deferredRendering) {
+        getIndexer().deferredRendering = Boolean.valueOf(deferredRendering);
+    }
+
+    default void setRenderingConcurrency(String renderingConcurrency) {
+        getIndexer().renderingConcurrency = Integer.valueOf(renderingConcurrency);
+    }
+
+    default void setCompression(String compression) {
+        getIndexer().compression = EsIndexer.Compression.valueOf(compression.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    default void setCompressionLevel(String compressionLevel) {
+        getIndexer().compressionLevel = Integer.valueOf(compressionLevel);
+    }
+
+    default void setBufferCompression(String bufferCompression) {
+        getIndexer().bufferCompression = Boolean.valueOf(bufferCompression);
+    }
+
+    default void setBuiltInTransport(String builtInTransport) {
+        getIndexer().builtInTransport = Boolean.valueOf(builtInTransport);
+    }
+
     default void setStopTimeout(String stopTimeout) {
         getIndexer().stopTimeout = Duration.parse(stopTimeout);
     }
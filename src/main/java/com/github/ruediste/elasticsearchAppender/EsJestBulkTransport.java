@@ -0,0 +1,63 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.util.EntityUtils;
+
+import io.searchbox.client.http.JestHttpClient;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.BulkResult.BulkResultItem;
+
+/**
+ * Sends the bulk requests using the HTTP client of a {@link JestHttpClient}.
+ * The responses are parsed by Jest. The client is not closed by this
+ * transport.
+ */
+public class EsJestBulkTransport implements EsBulkTransport {
+
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    private final JestHttpClient client;
+    private final String bulkUrl;
+
+    public EsJestBulkTransport(JestHttpClient client, String esUrl) {
+        this.client = client;
+        bulkUrl = (esUrl.endsWith("/") ? esUrl.substring(0, esUrl.length() - 1) : esUrl) + "/_bulk";
+    }
+
+    @Override
+    public EsBulkResponse execute(HttpEntity body) throws IOException {
+        HttpPost request = new HttpPost(bulkUrl);
+        request.setEntity(body);
+        try (CloseableHttpResponse response = client.getHttpClient().execute(request)) {
+            HttpEntity entity = response.getEntity();
+            String responseBody = entity == null ? null : EntityUtils.toString(entity, utf8);
+            StatusLine status = response.getStatusLine();
+            // let Jest parse the response
+            return toBulkResponse(new Bulk.Builder().build().createNewElasticSearchResult(responseBody,
+                    status.getStatusCode(), status.getReasonPhrase(), client.getGson()));
+        }
+    }
+
+    static EsBulkResponse toBulkResponse(BulkResult result) {
+        if (result.isSucceeded())
+            return EsBulkResponse.SUCCEEDED;
+        List<String> failedItemErrors = new ArrayList<>();
+        for (BulkResultItem item : result.getFailedItems()) {
+            failedItemErrors.add(item.error);
+        }
+        return new EsBulkResponse(false, result.getErrorMessage(), failedItemErrors);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -1,26 +1,169 @@
 package com.github.ruediste.elasticsearchAppender;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class EsLogRecord {
+    /**
+     * Value of the {@link #timeAdjustment} if the time has not been adjusted
+     */
+    public static final long NO_TIME_ADJUSTMENT = Long.MIN_VALUE;
+
     public long time;
-    public Long timeAdjustment;
+    /**
+     * Amount the {@link #time} has been increased by to keep the time stamps
+     * unique, {@link #NO_TIME_ADJUSTMENT} if it has not been adjusted. Kept as
+     * primitive to avoid boxing on every adjusted event.
+     */
+    public long timeAdjustment = NO_TIME_ADJUSTMENT;
     public String thread;
     public String logger;
     public String message;
+    /**
+     * Message as char sequence, written in place of the {@link #message} if
+     * set. Allows to format the message into a reused builder, see
+     * {@link #messageBuilder()}
+     */
+    public transient CharSequence messageChars;
     public String level;
     public String exceptionClass;
     public String exceptionMessage;
     public String stackTrace;
+    /**
+     * Fingerprint of the stack trace, set if stack traces are deduplicated.
+     * See {@link EsAppenderHelper#stackTraceDedupWindow}
+     */
+    public String stackTraceHash;
     public Map<String, String> mdc;
     public List<String> ndc;
 
+    /**
+     * Number of repeated events represented by this record, set by the
+     * {@link EsEventAggregator}
+     */
+    public Integer count;
+    /**
+     * Time of the first repeated event represented by this record
+     */
+    public Long firstTime;
+    /**
+     * Time of the last repeated event represented by this record
+     */
+    public Long lastTime;
+
     public java.util.Set<String> tags;
     public Map<String, String> labels;
 
+    /**
+     * JSON members which are the same for all records, encoded as UTF-8. If
+     * set, the {@link EsLogRecordWriter} copies them in place of the
+     * {@link #tags} and the {@link #labels}, which have to contain the same
+     * values. See {@link EsAppenderHelper#prepareLogRecord(EsLogRecord, long)}
+     */
+    public transient byte[] staticFields;
+
     /**
      * Additional properties of the record
      */
     public Map<String, Object> ext;
+
+    /**
+     * Set while a reused record is being filled, see
+     * {@link EsAppenderHelper#acquireRecord()}
+     */
+    transient boolean inUse;
+
+    /**
+     * Map returned by {@link #mdcMap()}, kept when the record is cleared
+     */
+    private transient HashMap<String, String> mdcMap;
+
+    private transient StringBuilder messageBuilder;
+
+    /**
+     * Reset all fields, such that the record can be reused. The map of the
+     * {@link #mdc} and the {@link #messageBuilder()} are kept for reuse.
+     */
+    public void clear() {
+        time = 0;
+        timeAdjustment = NO_TIME_ADJUSTMENT;
+        thread = null;
+        logger = null;
+        message = null;
+        messageChars = null;
+        level = null;
+        exceptionClass = null;
+        exceptionMessage = null;
+        stackTrace = null;
+        stackTraceHash = null;
+        mdc = null;
+        ndc = null;
+        count = null;
+        firstTime = null;
+        lastTime = null;
+        tags = null;
+        labels = null;
+        staticFields = null;
+        ext = null;
+        if (mdcMap != null)
+            mdcMap.clear();
+    }
+
+    /**
+     * Get an empty map to put the MDC entries into. The same map is returned
+     * after the record has been cleared. The map still has to be assigned to
+     * the {@link #mdc}.
+     */
+    public Map<String, String> mdcMap() {
+        if (mdcMap == null)
+            mdcMap = new HashMap<>();
+        else
+            mdcMap.clear();
+        return mdcMap;
+    }
+
+    /**
+     * Get an empty builder to format the message into. The same builder is
+     * returned after the record has been cleared.
+     */
+    public StringBuilder messageBuilder() {
+        if (messageBuilder == null)
+            messageBuilder = new StringBuilder();
+        messageBuilder.setLength(0);
+        return messageBuilder;
+    }
+
+    /**
+     * Copy the fields of another record, converting the
+     * {@link #messageChars} to a string and copying the {@link #mdc}. The
+     * other record can be cleared afterwards.
+     */
+    public void copyFrom(EsLogRecord other) {
+        time = other.time;
+        timeAdjustment = other.timeAdjustment;
+        thread = other.thread;
+        logger = other.logger;
+        message = other.messageChars != null ? other.messageChars.toString() : other.message;
+        messageChars = null;
+        level = other.level;
+        exceptionClass = other.exceptionClass;
+        exceptionMessage = other.exceptionMessage;
+        stackTrace = other.stackTrace;
+        stackTraceHash = other.stackTraceHash;
+        mdc = null;
+        if (other.mdc != null) {
+            Map<String, String> map = mdcMap();
+            map.putAll(other.mdc);
+            mdc = map;
+        }
+        ndc = other.ndc;
+        count = other.count;
+        firstTime = other.firstTime;
+        lastTime = other.lastTime;
+        tags = other.tags;
+        labels = other.labels;
+        staticFields = other.staticFields;
+        ext = other.ext;
+    }
 }
\ No newline at end of file
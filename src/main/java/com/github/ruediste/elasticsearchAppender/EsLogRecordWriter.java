@@ -0,0 +1,852 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import com.google.gson.Gson;
+
+/**
+ * Serializes {@link EsLogRecord}s to UTF-8 encoded JSON without reflection and
+ * without intermediate Strings. The output is accumulated in an array which is
+ * reused for all records, thus a writer is meant to be used by a single thread
+ * only.
+ *
+ * <p>
+ * The fields are written in declaration order, null fields are omitted, the
+ * same way Gson serializes the record. Values of {@link EsLogRecord#ext} other
+ * than strings, numbers, booleans, maps and collections are serialized using
+ * Gson.
+ *
+ * <p>
+ * Alternatively, records can be written in a compact binary format, which is
+ * rendered to JSON later on, off the logging thread. See
+ * {@link #writeBinaryRecord(EsLogRecord, EsStringDictionary)}.
+ */
+public class EsLogRecordWriter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Arrays grown larger are not retained by {@link #reset()}, to avoid
+     * keeping large arrays after logging a single large record
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd',
+            'e', 'f' };
+
+    /**
+     * First byte of the payload of elements containing a binary record, see
+     * {@link #writeBinaryRecord(EsLogRecord, EsStringDictionary)}. JSON
+     * documents never start with it.
+     */
+    static final byte BINARY_RECORD = 0;
+
+    // flags of the fields present in a binary record
+    private static final int TIME_ADJUSTMENT = 1;
+    private static final int THREAD = 1 << 1;
+    private static final int LOGGER = 1 << 2;
+    private static final int MESSAGE = 1 << 3;
+    private static final int LEVEL = 1 << 4;
+    private static final int EXCEPTION_CLASS = 1 << 5;
+    private static final int EXCEPTION_MESSAGE = 1 << 6;
+    private static final int STACK_TRACE = 1 << 7;
+    private static final int STACK_TRACE_HASH = 1 << 8;
+    private static final int MDC = 1 << 9;
+    private static final int NDC = 1 << 10;
+    private static final int COUNT = 1 << 11;
+    private static final int FIRST_TIME = 1 << 12;
+    private static final int LAST_TIME = 1 << 13;
+    private static final int STATIC_FIELDS = 1 << 14;
+
+    private final Gson gson;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length;
+
+    /**
+     * Set until the first member of an object or the first element of an array
+     * has been written
+     */
+    private boolean first;
+
+    /**
+     * Set by the {@link EsIndexer} while the writer is used
+     */
+    boolean inUse;
+
+    /**
+     * Used to visit maps and collections without allocating iterators
+     */
+    private final BiConsumer<Object, Object> memberWriter = this::writeMapEntry;
+    private final Consumer<Object> elementWriter = this::writeElement;
+    private final BiConsumer<String, String> binaryMdcEntryWriter = this::writeBinaryMdcEntry;
+    private final Consumer<String> binaryNdcElementWriter = this::writeRawString;
+
+    /**
+     * Dictionary used while writing the MDC of a binary record
+     */
+    private EsStringDictionary binaryStrings;
+
+    /**
+     * Number of MDC entries written to a binary record
+     */
+    private int binaryMdcSize;
+
+    /**
+     * Element and position read while rendering a binary record
+     */
+    private EsIndexRequestElement readElement;
+    private int readIndex;
+
+    /**
+     * Holds the undecoded strings of binary records while rendering
+     */
+    private byte[] scratch;
+
+    /**
+     * @param gson
+     *            used to serialize extension values of unknown types
+     */
+    public EsLogRecordWriter(Gson gson) {
+        this.gson = gson;
+    }
+
+    /**
+     * Discard the written output
+     */
+    public void reset() {
+        if (buffer.length > MAX_RETAINED_CAPACITY)
+            buffer = new byte[INITIAL_CAPACITY];
+        length = 0;
+        first = true;
+    }
+
+    /**
+     * Array containing the output. Only valid until the next write.
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * Number of bytes written
+     */
+    public int length() {
+        return length;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Write the header of an element stored in a {@link EsIndexRequestBuffer}
+     * containing the index and the type: the id
+     * {@link EsIndexTypeDictionary#INLINE_ID}, followed by the index and the
+     * type as UTF-8, each preceded by its length as unsigned short.
+     */
+    public void writeElementHeader(String index, String type) {
+        writeVarInt(EsIndexTypeDictionary.INLINE_ID);
+        writeShortString(index);
+        writeShortString(type);
+    }
+
+    /**
+     * Write the header of an element referring to the index and type
+     * registered under an id in a {@link EsIndexTypeDictionary}
+     */
+    public void writeElementHeader(int id) {
+        writeVarInt(id);
+    }
+
+    /**
+     * Write a value using the encoding of
+     * {@link BufferStorage#putVarInt(int, int)}
+     */
+    private void writeVarInt(int value) {
+        int varIntLength = EsIndexRequestRingBuffer.varIntLength(value);
+        ensureCapacity(varIntLength);
+        if (varIntLength == 1) {
+            buffer[length++] = (byte) value;
+        } else if (varIntLength == 2) {
+            buffer[length++] = (byte) (value & 0x7F | 0x80);
+            buffer[length++] = (byte) (value >>> 7);
+        } else {
+            buffer[length++] = (byte) (value & 0x7F | 0x80);
+            buffer[length++] = (byte) (value >>> 7 & 0x7F | 0x80);
+            buffer[length++] = (byte) (value >>> 14);
+            buffer[length++] = (byte) (value >>> 22);
+        }
+    }
+
+    private void writeShortString(String value) {
+        int start = length;
+        length += 2;
+        writeUtf8(value);
+        int stringLength = length - start - 2;
+        if (stringLength > 0xFFFF)
+            throw new IllegalArgumentException("String too long: " + stringLength + " bytes");
+        buffer[start] = (byte) (stringLength >>> 8);
+        buffer[start + 1] = (byte) stringLength;
+    }
+
+    /**
+     * Write a record as JSON object
+     */
+    public void writeRecord(EsLogRecord record) {
+        writeByte('{');
+        first = true;
+        writeName("time");
+        writeLong(record.time);
+        if (record.timeAdjustment != EsLogRecord.NO_TIME_ADJUSTMENT) {
+            writeName("timeAdjustment");
+            writeLong(record.timeAdjustment);
+        }
+        writeMember("thread", record.thread);
+        writeMember("logger", record.logger);
+        writeMember("message", record.messageChars != null ? record.messageChars : record.message);
+        writeMember("level", record.level);
+        writeMember("exceptionClass", record.exceptionClass);
+        writeMember("exceptionMessage", record.exceptionMessage);
+        writeMember("stackTrace", record.stackTrace);
+        writeMember("stackTraceHash", record.stackTraceHash);
+        if (record.mdc != null) {
+            writeName("mdc");
+            writeMap(record.mdc);
+        }
+        if (record.ndc != null) {
+            writeName("ndc");
+            writeCollection(record.ndc);
+        }
+        if (record.count != null) {
+            writeName("count");
+            writeLong(record.count);
+        }
+        if (record.firstTime != null) {
+            writeName("firstTime");
+            writeLong(record.firstTime);
+        }
+        if (record.lastTime != null) {
+            writeName("lastTime");
+            writeLong(record.lastTime);
+        }
+        if (record.staticFields != null) {
+            if (!first)
+                writeByte(',');
+            writeRaw(record.staticFields);
+            first = false;
+        } else {
+            if (record.tags != null) {
+                writeName("tags");
+                writeCollection(record.tags);
+            }
+            if (record.labels != null) {
+                writeName("labels");
+                writeMap(record.labels);
+            }
+        }
+        if (record.ext != null) {
+            writeName("ext");
+            writeMap(record.ext);
+        }
+        writeByte('}');
+    }
+
+    private void writeMember(String name, CharSequence value) {
+        if (value == null)
+            return;
+        writeName(name);
+        writeString(value);
+    }
+
+    /**
+     * Determine if a record can be written by
+     * {@link #writeBinaryRecord(EsLogRecord, EsStringDictionary)}. Records
+     * with {@link EsLogRecord#ext} values, or with tags or labels but without
+     * {@link EsLogRecord#staticFields}, have to be written as JSON.
+     */
+    public static boolean isBinarySupported(EsLogRecord record) {
+        return record.ext == null && (record.staticFields != null || record.tags == null && record.labels == null);
+    }
+
+    /**
+     * Write a record in a compact binary format, which is rendered to the same
+     * JSON as written by {@link #writeRecord(EsLogRecord)} later on, see
+     * {@link #renderBinaryRecord(EsIndexRequestElement, int, EsStringDictionary)}.
+     * Strings are encoded as UTF-8 without escaping, the strings which
+     * typically repeat, like the logger name, are replaced by their id in the
+     * dictionary.
+     *
+     * <p>
+     * The record starts with {@link #BINARY_RECORD}, followed by a var int
+     * with a flag for each field present, the time and the present fields in
+     * JSON order. Numbers are written as fixed length big endian values.
+     *
+     * @param strings
+     *            dictionary to look up the ids of the strings. If null, all
+     *            strings are contained in the record
+     */
+    public void writeBinaryRecord(EsLogRecord record, EsStringDictionary strings) {
+        CharSequence message = record.messageChars != null ? record.messageChars : record.message;
+        int flags = 0;
+        if (record.timeAdjustment != EsLogRecord.NO_TIME_ADJUSTMENT)
+            flags |= TIME_ADJUSTMENT;
+        if (record.thread != null)
+            flags |= THREAD;
+        if (record.logger != null)
+            flags |= LOGGER;
+        if (message != null)
+            flags |= MESSAGE;
+        if (record.level != null)
+            flags |= LEVEL;
+        if (record.exceptionClass != null)
+            flags |= EXCEPTION_CLASS;
+        if (record.exceptionMessage != null)
+            flags |= EXCEPTION_MESSAGE;
+        if (record.stackTrace != null)
+            flags |= STACK_TRACE;
+        if (record.stackTraceHash != null)
+            flags |= STACK_TRACE_HASH;
+        if (record.mdc != null)
+            flags |= MDC;
+        if (record.ndc != null)
+            flags |= NDC;
+        if (record.count != null)
+            flags |= COUNT;
+        if (record.firstTime != null)
+            flags |= FIRST_TIME;
+        if (record.lastTime != null)
+            flags |= LAST_TIME;
+        if (record.staticFields != null)
+            flags |= STATIC_FIELDS;
+
+        writeByte((char) BINARY_RECORD);
+        writeVarInt(flags);
+        writeFixedLong(record.time);
+        if (record.timeAdjustment != EsLogRecord.NO_TIME_ADJUSTMENT)
+            writeFixedLong(record.timeAdjustment);
+        if (record.thread != null)
+            writeInternedString(record.thread, strings);
+        if (record.logger != null)
+            writeInternedString(record.logger, strings);
+        if (message != null)
+            writeRawString(message);
+        if (record.level != null)
+            writeInternedString(record.level, strings);
+        if (record.exceptionClass != null)
+            writeInternedString(record.exceptionClass, strings);
+        if (record.exceptionMessage != null)
+            writeRawString(record.exceptionMessage);
+        if (record.stackTrace != null)
+            writeRawString(record.stackTrace);
+        if (record.stackTraceHash != null)
+            writeRawString(record.stackTraceHash);
+        if (record.mdc != null) {
+            // null values are omitted, the size is set afterwards
+            int sizePos = length;
+            writeFixedInt(0);
+            binaryStrings = strings;
+            binaryMdcSize = 0;
+            record.mdc.forEach(binaryMdcEntryWriter);
+            binaryStrings = null;
+            putFixedInt(sizePos, binaryMdcSize);
+        }
+        if (record.ndc != null) {
+            List<String> ndc = record.ndc;
+            writeFixedInt(ndc.size());
+            if (ndc instanceof RandomAccess) {
+                for (int i = 0; i < ndc.size(); i++)
+                    writeRawString(ndc.get(i));
+            } else
+                ndc.forEach(binaryNdcElementWriter);
+        }
+        if (record.count != null)
+            writeFixedLong(record.count);
+        if (record.firstTime != null)
+            writeFixedLong(record.firstTime);
+        if (record.lastTime != null)
+            writeFixedLong(record.lastTime);
+        if (record.staticFields != null) {
+            writeFixedInt(record.staticFields.length);
+            writeRaw(record.staticFields);
+        }
+    }
+
+    private void writeBinaryMdcEntry(String key, String value) {
+        if (value == null)
+            return;
+        writeInternedString(key, binaryStrings);
+        writeRawString(value);
+        binaryMdcSize++;
+    }
+
+    /**
+     * Write the id of a string in the dictionary, followed by the string if
+     * it is not contained in the dictionary
+     */
+    private void writeInternedString(String value, EsStringDictionary strings) {
+        int id = strings == null ? EsStringDictionary.INLINE_ID : strings.id(value);
+        writeVarInt(id);
+        if (id == EsStringDictionary.INLINE_ID)
+            writeRawString(value);
+    }
+
+    /**
+     * Write a string as UTF-8, preceded by its length in bytes. Null is
+     * written as length -1.
+     */
+    private void writeRawString(CharSequence value) {
+        int lengthPos = length;
+        writeFixedInt(-1);
+        if (value == null)
+            return;
+        writeUtf8(value);
+        putFixedInt(lengthPos, length - lengthPos - 4);
+    }
+
+    private void writeFixedInt(int value) {
+        ensureCapacity(4);
+        putFixedInt(length, value);
+        length += 4;
+    }
+
+    private void putFixedInt(int pos, int value) {
+        buffer[pos] = (byte) (value >>> 24);
+        buffer[pos + 1] = (byte) (value >>> 16);
+        buffer[pos + 2] = (byte) (value >>> 8);
+        buffer[pos + 3] = (byte) value;
+    }
+
+    private void writeFixedLong(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8)
+            buffer[length++] = (byte) (value >>> shift);
+    }
+
+    /**
+     * Determine if an element contains a binary record at the given position,
+     * see {@link #writeBinaryRecord(EsLogRecord, EsStringDictionary)}
+     */
+    public static boolean isBinaryRecord(EsIndexRequestElement element, int index) {
+        return index < element.length() && element.get(index) == BINARY_RECORD;
+    }
+
+    /**
+     * Render a binary record as JSON object
+     *
+     * @param index
+     *            position of the record within the element
+     * @param strings
+     *            dictionary the record has been written with
+     */
+    public void renderBinaryRecord(EsIndexRequestElement element, int index, EsStringDictionary strings) {
+        readElement = element;
+        readIndex = index + 1;
+        try {
+            int flags = readVarInt();
+            writeByte('{');
+            first = true;
+            writeName("time");
+            writeLong(readFixedLong());
+            if ((flags & TIME_ADJUSTMENT) != 0) {
+                writeName("timeAdjustment");
+                writeLong(readFixedLong());
+            }
+            if ((flags & THREAD) != 0) {
+                writeName("thread");
+                renderInternedString(strings);
+            }
+            if ((flags & LOGGER) != 0) {
+                writeName("logger");
+                renderInternedString(strings);
+            }
+            if ((flags & MESSAGE) != 0) {
+                writeName("message");
+                renderRawString();
+            }
+            if ((flags & LEVEL) != 0) {
+                writeName("level");
+                renderInternedString(strings);
+            }
+            if ((flags & EXCEPTION_CLASS) != 0) {
+                writeName("exceptionClass");
+                renderInternedString(strings);
+            }
+            if ((flags & EXCEPTION_MESSAGE) != 0) {
+                writeName("exceptionMessage");
+                renderRawString();
+            }
+            if ((flags & STACK_TRACE) != 0) {
+                writeName("stackTrace");
+                renderRawString();
+            }
+            if ((flags & STACK_TRACE_HASH) != 0) {
+                writeName("stackTraceHash");
+                renderRawString();
+            }
+            if ((flags & MDC) != 0) {
+                writeName("mdc");
+                writeByte('{');
+                int size = readFixedInt();
+                for (int i = 0; i < size; i++) {
+                    if (i > 0)
+                        writeByte(',');
+                    renderInternedString(strings);
+                    writeByte(':');
+                    renderRawString();
+                }
+                writeByte('}');
+            }
+            if ((flags & NDC) != 0) {
+                writeName("ndc");
+                writeByte('[');
+                int size = readFixedInt();
+                for (int i = 0; i < size; i++) {
+                    if (i > 0)
+                        writeByte(',');
+                    renderRawString();
+                }
+                writeByte(']');
+            }
+            if ((flags & COUNT) != 0) {
+                writeName("count");
+                writeLong(readFixedLong());
+            }
+            if ((flags & FIRST_TIME) != 0) {
+                writeName("firstTime");
+                writeLong(readFixedLong());
+            }
+            if ((flags & LAST_TIME) != 0) {
+                writeName("lastTime");
+                writeLong(readFixedLong());
+            }
+            if ((flags & STATIC_FIELDS) != 0) {
+                int fieldsLength = readFixedInt();
+                writeByte(',');
+                ensureCapacity(fieldsLength);
+                element.copyTo(readIndex, buffer, length, fieldsLength);
+                length += fieldsLength;
+                readIndex += fieldsLength;
+            }
+            writeByte('}');
+        } finally {
+            readElement = null;
+        }
+    }
+
+    private void renderInternedString(EsStringDictionary strings) {
+        int id = readVarInt();
+        if (id == EsStringDictionary.INLINE_ID)
+            renderRawString();
+        else
+            writeRaw(strings.get(id).json);
+    }
+
+    private void renderRawString() {
+        int byteLength = readFixedInt();
+        if (byteLength < 0) {
+            writeAscii("null");
+            return;
+        }
+        if (scratch == null || scratch.length < byteLength || scratch.length > MAX_RETAINED_CAPACITY)
+            scratch = new byte[Math.max(byteLength, INITIAL_CAPACITY)];
+        readElement.copyTo(readIndex, scratch, 0, byteLength);
+        readIndex += byteLength;
+        writeStringUtf8(scratch, byteLength);
+    }
+
+    /**
+     * Write UTF-8 encoded bytes as JSON string, escaping the same characters
+     * as {@link #writeString(CharSequence)}. Since all bytes of multi byte
+     * UTF-8 sequences are larger than 0x7F, the escaping can be done byte by
+     * byte, except for U+2028 and U+2029.
+     */
+    private void writeStringUtf8(byte[] bytes, int count) {
+        writeByte('"');
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            int b = bytes[i] & 0xFF;
+            if (b >= 0x20 && b != '"' && b != '\\' && b != 0xE2) {
+                // fast path, capacity ensured for the common case
+                if (length == buffer.length)
+                    ensureCapacity(1);
+                buffer[length++] = (byte) b;
+            } else if (b < 0x80)
+                writeEscaped((char) b);
+            else if (i + 2 < count && bytes[i + 1] == (byte) 0x80
+                    && (bytes[i + 2] == (byte) 0xA8 || bytes[i + 2] == (byte) 0xA9)) {
+                writeEscaped(bytes[i + 2] == (byte) 0xA8 ? (char) 0x2028 : (char) 0x2029);
+                i += 2;
+            } else {
+                if (length == buffer.length)
+                    ensureCapacity(1);
+                buffer[length++] = (byte) b;
+            }
+        }
+        writeByte('"');
+    }
+
+    private int readVarInt() {
+        int value = readElement.getVarInt(readIndex);
+        readIndex += EsIndexRequestRingBuffer.varIntLength(value);
+        return value;
+    }
+
+    private int readFixedInt() {
+        int value = 0;
+        for (int i = 0; i < 4; i++)
+            value = value << 8 | readElement.get(readIndex++) & 0xFF;
+        return value;
+    }
+
+    private long readFixedLong() {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = value << 8 | readElement.get(readIndex++) & 0xFF;
+        return value;
+    }
+
+    /**
+     * Write an object member, preceded by a comma unless it is the first
+     * member written since the last {@link #reset()}. Null values are omitted.
+     * Used to build fragments like {@link EsLogRecord#staticFields}.
+     */
+    public void writeField(String name, Object value) {
+        if (value == null)
+            return;
+        writeName(name);
+        writeValue(value);
+    }
+
+    /**
+     * Write the name of an object member, preceded by a comma unless it is the
+     * first member
+     */
+    private void writeName(String name) {
+        if (!first)
+            writeByte(',');
+        first = false;
+        writeString(name);
+        writeByte(':');
+    }
+
+    /**
+     * Write a map as JSON object. Null values are omitted.
+     */
+    private void writeMap(Map<?, ?> map) {
+        writeByte('{');
+        first = true;
+        map.forEach(memberWriter);
+        writeByte('}');
+        first = false;
+    }
+
+    private void writeMapEntry(Object key, Object value) {
+        if (value == null)
+            return;
+        writeName(String.valueOf(key));
+        writeValue(value);
+    }
+
+    private void writeCollection(Collection<?> collection) {
+        writeByte('[');
+        first = true;
+        if (collection instanceof List && collection instanceof RandomAccess) {
+            List<?> list = (List<?>) collection;
+            for (int i = 0; i < list.size(); i++)
+                writeElement(list.get(i));
+        } else
+            collection.forEach(elementWriter);
+        writeByte(']');
+        first = false;
+    }
+
+    private void writeElement(Object element) {
+        if (!first)
+            writeByte(',');
+        first = false;
+        writeValue(element);
+    }
+
+    private void writeValue(Object value) {
+        if (value == null)
+            writeAscii("null");
+        else if (value instanceof CharSequence)
+            writeString((CharSequence) value);
+        else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte)
+            writeLong(((Number) value).longValue());
+        else if (value instanceof Boolean)
+            writeAscii((Boolean) value ? "true" : "false");
+        else if (value instanceof Map)
+            writeMap((Map<?, ?>) value);
+        else if (value instanceof Collection)
+            writeCollection((Collection<?>) value);
+        else
+            writeUtf8(gson.toJson(value));
+    }
+
+    /**
+     * Write a JSON string, including the quotes
+     */
+    public void writeString(CharSequence value) {
+        writeByte('"');
+        int count = value.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    // fast path, capacity ensured for the common case
+                    if (length == buffer.length)
+                        ensureCapacity(1);
+                    buffer[length++] = (byte) c;
+                } else
+                    writeEscaped(c);
+            } else if (c == 0x2028 || c == 0x2029) {
+                // not allowed in javascript strings
+                writeEscaped(c);
+            } else
+                i = writeNonAscii(value, i);
+        }
+        writeByte('"');
+    }
+
+    private void writeEscaped(char c) {
+        ensureCapacity(6);
+        buffer[length++] = '\\';
+        switch (c) {
+        case '"':
+            buffer[length++] = '"';
+            break;
+        case '\\':
+            buffer[length++] = '\\';
+            break;
+        case '\n':
+            buffer[length++] = 'n';
+            break;
+        case '\r':
+            buffer[length++] = 'r';
+            break;
+        case '\t':
+            buffer[length++] = 't';
+            break;
+        case '\b':
+            buffer[length++] = 'b';
+            break;
+        case '\f':
+            buffer[length++] = 'f';
+            break;
+        default:
+            buffer[length++] = 'u';
+            buffer[length++] = HEX_DIGITS[c >> 12];
+            buffer[length++] = HEX_DIGITS[(c >> 8) & 0xF];
+            buffer[length++] = HEX_DIGITS[(c >> 4) & 0xF];
+            buffer[length++] = HEX_DIGITS[c & 0xF];
+        }
+    }
+
+    /**
+     * Copy already encoded bytes
+     */
+    public void writeRaw(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    /**
+     * Write a char sequence as UTF-8 without any escaping
+     */
+    public void writeUtf8(CharSequence value) {
+        int count = value.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (length == buffer.length)
+                    ensureCapacity(1);
+                buffer[length++] = (byte) c;
+            } else
+                i = writeNonAscii(value, i);
+        }
+    }
+
+    /**
+     * Write a non ASCII character. Unpaired surrogates are replaced by '?', as
+     * done by {@link String#getBytes(java.nio.charset.Charset)}
+     *
+     * @return index of the last char consumed
+     */
+    private int writeNonAscii(CharSequence value, int i) {
+        ensureCapacity(4);
+        char c = value.charAt(i);
+        if (c < 0x800) {
+            buffer[length++] = (byte) (0xC0 | c >> 6);
+            buffer[length++] = (byte) (0x80 | c & 0x3F);
+        } else if (Character.isSurrogate(c)) {
+            if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(i + 1));
+                buffer[length++] = (byte) (0xF0 | codePoint >> 18);
+                buffer[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buffer[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buffer[length++] = (byte) (0x80 | codePoint & 0x3F);
+                return i + 1;
+            }
+            buffer[length++] = '?';
+        } else {
+            buffer[length++] = (byte) (0xE0 | c >> 12);
+            buffer[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+            buffer[length++] = (byte) (0x80 | c & 0x3F);
+        }
+        return i;
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10)
+            digits++;
+        for (int pos = length + digits - 1; pos >= length; pos--) {
+            buffer[pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void writeAscii(String value) {
+        int count = value.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++)
+            buffer[length++] = (byte) value.charAt(i);
+    }
+
+    private void writeByte(char c) {
+        if (length == buffer.length)
+            ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    /**
+     * Make sure the given number of bytes can be written
+     */
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the rate of events per logger name prefix and samples events by
+ * level. Deciding if an event passes takes no locks: the rules applying to a
+ * logger are cached by logger name, and each rate is enforced by a single
+ * atomic variable.
+ *
+ * <p>
+ * Rules are specified as comma separated list of
+ * {@code prefix[:LEVEL]=count/unit}, for example
+ * {@code com.foo.noisy=100/s,com.bar:DEBUG=10/m,*=1000/s}. The unit is one of
+ * {@code s}, {@code m} or {@code h}, the prefix {@code *} matches all loggers.
+ * If a level is given, the rule only applies to events of that level and
+ * below. Of the rules applying to an event, the one with the longest prefix is
+ * used. Up to a second worth of events may be passed in a burst.
+ *
+ * <p>
+ * Sample rates are specified as comma separated list of
+ * {@code LEVEL=fraction}, for example {@code DEBUG=0.1,TRACE=0.01}.
+ */
+public class EsRateLimiter {
+
+    /**
+     * Number of levels returned by {@link EsAppenderHelper#level(String)}
+     */
+    private static final int LEVEL_COUNT = 8;
+
+    /**
+     * Maximum number of logger names whose rules are cached
+     */
+    private static final int MAX_CACHE_SIZE = 10000;
+
+    /**
+     * Rate limit using the generic cell rate algorithm. The state is the
+     * theoretical arrival time of the next event.
+     */
+    static class Rule {
+        final String prefix;
+        final int maxLevel;
+        final long intervalNanos;
+        final long burstNanos;
+        private final AtomicLong nextArrival;
+
+        Rule(String prefix, int maxLevel, double eventsPerSecond, long now) {
+            this.prefix = prefix;
+            this.maxLevel = maxLevel;
+            intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / eventsPerSecond));
+            // a second worth of events, at least one
+            burstNanos = Math.max(intervalNanos, TimeUnit.SECONDS.toNanos(1));
+            nextArrival = new AtomicLong(now);
+        }
+
+        boolean tryAcquire(long now) {
+            while (true) {
+                long arrival = nextArrival.get();
+                long start = arrival - now > 0 ? arrival : now;
+                long next = start + intervalNanos;
+                if (next - now > burstNanos)
+                    return false;
+                if (nextArrival.compareAndSet(arrival, next))
+                    return true;
+            }
+        }
+    }
+
+    private final List<Rule> rules = new ArrayList<>();
+
+    /**
+     * Sample rate by level, see {@link EsAppenderHelper#level(String)}
+     */
+    private final double[] sampleRates = new double[LEVEL_COUNT];
+
+    /**
+     * Applicable rule by level, by logger name. Entries contain null for
+     * levels without rule.
+     */
+    private final ConcurrentHashMap<String, Rule[]> rulesByLogger = new ConcurrentHashMap<>();
+
+    private final LongSupplier nanoTime;
+
+    public EsRateLimiter(String rules, String sampleRates) {
+        this(rules, sampleRates, System::nanoTime);
+    }
+
+    EsRateLimiter(String rules, String sampleRates, LongSupplier nanoTime) {
+        this.nanoTime = nanoTime;
+        long now = nanoTime.getAsLong();
+        if (rules != null && !rules.trim().isEmpty()) {
+            for (String rule : rules.split(",")) {
+                this.rules.add(parseRule(rule.trim(), now));
+            }
+        }
+        Arrays.fill(this.sampleRates, 1);
+        if (sampleRates != null && !sampleRates.trim().isEmpty()) {
+            for (String sampleRate : sampleRates.split(",")) {
+                int idx = sampleRate.indexOf('=');
+                if (idx < 0)
+                    throw new IllegalArgumentException("Invalid sample rate " + sampleRate);
+                this.sampleRates[parseLevel(sampleRate.substring(0, idx))] = Double
+                        .parseDouble(sampleRate.substring(idx + 1).trim());
+            }
+        }
+    }
+
+    private static Rule parseRule(String rule, long now) {
+        int idx = rule.indexOf('=');
+        int slash = rule.lastIndexOf('/');
+        if (idx < 0 || slash < idx)
+            throw new IllegalArgumentException("Invalid rate limit rule " + rule + ", expected prefix[:LEVEL]=count/unit");
+        String prefix = rule.substring(0, idx).trim();
+        int maxLevel = Integer.MAX_VALUE;
+        int colon = prefix.indexOf(':');
+        if (colon >= 0) {
+            maxLevel = parseLevel(prefix.substring(colon + 1));
+            prefix = prefix.substring(0, colon).trim();
+        }
+        if (prefix.equals("*"))
+            prefix = "";
+        double count = Double.parseDouble(rule.substring(idx + 1, slash).trim());
+        double seconds;
+        switch (rule.substring(slash + 1).trim()) {
+        case "s":
+            seconds = 1;
+            break;
+        case "m":
+            seconds = 60;
+            break;
+        case "h":
+            seconds = 3600;
+            break;
+        default:
+            throw new IllegalArgumentException("Invalid unit in rate limit rule " + rule + ", expected s, m or h");
+        }
+        return new Rule(prefix, maxLevel, count / seconds, now);
+    }
+
+    private static int parseLevel(String level) {
+        return EsAppenderHelper.level(level.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Determine if an event passes the sampling and the rate limit
+     *
+     * @param level
+     *            level of the event, see {@link EsAppenderHelper#level(String)}
+     */
+    public boolean tryAcquire(String logger, int level) {
+        level = Math.min(level, LEVEL_COUNT - 1);
+        double sampleRate = sampleRates[level];
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)
+            return false;
+        if (rules.isEmpty())
+            return true;
+        Rule rule = rules(logger)[level];
+        return rule == null || rule.tryAcquire(nanoTime.getAsLong());
+    }
+
+    private Rule[] rules(String logger) {
+        String key = logger == null ? "" : logger;
+        Rule[] result = rulesByLogger.get(key);
+        if (result == null) {
+            result = matchRules(key);
+            if (rulesByLogger.size() < MAX_CACHE_SIZE)
+                rulesByLogger.putIfAbsent(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Determine the rule with the longest matching prefix for each level
+     */
+    private Rule[] matchRules(String logger) {
+        Rule[] result = new Rule[LEVEL_COUNT];
+        for (int level = 0; level < LEVEL_COUNT; level++) {
+            Rule match = null;
+            for (Rule rule : rules) {
+                if (level <= rule.maxLevel && logger.startsWith(rule.prefix)
+                        && (match == null || rule.prefix.length() > match.prefix.length()))
+                    match = rule;
+            }
+            result[level] = match;
+        }
+        return result;
+    }
+}
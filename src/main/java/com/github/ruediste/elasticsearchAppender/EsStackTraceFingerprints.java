@@ -0,0 +1,113 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Computes fingerprints of stack traces and remembers when the full trace of
+ * a fingerprint has last been sent. During an exception storm, the full trace
+ * is only sent once per window, the repeated events carry the fingerprint
+ * only.
+ *
+ * <p>
+ * The fingerprints are kept in a fixed number of slots, indexed by the
+ * fingerprint. A fingerprint replaces the one in its slot, thus colliding
+ * fingerprints cause additional full traces to be sent. The slots are accessed
+ * without locking, if events race for the same slot a full trace might be sent
+ * twice.
+ */
+public class EsStackTraceFingerprints {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final long windowMillis;
+
+    /**
+     * Fingerprint occupying each slot
+     */
+    private final AtomicLongArray fingerprints;
+
+    /**
+     * Time the full trace of the fingerprint of each slot has last been sent,
+     * {@link #EMPTY} if the slot is unused
+     */
+    private final AtomicLongArray lastSent;
+
+    /**
+     * @param windowMillis
+     *            time after which the full trace of a fingerprint is sent
+     *            again
+     * @param maxSize
+     *            maximum number of fingerprints kept
+     */
+    public EsStackTraceFingerprints(long windowMillis, int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Size has to be positive but was " + maxSize);
+        this.windowMillis = windowMillis;
+        fingerprints = new AtomicLongArray(maxSize);
+        lastSent = new AtomicLongArray(maxSize);
+        for (int i = 0; i < maxSize; i++)
+            lastSent.set(i, EMPTY);
+    }
+
+    /**
+     * Compute the fingerprint of a throwable, including its causes. Only the
+     * class names and the frames are used, the messages are not. The
+     * fingerprint is stable across JVM restarts.
+     */
+    public static long fingerprint(Throwable throwable) {
+        long hash = 0xcbf29ce484222325L;
+        // limit the number of causes, in case of circular references
+        for (int depth = 0; throwable != null && depth < 32; depth++) {
+            hash = mix(hash, throwable.getClass().getName().hashCode());
+            for (StackTraceElement frame : throwable.getStackTrace()) {
+                hash = mix(hash, frame.getClassName().hashCode());
+                hash = mix(hash, frame.getMethodName().hashCode());
+                hash = mix(hash, frame.getLineNumber());
+            }
+            throwable = throwable.getCause();
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, int value) {
+        // FNV-1a on the four bytes of the value
+        for (int i = 0; i < 4; i++) {
+            hash ^= value >>> (i * 8) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Determine if the full trace of a fingerprint has to be sent. If so, the
+     * time is remembered.
+     *
+     * @param time
+     *            time of the event, in epoch millis
+     */
+    public boolean sendFullTrace(long fingerprint, long time) {
+        int slot = (int) Math.floorMod(fingerprint, (long) fingerprints.length());
+        if (fingerprints.get(slot) == fingerprint) {
+            long last = lastSent.get(slot);
+            if (last != EMPTY && time - last < windowMillis)
+                return false;
+            // if events race, only one of them sends the full trace
+            return lastSent.compareAndSet(slot, last, time);
+        }
+        fingerprints.set(slot, fingerprint);
+        lastSent.set(slot, time);
+        return true;
+    }
+
+    /**
+     * Number of fingerprints kept
+     */
+    public int size() {
+        int result = 0;
+        for (int i = 0; i < lastSent.length(); i++) {
+            if (lastSent.get(i) != EMPTY)
+                result++;
+        }
+        return result;
+    }
+}
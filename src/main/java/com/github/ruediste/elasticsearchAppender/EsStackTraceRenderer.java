@@ -0,0 +1,210 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.util.ArrayList;
+
+/**
+ * Renders the stack trace of a throwable in the format of
+ * {@link Throwable#printStackTrace()}, including causes and suppressed
+ * exceptions. Rendering stops as soon as the maximum length is reached, thus
+ * deep traces are never rendered completely just to be truncated afterwards.
+ * The characters are collected in a builder reused by the thread.
+ *
+ * <p>
+ * The caption of each throwable consists of the class name and the localized
+ * message, as done by {@link Throwable#toString()}. Overrides of
+ * {@link Throwable#toString()} are not used.
+ */
+public class EsStackTraceRenderer {
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private static class Context {
+        final StringBuilder sb = new StringBuilder();
+
+        /**
+         * Throwables rendered so far, to detect circular references
+         */
+        final ArrayList<Throwable> seen = new ArrayList<>();
+
+        boolean full;
+
+        boolean inUse;
+    }
+
+    private static final ThreadLocal<Context> contexts = ThreadLocal.withInitial(Context::new);
+
+    private final int maxLength;
+    private final boolean elideCommonFrames;
+    private final String[] collapsedPackages;
+
+    /**
+     * @param maxLength
+     *            maximum number of characters. Longer traces are cut and
+     *            "..." is appended
+     * @param elideCommonFrames
+     *            if true, the frames of a cause or suppressed exception which
+     *            are in common with the enclosing trace are replaced by a
+     *            "... n more" line
+     * @param collapsedPackages
+     *            prefixes of the classes of framework frames. Of consecutive
+     *            framework frames, only the first is rendered, followed by a
+     *            line containing the number of omitted frames. May be empty.
+     */
+    public EsStackTraceRenderer(int maxLength, boolean elideCommonFrames, String... collapsedPackages) {
+        this.maxLength = maxLength;
+        this.elideCommonFrames = elideCommonFrames;
+        this.collapsedPackages = collapsedPackages;
+    }
+
+    public String render(Throwable throwable) {
+        Context ctx = contexts.get();
+        if (ctx.inUse) {
+            // rendering a message caused another trace to be rendered
+            ctx = new Context();
+        }
+        ctx.inUse = true;
+        try {
+            ctx.sb.setLength(0);
+            ctx.full = false;
+            ctx.seen.add(throwable);
+            appendCaption(ctx, 0, "", throwable, "");
+            StackTraceElement[] frames = throwable.getStackTrace();
+            appendFrames(ctx, frames, frames.length, 0);
+            for (Throwable suppressed : throwable.getSuppressed())
+                appendEnclosed(ctx, suppressed, frames, "Suppressed: ", 1);
+            Throwable cause = throwable.getCause();
+            if (cause != null)
+                appendEnclosed(ctx, cause, frames, "Caused by: ", 0);
+
+            if (ctx.full)
+                ctx.sb.append("...");
+            return ctx.sb.toString();
+        } finally {
+            ctx.seen.clear();
+            if (ctx.sb.capacity() > 2 * (maxLength + 1024))
+                ctx.sb.trimToSize();
+            ctx.inUse = false;
+        }
+    }
+
+    private void appendEnclosed(Context ctx, Throwable throwable, StackTraceElement[] enclosingFrames, String caption,
+            int indent) {
+        if (ctx.full)
+            return;
+        for (int i = 0; i < ctx.seen.size(); i++) {
+            if (ctx.seen.get(i) == throwable) {
+                // format of Java 9 and later
+                appendCaption(ctx, indent, caption + "[CIRCULAR REFERENCE: ", throwable, "]");
+                return;
+            }
+        }
+        ctx.seen.add(throwable);
+
+        StackTraceElement[] frames = throwable.getStackTrace();
+        int common = 0;
+        if (elideCommonFrames) {
+            int m = frames.length - 1;
+            int n = enclosingFrames.length - 1;
+            while (m >= 0 && n >= 0 && frames[m].equals(enclosingFrames[n])) {
+                m--;
+                n--;
+                common++;
+            }
+        }
+
+        appendCaption(ctx, indent, caption, throwable, "");
+        appendFrames(ctx, frames, frames.length - common, indent);
+        if (common != 0 && !ctx.full) {
+            appendIndent(ctx, indent);
+            ctx.sb.append("\t... ").append(common).append(" more").append(LINE_SEPARATOR);
+            endLine(ctx);
+        }
+        for (Throwable suppressed : throwable.getSuppressed())
+            appendEnclosed(ctx, suppressed, frames, "Suppressed: ", indent + 1);
+        Throwable cause = throwable.getCause();
+        if (cause != null)
+            appendEnclosed(ctx, cause, frames, "Caused by: ", indent);
+    }
+
+    private void appendCaption(Context ctx, int indent, String caption, Throwable throwable, String suffix) {
+        if (ctx.full)
+            return;
+        appendIndent(ctx, indent);
+        ctx.sb.append(caption).append(throwable.getClass().getName());
+        String message = throwable.getLocalizedMessage();
+        if (message != null) {
+            ctx.sb.append(": ");
+            // only append the part of the message which fits
+            int remaining = maxLength - ctx.sb.length() + 1;
+            if (remaining > 0)
+                ctx.sb.append(message, 0, Math.min(message.length(), remaining));
+        }
+        ctx.sb.append(suffix).append(LINE_SEPARATOR);
+        endLine(ctx);
+    }
+
+    private void appendFrames(Context ctx, StackTraceElement[] frames, int count, int indent) {
+        for (int i = 0; i < count && !ctx.full; i++) {
+            appendFrame(ctx, frames[i], indent);
+            if (collapsedPackages.length == 0 || !isCollapsed(frames[i]))
+                continue;
+            int end = i + 1;
+            while (end < count && isCollapsed(frames[end]))
+                end++;
+            int omitted = end - i - 1;
+            if (omitted > 1 && !ctx.full) {
+                appendIndent(ctx, indent);
+                ctx.sb.append("\t... ").append(omitted).append(" collapsed frames").append(LINE_SEPARATOR);
+                endLine(ctx);
+                i = end - 1;
+            }
+        }
+    }
+
+    private boolean isCollapsed(StackTraceElement frame) {
+        String className = frame.getClassName();
+        for (String prefix : collapsedPackages) {
+            if (className.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Append a frame in the format of {@link StackTraceElement#toString()}
+     * of Java 8, without creating the string
+     */
+    private void appendFrame(Context ctx, StackTraceElement frame, int indent) {
+        appendIndent(ctx, indent);
+        StringBuilder sb = ctx.sb;
+        sb.append("\tat ").append(frame.getClassName()).append('.').append(frame.getMethodName());
+        String fileName = frame.getFileName();
+        if (frame.isNativeMethod())
+            sb.append("(Native Method)");
+        else if (fileName == null)
+            sb.append("(Unknown Source)");
+        else {
+            sb.append('(').append(fileName);
+            if (frame.getLineNumber() >= 0)
+                sb.append(':').append(frame.getLineNumber());
+            sb.append(')');
+        }
+        sb.append(LINE_SEPARATOR);
+        endLine(ctx);
+    }
+
+    private void appendIndent(Context ctx, int indent) {
+        for (int i = 0; i < indent; i++)
+            ctx.sb.append('\t');
+    }
+
+    /**
+     * Cut the builder at the maximum length if it has been exceeded
+     */
+    private void endLine(Context ctx) {
+        if (ctx.sb.length() > maxLength) {
+            ctx.sb.setLength(maxLength);
+            ctx.full = true;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns ids to strings which repeat across log records, like logger and
+ * thread names, such that binary records stored in a
+ * {@link EsIndexRequestBuffer} only contain the id. See
+ * {@link EsLogRecordWriter#writeBinaryRecord(EsLogRecord, EsStringDictionary)}.
+ * Ids are never reused, thus an id stays valid as long as the dictionary
+ * exists. Looking up the id of a known string does not allocate.
+ *
+ * <p>
+ * The id {@link #INLINE_ID} is reserved for strings contained in the record
+ * itself. It is returned once the maximum size is reached, which limits the
+ * memory used if there are a lot of different thread names, for example.
+ * Unknown strings of a full dictionary are not looked up while holding the
+ * lock.
+ */
+public class EsStringDictionary {
+
+    /**
+     * Id of strings contained in the record
+     */
+    public static final int INLINE_ID = 0;
+
+    /**
+     * String registered under an id
+     */
+    public static class Entry {
+        public final String value;
+
+        /**
+         * The value as JSON string, including the quotes, encoded as UTF-8
+         */
+        final byte[] json;
+
+        Entry(String value) {
+            this.value = value;
+            EsLogRecordWriter writer = new EsLogRecordWriter(null);
+            writer.writeString(value);
+            json = writer.toByteArray();
+        }
+    }
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    /**
+     * Entries by id. Replaced when growing, the entries are set before the id
+     * is published.
+     */
+    private volatile Entry[] entries = new Entry[64];
+
+    /**
+     * Number of registered entries. Guarded by this.
+     */
+    private int size;
+
+    /**
+     * Set once the maximum size is reached
+     */
+    private volatile boolean full;
+
+    public EsStringDictionary() {
+        this(4096);
+    }
+
+    public EsStringDictionary(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the id of a string, registering it if necessary
+     *
+     * @return the id, or {@link #INLINE_ID} if the dictionary is full
+     */
+    public int id(String value) {
+        Integer id = ids.get(value);
+        if (id != null)
+            return id;
+        if (full)
+            return INLINE_ID;
+        return register(value);
+    }
+
+    private synchronized int register(String value) {
+        Integer existing = ids.get(value);
+        if (existing != null)
+            return existing;
+        if (size >= maxSize) {
+            full = true;
+            return INLINE_ID;
+        }
+        int id = size + 1;
+        Entry[] newEntries = entries;
+        if (id >= newEntries.length)
+            newEntries = Arrays.copyOf(newEntries, newEntries.length * 2);
+        newEntries[id] = new Entry(value);
+        entries = newEntries;
+        size++;
+        ids.put(value, id);
+        return id;
+    }
+
+    /**
+     * Get the entry of an id returned by {@link #id(String)}
+     */
+    public Entry get(int id) {
+        Entry[] entries = this.entries;
+        Entry entry = id > 0 && id < entries.length ? entries[id] : null;
+        if (entry == null)
+            throw new IllegalArgumentException("Unknown string id " + id);
+        return entry;
+    }
+
+    /**
+     * Number of registered strings
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * {@link BufferStorage} backed by a byte array
+ */
+public class HeapBufferStorage extends BufferStorage {
+
+    private final byte[] buffer;
+
+    public HeapBufferStorage(int capacity) {
+        this(new byte[capacity]);
+    }
+
+    public HeapBufferStorage(byte[] buffer) {
+        super(buffer.length);
+        this.buffer = buffer;
+    }
+
+    @Override
+    public byte get(int pos) {
+        return buffer[pos];
+    }
+
+    @Override
+    public void put(int pos, byte value) {
+        buffer[pos] = value;
+    }
+
+    @Override
+    public String toString(int pos, int length, Charset charset) {
+        if (pos + length > capacity)
+            return super.toString(pos, length, charset);
+        // decode without intermediate copy
+        return new String(buffer, pos, length, charset);
+    }
+
+    @Override
+    public int putUtf8(int pos, CharSequence value, int encodedLength) {
+        if (pos + encodedLength > capacity)
+            return super.putUtf8(pos, value, encodedLength);
+        // encode into the array without wrap checks
+        int count = value.length();
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[pos++] = (byte) (0xC0 | c >> 6);
+                buffer[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[pos++] = (byte) (0xF0 | codePoint >> 18);
+                    buffer[pos++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    buffer[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    buffer[pos++] = (byte) (0x80 | codePoint & 0x3F);
+                } else
+                    buffer[pos++] = '?';
+            } else {
+                buffer[pos++] = (byte) (0xE0 | c >> 12);
+                buffer[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return wrap(pos);
+    }
+
+    @Override
+    protected void getPart(int pos, byte[] dst, int dstOffset, int length) {
+        System.arraycopy(buffer, pos, dst, dstOffset, length);
+    }
+
+    @Override
+    protected void putPart(int pos, byte[] src, int srcOffset, int length) {
+        System.arraycopy(src, srcOffset, buffer, pos, length);
+    }
+
+    @Override
+    protected void writePartTo(int pos, int length, OutputStream out) throws IOException {
+        out.write(buffer, pos, length);
+    }
+}
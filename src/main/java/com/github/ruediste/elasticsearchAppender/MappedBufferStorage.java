@@ -0,0 +1,120 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link BufferStorage} backed by a memory mapped file. The contents and the
+ * cursors of the ring buffer are retained across restarts. The data is kept in
+ * the page cache and written to disk by the operating system, or when
+ * {@link #flush()} is called.
+ *
+ * <p>
+ * The file starts with a header containing the capacity and the cursors,
+ * followed by the data. The cursors are updated after the data has been
+ * written, with a single 8 byte write. If the capacity of an existing file
+ * differs, the contents of the file are discarded.
+ */
+public class MappedBufferStorage extends ByteBufferStorage {
+
+    static final int HEADER_SIZE = 64;
+    private static final int MAGIC = 0x45534142;
+    private static final int VERSION = 2;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int CURSORS_OFFSET = 16;
+
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer mapped;
+
+    private MappedBufferStorage(FileChannel channel, FileLock lock, MappedByteBuffer mapped) {
+        super(data(mapped));
+        this.channel = channel;
+        this.lock = lock;
+        this.mapped = mapped;
+    }
+
+    private static ByteBuffer data(MappedByteBuffer mapped) {
+        ByteBuffer tmp = mapped.duplicate();
+        ((Buffer) tmp).position(HEADER_SIZE);
+        return tmp.slice();
+    }
+
+    /**
+     * Open or create the given file and map it into memory. The file is locked
+     * until the storage is closed.
+     */
+    public static MappedBufferStorage open(File file, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // locked within this JVM
+                lock = null;
+            }
+            if (lock == null)
+                throw new IOException("Buffer file " + file + " is used by another process");
+            MappedByteBuffer mapped = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity);
+            return new MappedBufferStorage(channel, lock, mapped);
+        } catch (Throwable t) {
+            channel.close();
+            throw t;
+        }
+    }
+
+    @Override
+    public Cursors loadCursors() {
+        if (mapped.getInt(MAGIC_OFFSET) != MAGIC || mapped.getInt(VERSION_OFFSET) != VERSION
+                || mapped.getInt(CAPACITY_OFFSET) != capacity) {
+            // new or incompatible file, initialize the header
+            mapped.putLong(CURSORS_OFFSET, 0);
+            mapped.putInt(CAPACITY_OFFSET, capacity);
+            mapped.putInt(VERSION_OFFSET, VERSION);
+            mapped.putInt(MAGIC_OFFSET, MAGIC);
+            return null;
+        }
+        long cursors = mapped.getLong(CURSORS_OFFSET);
+        int readPos = (int) (cursors >>> 32);
+        int available = (int) cursors;
+        if (readPos < 0 || readPos >= capacity || available < 0 || available > capacity) {
+            mapped.putLong(CURSORS_OFFSET, 0);
+            return null;
+        }
+        return new Cursors(readPos, available);
+    }
+
+    @Override
+    public void storeCursors(int readPos, int available) {
+        mapped.putLong(CURSORS_OFFSET, ((long) readPos << 32) | (available & 0xFFFFFFFFL));
+    }
+
+    @Override
+    public void flush() {
+        mapped.force();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        try {
+            lock.release();
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Error while closing buffer file", e);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.github.ruediste.elasticsearchAppender.log4j;
 
-import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map.Entry;
 
@@ -34,8 +33,20 @@ public class EsAppenderLog4j1 extends AppenderSkeleton implements EsIndexerProps
     protected void append(LoggingEvent event) {
         if (!isAsSevereAsThreshold(event.getLevel()))
             return;
+        if (helper.isSuppressed(event.getLoggerName(), EsAppenderHelper.level(event.getLevel().toString()))) {
+            indexer.countSuppressed();
+            return;
+        }
+
+        EsLogRecord record = helper.acquireRecord();
+        try {
+            append(event, record);
+        } finally {
+            helper.releaseRecord(record);
+        }
+    }
 
-        EsLogRecord record = new EsLogRecord();
+    private void append(LoggingEvent event, EsLogRecord record) {
         helper.prepareLogRecord(record, event.getTimeStamp());
         record.thread = event.getThreadName();
         record.logger = event.getLoggerName();
@@ -43,23 +54,29 @@ public class EsAppenderLog4j1 extends AppenderSkeleton implements EsIndexerProps
         record.level = event.getLevel().toString();
 
         ThrowableInformation ti = event.getThrowableInformation();
+        long exceptionFingerprint = 0;
         if (ti != null) {
             Throwable t = ti.getThrowable();
             if (t != null) {
                 record.exceptionClass = t.getClass().getName();
                 record.exceptionMessage = helper.truncate(t.getMessage());
-                record.stackTrace = helper.getStackTrace(t);
+                exceptionFingerprint = helper.setStackTrace(record, t);
             }
         }
         Hashtable<?, ?> context = org.apache.log4j.MDC.getContext();
-        if (context != null) {
-            record.mdc = new HashMap<>();
+        if (context != null && !context.isEmpty()) {
+            record.mdc = record.mdcMap();
             for (Entry<?, ?> entry : context.entrySet()) {
                 record.mdc.put(helper.truncate(String.valueOf(entry.getKey())).replace('.', '_'),
                         helper.truncate(String.valueOf(entry.getValue())));
             }
         }
-        indexer.queue(helper.getIndex(record.time), esType, record);
+        if (helper.aggregate(record, null, exceptionFingerprint))
+            queue(record);
+    }
+
+    private void queue(EsLogRecord record) {
+        indexer.queue(helper.getIndex(record.time), esType, record, EsAppenderHelper.level(record.level));
     }
 
     @Override
@@ -86,10 +103,12 @@ public class EsAppenderLog4j1 extends AppenderSkeleton implements EsIndexerProps
             }
         };
         indexer.start();
+        helper.startAggregation(this::queue);
     }
 
     @Override
     public void close() {
+        helper.stopAggregation();
         indexer.stop();
         throwableProxyConverter.stop();
         helper.stop();
@@ -118,6 +137,51 @@ public class EsAppenderLog4j1 extends AppenderSkeleton implements EsIndexerProps
         EsAppenderHelperProps.super.setMaxStringLength(maxStringLength);
     }
 
+    @Override
+    public void setElideCommonFrames(String elideCommonFrames) {
+        EsAppenderHelperProps.super.setElideCommonFrames(elideCommonFrames);
+    }
+
+    @Override
+    public void setCollapsedFramePackages(String collapsedFramePackages) {
+        EsAppenderHelperProps.super.setCollapsedFramePackages(collapsedFramePackages);
+    }
+
+    @Override
+    public void setStackTraceDedupWindow(String stackTraceDedupWindow) {
+        EsAppenderHelperProps.super.setStackTraceDedupWindow(stackTraceDedupWindow);
+    }
+
+    @Override
+    public void setStackTraceDedupCacheSize(String stackTraceDedupCacheSize) {
+        EsAppenderHelperProps.super.setStackTraceDedupCacheSize(stackTraceDedupCacheSize);
+    }
+
+    @Override
+    public void setAggregationWindow(String aggregationWindow) {
+        EsAppenderHelperProps.super.setAggregationWindow(aggregationWindow);
+    }
+
+    @Override
+    public void setAggregationMaxSize(String aggregationMaxSize) {
+        EsAppenderHelperProps.super.setAggregationMaxSize(aggregationMaxSize);
+    }
+
+    @Override
+    public void setRateLimits(String rateLimits) {
+        EsAppenderHelperProps.super.setRateLimits(rateLimits);
+    }
+
+    @Override
+    public void setSampleRates(String sampleRates) {
+        EsAppenderHelperProps.super.setSampleRates(sampleRates);
+    }
+
+    @Override
+    public void setGarbageFree(String garbageFree) {
+        EsAppenderHelperProps.super.setGarbageFree(garbageFree);
+    }
+
     @Override
     public void setIndexPattern(String indexPattern) {
         EsAppenderHelperProps.super.setIndexPattern(indexPattern);
@@ -143,16 +207,106 @@ public class EsAppenderLog4j1 extends AppenderSkeleton implements EsIndexerProps
         EsIndexerProps.super.setCapacity(capacity);
     }
 
+    @Override
+    public void setPriorityCapacity(String priorityCapacity) {
+        EsIndexerProps.super.setPriorityCapacity(priorityCapacity);
+    }
+
+    @Override
+    public void setPriorityLevel(String priorityLevel) {
+        EsIndexerProps.super.setPriorityLevel(priorityLevel);
+    }
+
+    @Override
+    public void setLockFreeBuffer(String lockFreeBuffer) {
+        EsIndexerProps.super.setLockFreeBuffer(lockFreeBuffer);
+    }
+
+    @Override
+    public void setBufferStripes(String bufferStripes) {
+        EsIndexerProps.super.setBufferStripes(bufferStripes);
+    }
+
+    @Override
+    public void setOverflowPolicy(String overflowPolicy) {
+        EsIndexerProps.super.setOverflowPolicy(overflowPolicy);
+    }
+
+    @Override
+    public void setOverflowMaxBlockTime(String overflowMaxBlockTime) {
+        EsIndexerProps.super.setOverflowMaxBlockTime(overflowMaxBlockTime);
+    }
+
+    @Override
+    public void setBufferStorage(String bufferStorage) {
+        EsIndexerProps.super.setBufferStorage(bufferStorage);
+    }
+
+    @Override
+    public void setBufferFile(String bufferFile) {
+        EsIndexerProps.super.setBufferFile(bufferFile);
+    }
+
+    @Override
+    public void setBufferFlushInterval(String bufferFlushInterval) {
+        EsIndexerProps.super.setBufferFlushInterval(bufferFlushInterval);
+    }
+
     @Override
     public void setMaxBulkDocumentCount(String maxBulkDocumentCount) {
         EsIndexerProps.super.setMaxBulkDocumentCount(maxBulkDocumentCount);
     }
 
+    @Override
+    public void setMinBulkDocumentCount(String minBulkDocumentCount) {
+        EsIndexerProps.super.setMinBulkDocumentCount(minBulkDocumentCount);
+    }
+
+    @Override
+    public void setLingerTime(String lingerTime) {
+        EsIndexerProps.super.setLingerTime(lingerTime);
+    }
+
     @Override
     public void setMaxBulkMemorySize(String maxBulkMemorySize) {
         EsIndexerProps.super.setMaxBulkMemorySize(maxBulkMemorySize);
     }
 
+    @Override
+    public void setIndexingConcurrency(String indexingConcurrency) {
+        EsIndexerProps.super.setIndexingConcurrency(indexingConcurrency);
+    }
+
+    @Override
+    public void setDeferredRendering(String deferredRendering) {
+        EsIndexerProps.super.setDeferredRendering(deferredRendering);
+    }
+
+    @Override
+    public void setRenderingConcurrency(String renderingConcurrency) {
+        EsIndexerProps.super.setRenderingConcurrency(renderingConcurrency);
+    }
+
+    @Override
+    public void setCompression(String compression) {
+        EsIndexerProps.super.setCompression(compression);
+    }
+
+    @Override
+    public void setCompressionLevel(String compressionLevel) {
+        EsIndexerProps.super.setCompressionLevel(compressionLevel);
+    }
+
+    @Override
+    public void setBufferCompression(String bufferCompression) {
+        EsIndexerProps.super.setBufferCompression(bufferCompression);
+    }
+
+    @Override
+    public void setBuiltInTransport(String builtInTransport) {
+        EsIndexerProps.super.setBuiltInTransport(builtInTransport);
+    }
+
     @Override
     public void setStopTimeout(String stopTimeout) {
         EsIndexerProps.super.setStopTimeout(stopTimeout);
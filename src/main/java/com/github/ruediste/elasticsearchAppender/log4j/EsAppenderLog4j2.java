@@ -2,9 +2,8 @@ package com.github.ruediste.elasticsearchAppender.log4j;
 
 import java.io.Serializable;
 import java.time.Duration;
-import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -17,9 +16,14 @@ import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.TriConsumer;
 
 import com.github.ruediste.elasticsearchAppender.EsAppenderHelper;
 import com.github.ruediste.elasticsearchAppender.EsAppenderHelperProps;
+import com.github.ruediste.elasticsearchAppender.EsIndexRequestBuffer;
 import com.github.ruediste.elasticsearchAppender.EsIndexer;
 import com.github.ruediste.elasticsearchAppender.EsIndexerLogger;
 import com.github.ruediste.elasticsearchAppender.EsIndexerProps;
@@ -35,6 +39,13 @@ public final class EsAppenderLog4j2 extends AbstractAppender {
 
     private EsIndexer indexer = new EsIndexer();
     private EsAppenderHelper helper = new EsAppenderHelper();
+
+    /**
+     * Puts a context data entry into the MDC map passed as state, without
+     * allocating a lambda per event
+     */
+    private final TriConsumer<String, Object, Map<String, String>> putMdcEntry = (key, value, mdc) -> mdc
+            .put(helper.truncate(key).replace('.', '_'), helper.truncate(String.valueOf(value)));
     private String esType = "log";
 
     @PluginBuilderFactory
@@ -53,13 +64,42 @@ public final class EsAppenderLog4j2 extends AbstractAppender {
             EsAppenderLog4j2 appender = new EsAppenderLog4j2(name, filter, layout, ignoreExceptions);
             appender.esType = esType;
             appender.helper.maxStringLength = maxStringLength;
+            appender.helper.elideCommonFrames = elideCommonFrames;
+            appender.helper.collapsedFramePackages = collapsedFramePackages;
+            appender.helper.stackTraceDedupWindow = Duration.parse(stackTraceDedupWindow);
+            appender.helper.stackTraceDedupCacheSize = stackTraceDedupCacheSize;
+            appender.helper.aggregationWindow = Duration.parse(aggregationWindow);
+            appender.helper.aggregationMaxSize = aggregationMaxSize;
+            appender.helper.rateLimits = rateLimits;
+            appender.helper.sampleRates = sampleRates;
+            appender.helper.garbageFree = garbageFree;
             appender.helper.indexPattern = indexPattern;
             appender.helper.tags = tags;
             appender.helper.labels = labels;
             appender.indexer.threadName = threadName;
             appender.indexer.capacity = capacity;
+            appender.indexer.priorityCapacity = priorityCapacity;
+            appender.indexer.priorityLevel = EsAppenderHelper.level(priorityLevel.trim().toUpperCase(Locale.ENGLISH));
+            appender.indexer.lockFreeBuffer = lockFreeBuffer;
+            appender.indexer.bufferStripes = bufferStripes;
+            appender.indexer.overflowPolicy = EsIndexRequestBuffer.OverflowPolicy
+                    .valueOf(overflowPolicy.trim().toUpperCase(Locale.ENGLISH));
+            appender.indexer.overflowMaxBlockTime = Duration.parse(overflowMaxBlockTime);
+            appender.indexer.bufferStorage = EsIndexer.BufferStorageType
+                    .valueOf(bufferStorage.trim().toUpperCase(Locale.ENGLISH));
+            appender.indexer.bufferFile = bufferFile;
+            appender.indexer.bufferFlushInterval = Duration.parse(bufferFlushInterval);
             appender.indexer.maxBulkDocumentCount = maxBulkDocumentCount;
             appender.indexer.maxBulkMemorySize = maxBulkMemorySize;
+            appender.indexer.minBulkDocumentCount = minBulkDocumentCount;
+            appender.indexer.lingerTime = Duration.parse(lingerTime);
+            appender.indexer.indexingConcurrency = indexingConcurrency;
+            appender.indexer.deferredRendering = deferredRendering;
+            appender.indexer.renderingConcurrency = renderingConcurrency;
+            appender.indexer.compression = EsIndexer.Compression.valueOf(compression.trim().toUpperCase(Locale.ENGLISH));
+            appender.indexer.compressionLevel = compressionLevel;
+            appender.indexer.bufferCompression = bufferCompression;
+            appender.indexer.builtInTransport = builtInTransport;
             appender.indexer.stopTimeout = Duration.parse(stopTimeout);
             appender.indexer.failurePause = Duration.parse(failurePause);
             appender.indexer.esUrl = esUrl;
@@ -118,6 +158,78 @@ public final class EsAppenderLog4j2 extends AbstractAppender {
             this.maxStringLength = Integer.valueOf(maxStringLength);
         }
 
+        @PluginBuilderAttribute
+        boolean elideCommonFrames = defHelper.elideCommonFrames;
+
+        @Override
+        public void setElideCommonFrames(String elideCommonFrames) {
+            this.elideCommonFrames = Boolean.valueOf(elideCommonFrames);
+        }
+
+        @PluginBuilderAttribute
+        String collapsedFramePackages = defHelper.collapsedFramePackages;
+
+        @Override
+        public void setCollapsedFramePackages(String collapsedFramePackages) {
+            this.collapsedFramePackages = collapsedFramePackages;
+        }
+
+        @PluginBuilderAttribute
+        String stackTraceDedupWindow = defHelper.stackTraceDedupWindow.toString();
+
+        @Override
+        public void setStackTraceDedupWindow(String stackTraceDedupWindow) {
+            this.stackTraceDedupWindow = stackTraceDedupWindow;
+        }
+
+        @PluginBuilderAttribute
+        int stackTraceDedupCacheSize = defHelper.stackTraceDedupCacheSize;
+
+        @Override
+        public void setStackTraceDedupCacheSize(String stackTraceDedupCacheSize) {
+            this.stackTraceDedupCacheSize = Integer.valueOf(stackTraceDedupCacheSize);
+        }
+
+        @PluginBuilderAttribute
+        String aggregationWindow = defHelper.aggregationWindow.toString();
+
+        @Override
+        public void setAggregationWindow(String aggregationWindow) {
+            this.aggregationWindow = aggregationWindow;
+        }
+
+        @PluginBuilderAttribute
+        int aggregationMaxSize = defHelper.aggregationMaxSize;
+
+        @Override
+        public void setAggregationMaxSize(String aggregationMaxSize) {
+            this.aggregationMaxSize = Integer.valueOf(aggregationMaxSize);
+        }
+
+        @PluginBuilderAttribute
+        String rateLimits = defHelper.rateLimits;
+
+        @Override
+        public void setRateLimits(String rateLimits) {
+            this.rateLimits = rateLimits;
+        }
+
+        @PluginBuilderAttribute
+        String sampleRates = defHelper.sampleRates;
+
+        @Override
+        public void setSampleRates(String sampleRates) {
+            this.sampleRates = sampleRates;
+        }
+
+        @PluginBuilderAttribute
+        boolean garbageFree = defHelper.garbageFree;
+
+        @Override
+        public void setGarbageFree(String garbageFree) {
+            this.garbageFree = Boolean.valueOf(garbageFree);
+        }
+
         @PluginBuilderAttribute
         String indexPattern = defHelper.indexPattern;
 
@@ -158,6 +270,78 @@ public final class EsAppenderLog4j2 extends AbstractAppender {
             this.capacity = EsIndexer.parseMemorySizeValue(capacity);
         }
 
+        @PluginBuilderAttribute
+        int priorityCapacity = defIndexer.priorityCapacity;
+
+        @Override
+        public void setPriorityCapacity(String priorityCapacity) {
+            this.priorityCapacity = EsIndexer.parseMemorySizeValue(priorityCapacity);
+        }
+
+        @PluginBuilderAttribute
+        String priorityLevel = "WARN";
+
+        @Override
+        public void setPriorityLevel(String priorityLevel) {
+            this.priorityLevel = priorityLevel;
+        }
+
+        @PluginBuilderAttribute
+        boolean lockFreeBuffer = defIndexer.lockFreeBuffer;
+
+        @Override
+        public void setLockFreeBuffer(String lockFreeBuffer) {
+            this.lockFreeBuffer = Boolean.valueOf(lockFreeBuffer);
+        }
+
+        @PluginBuilderAttribute
+        int bufferStripes = defIndexer.bufferStripes;
+
+        @Override
+        public void setBufferStripes(String bufferStripes) {
+            this.bufferStripes = Integer.valueOf(bufferStripes);
+        }
+
+        @PluginBuilderAttribute
+        String overflowPolicy = defIndexer.overflowPolicy.name();
+
+        @Override
+        public void setOverflowPolicy(String overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+        }
+
+        @PluginBuilderAttribute
+        String overflowMaxBlockTime = defIndexer.overflowMaxBlockTime.toString();
+
+        @Override
+        public void setOverflowMaxBlockTime(String overflowMaxBlockTime) {
+            this.overflowMaxBlockTime = overflowMaxBlockTime;
+        }
+
+        @PluginBuilderAttribute
+        String bufferStorage = defIndexer.bufferStorage.name();
+
+        @Override
+        public void setBufferStorage(String bufferStorage) {
+            this.bufferStorage = bufferStorage;
+        }
+
+        @PluginBuilderAttribute
+        String bufferFile = defIndexer.bufferFile;
+
+        @Override
+        public void setBufferFile(String bufferFile) {
+            this.bufferFile = bufferFile;
+        }
+
+        @PluginBuilderAttribute
+        String bufferFlushInterval = defIndexer.bufferFlushInterval.toString();
+
+        @Override
+        public void setBufferFlushInterval(String bufferFlushInterval) {
+            this.bufferFlushInterval = bufferFlushInterval;
+        }
+
         @PluginBuilderAttribute
         int maxBulkDocumentCount = defIndexer.maxBulkDocumentCount;
 
@@ -166,6 +350,22 @@ public final class EsAppenderLog4j2 extends AbstractAppender {
             this.maxBulkDocumentCount = Integer.valueOf(maxBulkDocumentCount);
         }
 
+        @PluginBuilderAttribute
+        int minBulkDocumentCount = defIndexer.minBulkDocumentCount;
+
+        @Override
+        public void setMinBulkDocumentCount(String minBulkDocumentCount) {
+            this.minBulkDocumentCount = Integer.valueOf(minBulkDocumentCount);
+        }
+
+        @PluginBuilderAttribute
+        String lingerTime = defIndexer.lingerTime.toString();
+
+        @Override
+        public void setLingerTime(String lingerTime) {
+            this.lingerTime = lingerTime;
+        }
+
         @PluginBuilderAttribute
         int maxBulkMemorySize = defIndexer.maxBulkMemorySize;
 
@@ -174,6 +374,62 @@ public final class EsAppenderLog4j2 extends AbstractAppender {
             this.maxBulkMemorySize = EsIndexer.parseMemorySizeValue(maxBulkMemorySize);
         }
 
+        @PluginBuilderAttribute
+        int indexingConcurrency = defIndexer.indexingConcurrency;
+
+        @Override
+        public void setIndexingConcurrency(String indexingConcurrency) {
+            this.indexingConcurrency = Integer.valueOf(indexingConcurrency);
+        }
+
+        @PluginBuilderAttribute
+        boolean deferredRendering = defIndexer.deferredRendering;
+
+        @Override
+        public void setDeferredRendering(String deferredRendering) {
+            this.deferredRendering = Boolean.valueOf(deferredRendering);
+        }
+
+        @PluginBuilderAttribute
+        int renderingConcurrency = defIndexer.renderingConcurrency;
+
+        @Override
+        public void setRenderingConcurrency(String renderingConcurrency) {
+            this.renderingConcurrency = Integer.valueOf(renderingConcurrency);
+        }
+
+        @PluginBuilderAttribute
+        String compression = defIndexer.compression.name();
+
+        @Override
+        public void setCompression(String compression) {
+            this.compression = compression;
+        }
+
+        @PluginBuilderAttribute
+        int compressionLevel = defIndexer.compressionLevel;
+
+        @Override
+        public void setCompressionLevel(String compressionLevel) {
+            this.compressionLevel = Integer.valueOf(compressionLevel);
+        }
+
+        @PluginBuilderAttribute
+        boolean bufferCompression = defIndexer.bufferCompression;
+
+        @Override
+        public void setBufferCompression(String bufferCompression) {
+            this.bufferCompression = Boolean.valueOf(bufferCompression);
+        }
+
+        @PluginBuilderAttribute
+        boolean builtInTransport = defIndexer.builtInTransport;
+
+        @Override
+        public void setBuiltInTransport(String builtInTransport) {
+            this.builtInTransport = Boolean.valueOf(builtInTransport);
+        }
+
         @PluginBuilderAttribute
         String stopTimeout = defIndexer.stopTimeout.toString();
 
@@ -244,30 +500,50 @@ public final class EsAppenderLog4j2 extends AbstractAppender {
 
     @Override
     public void append(LogEvent event) {
-        EsLogRecord record = new EsLogRecord();
+        if (helper.isSuppressed(event.getLoggerName(), EsAppenderHelper.level(event.getLevel().toString()))) {
+            indexer.countSuppressed();
+            return;
+        }
+        EsLogRecord record = helper.acquireRecord();
+        try {
+            append(event, record);
+        } finally {
+            helper.releaseRecord(record);
+        }
+    }
+
+    private void append(LogEvent event, EsLogRecord record) {
         helper.prepareLogRecord(record, event.getTimeMillis());
         record.thread = event.getThreadName();
         record.logger = event.getLoggerName();
-        record.message = helper.truncate(event.getMessage().getFormattedMessage());
+        Message message = event.getMessage();
+        if (helper.garbageFree && message instanceof StringBuilderFormattable) {
+            // format into the builder of the record instead of a new string
+            StringBuilder sb = record.messageBuilder();
+            ((StringBuilderFormattable) message).formatTo(sb);
+            record.messageChars = helper.truncate(sb);
+        } else
+            record.message = helper.truncate(message.getFormattedMessage());
         record.level = event.getLevel().toString();
 
         Throwable t = event.getThrown();
+        long exceptionFingerprint = 0;
         if (t != null) {
             record.exceptionClass = t.getClass().getName();
             record.exceptionMessage = helper.truncate(t.getMessage());
-            record.stackTrace = helper.getStackTrace(t);
-        }
-        {
-            Map<String, String> contextMap = event.getContextMap();
-            if (!contextMap.isEmpty()) {
-                record.mdc = new HashMap<>();
-                for (Entry<?, ?> entry : contextMap.entrySet()) {
-                    record.mdc.put(helper.truncate(String.valueOf(entry.getKey())).replace('.', '_'),
-                            helper.truncate(String.valueOf(entry.getValue())));
-                }
-            }
+            exceptionFingerprint = helper.setStackTrace(record, t);
+        }
+        ReadOnlyStringMap contextData = event.getContextData();
+        if (!contextData.isEmpty()) {
+            record.mdc = record.mdcMap();
+            contextData.forEach(putMdcEntry, record.mdc);
         }
-        indexer.queue(helper.getIndex(record.time), esType, record);
+        if (helper.aggregate(record, message.getFormat(), exceptionFingerprint))
+            queue(record);
+    }
+
+    private void queue(EsLogRecord record) {
+        indexer.queue(helper.getIndex(record.time), esType, record, EsAppenderHelper.level(record.level));
     }
 
     @Override
@@ -293,12 +569,14 @@ public final class EsAppenderLog4j2 extends AbstractAppender {
             }
         };
         indexer.start();
+        helper.startAggregation(this::queue);
         super.start();
     }
 
     @Override
     public void stop() {
         super.stop();
+        helper.stopAggregation();
         indexer.stop();
         helper.stop();
     }
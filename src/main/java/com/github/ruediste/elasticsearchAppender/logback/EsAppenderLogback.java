@@ -1,6 +1,6 @@
 package com.github.ruediste.elasticsearchAppender.logback;
 
-import java.util.HashMap;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import org.slf4j.Logger;
@@ -16,6 +16,7 @@ import com.github.ruediste.elasticsearchAppender.EsLogRecord;
 import ch.qos.logback.classic.pattern.ThrowableProxyConverter;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxy;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
 
 public class EsAppenderLogback extends UnsynchronizedAppenderBase<ILoggingEvent>
@@ -51,11 +52,13 @@ public class EsAppenderLogback extends UnsynchronizedAppenderBase<ILoggingEvent>
             }
         };
         indexer.start();
+        helper.startAggregation(this::queue);
     }
 
     @Override
     public void stop() {
         super.stop();
+        helper.stopAggregation();
         indexer.stop();
         throwableProxyConverter.stop();
         helper.stop();
@@ -63,23 +66,48 @@ public class EsAppenderLogback extends UnsynchronizedAppenderBase<ILoggingEvent>
 
     @Override
     protected void append(ILoggingEvent event) {
-        EsLogRecord record = new EsLogRecord();
+        if (helper.isSuppressed(event.getLoggerName(), EsAppenderHelper.level(event.getLevel().levelStr))) {
+            indexer.countSuppressed();
+            return;
+        }
+        EsLogRecord record = helper.acquireRecord();
+        try {
+            append(event, record);
+        } finally {
+            helper.releaseRecord(record);
+        }
+    }
+
+    private void append(ILoggingEvent event, EsLogRecord record) {
         helper.prepareLogRecord(record, event.getTimeStamp());
         record.thread = event.getThreadName();
         record.logger = event.getLoggerName();
         record.message = helper.truncate(event.getFormattedMessage());
         record.level = event.getLevel().levelStr;
         IThrowableProxy throwableProxy = event.getThrowableProxy();
+        long exceptionFingerprint = 0;
         if (throwableProxy != null) {
             record.exceptionClass = throwableProxy.getClassName();
             record.exceptionMessage = helper.truncate(throwableProxy.getMessage());
-            record.stackTrace = helper.truncate(throwableProxyConverter.convert(event));
+            if (throwableProxy instanceof ThrowableProxy)
+                exceptionFingerprint = helper.setStackTrace(record, ((ThrowableProxy) throwableProxy).getThrowable());
+            else
+                // no throwable available, for example after deserialization
+                record.stackTrace = helper.truncate(throwableProxyConverter.convert(event));
         }
-        record.mdc = new HashMap<>();
-        for (Entry<String, String> entry : event.getMDCPropertyMap().entrySet()) {
-            record.mdc.put(entry.getKey().replace('.', '_'), helper.truncate(entry.getValue()));
+        Map<String, String> mdcPropertyMap = event.getMDCPropertyMap();
+        if (!mdcPropertyMap.isEmpty()) {
+            record.mdc = record.mdcMap();
+            for (Entry<String, String> entry : mdcPropertyMap.entrySet()) {
+                record.mdc.put(entry.getKey().replace('.', '_'), helper.truncate(entry.getValue()));
+            }
         }
-        indexer.queue(helper.getIndex(record.time), esType, record);
+        if (helper.aggregate(record, event.getMessage(), exceptionFingerprint))
+            queue(record);
+    }
+
+    private void queue(EsLogRecord record) {
+        indexer.queue(helper.getIndex(record.time), esType, record, EsAppenderHelper.level(record.level));
     }
 
     public String getEsType() {
@@ -106,6 +134,51 @@ public class EsAppenderLogback extends UnsynchronizedAppenderBase<ILoggingEvent>
         EsAppenderHelperProps.super.setMaxStringLength(maxStringLength);
     }
 
+    @Override
+    public void setElideCommonFrames(String elideCommonFrames) {
+        EsAppenderHelperProps.super.setElideCommonFrames(elideCommonFrames);
+    }
+
+    @Override
+    public void setCollapsedFramePackages(String collapsedFramePackages) {
+        EsAppenderHelperProps.super.setCollapsedFramePackages(collapsedFramePackages);
+    }
+
+    @Override
+    public void setStackTraceDedupWindow(String stackTraceDedupWindow) {
+        EsAppenderHelperProps.super.setStackTraceDedupWindow(stackTraceDedupWindow);
+    }
+
+    @Override
+    public void setStackTraceDedupCacheSize(String stackTraceDedupCacheSize) {
+        EsAppenderHelperProps.super.setStackTraceDedupCacheSize(stackTraceDedupCacheSize);
+    }
+
+    @Override
+    public void setAggregationWindow(String aggregationWindow) {
+        EsAppenderHelperProps.super.setAggregationWindow(aggregationWindow);
+    }
+
+    @Override
+    public void setAggregationMaxSize(String aggregationMaxSize) {
+        EsAppenderHelperProps.super.setAggregationMaxSize(aggregationMaxSize);
+    }
+
+    @Override
+    public void setRateLimits(String rateLimits) {
+        EsAppenderHelperProps.super.setRateLimits(rateLimits);
+    }
+
+    @Override
+    public void setSampleRates(String sampleRates) {
+        EsAppenderHelperProps.super.setSampleRates(sampleRates);
+    }
+
+    @Override
+    public void setGarbageFree(String garbageFree) {
+        EsAppenderHelperProps.super.setGarbageFree(garbageFree);
+    }
+
     @Override
     public void setIndexPattern(String indexPattern) {
         EsAppenderHelperProps.super.setIndexPattern(indexPattern);
@@ -131,16 +204,106 @@ public class EsAppenderLogback extends UnsynchronizedAppenderBase<ILoggingEvent>
         EsIndexerProps.super.setCapacity(capacity);
     }
 
+    @Override
+    public void setPriorityCapacity(String priorityCapacity) {
+        EsIndexerProps.super.setPriorityCapacity(priorityCapacity);
+    }
+
+    @Override
+    public void setPriorityLevel(String priorityLevel) {
+        EsIndexerProps.super.setPriorityLevel(priorityLevel);
+    }
+
+    @Override
+    public void setLockFreeBuffer(String lockFreeBuffer) {
+        EsIndexerProps.super.setLockFreeBuffer(lockFreeBuffer);
+    }
+
+    @Override
+    public void setBufferStripes(String bufferStripes) {
+        EsIndexerProps.super.setBufferStripes(bufferStripes);
+    }
+
+    @Override
+    public void setOverflowPolicy(String overflowPolicy) {
+        EsIndexerProps.super.setOverflowPolicy(overflowPolicy);
+    }
+
+    @Override
+    public void setOverflowMaxBlockTime(String overflowMaxBlockTime) {
+        EsIndexerProps.super.setOverflowMaxBlockTime(overflowMaxBlockTime);
+    }
+
+    @Override
+    public void setBufferStorage(String bufferStorage) {
+        EsIndexerProps.super.setBufferStorage(bufferStorage);
+    }
+
+    @Override
+    public void setBufferFile(String bufferFile) {
+        EsIndexerProps.super.setBufferFile(bufferFile);
+    }
+
+    @Override
+    public void setBufferFlushInterval(String bufferFlushInterval) {
+        EsIndexerProps.super.setBufferFlushInterval(bufferFlushInterval);
+    }
+
     @Override
     public void setMaxBulkDocumentCount(String maxBulkDocumentCount) {
         EsIndexerProps.super.setMaxBulkDocumentCount(maxBulkDocumentCount);
     }
 
+    @Override
+    public void setMinBulkDocumentCount(String minBulkDocumentCount) {
+        EsIndexerProps.super.setMinBulkDocumentCount(minBulkDocumentCount);
+    }
+
+    @Override
+    public void setLingerTime(String lingerTime) {
+        EsIndexerProps.super.setLingerTime(lingerTime);
+    }
+
     @Override
     public void setMaxBulkMemorySize(String maxBulkMemorySize) {
         EsIndexerProps.super.setMaxBulkMemorySize(maxBulkMemorySize);
     }
 
+    @Override
+    public void setIndexingConcurrency(String indexingConcurrency) {
+        EsIndexerProps.super.setIndexingConcurrency(indexingConcurrency);
+    }
+
+    @Override
+    public void setDeferredRendering(String deferredRendering) {
+        EsIndexerProps.super.setDeferredRendering(deferredRendering);
+    }
+
+    @Override
+    public void setRenderingConcurrency(String renderingConcurrency) {
+        EsIndexerProps.super.setRenderingConcurrency(renderingConcurrency);
+    }
+
+    @Override
+    public void setCompression(String compression) {
+        EsIndexerProps.super.setCompression(compression);
+    }
+
+    @Override
+    public void setCompressionLevel(String compressionLevel) {
+        EsIndexerProps.super.setCompressionLevel(compressionLevel);
+    }
+
+    @Override
+    public void setBufferCompression(String bufferCompression) {
+        EsIndexerProps.super.setBufferCompression(bufferCompression);
+    }
+
+    @Override
+    public void setBuiltInTransport(String builtInTransport) {
+        EsIndexerProps.super.setBuiltInTransport(builtInTransport);
+    }
+
     @Override
     public void setStopTimeout(String stopTimeout) {
         EsIndexerProps.super.setStopTimeout(stopTimeout);
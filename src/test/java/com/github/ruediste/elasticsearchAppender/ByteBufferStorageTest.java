@@ -0,0 +1,102 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ByteBufferStorageTest {
+
+    ByteBufferStorage storage;
+    Charset utf8 = Charset.forName("UTF-8");
+
+    @Before
+    public void setUp() {
+        storage = new ByteBufferStorage(10);
+    }
+
+    @Test
+    public void testPutGetWrapAround() {
+        assertEquals(2, storage.put(7, "abcde".getBytes(utf8), 0, 5));
+        byte[] result = new byte[5];
+        storage.get(7, result, 0, 5);
+        assertEquals("abcde", new String(result, utf8));
+        assertEquals("cd", storage.toString(9, 2, utf8));
+        assertEquals('e', storage.get(1));
+    }
+
+    @Test
+    public void testVarIntWrapAround() {
+        Random r = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            int pos = r.nextInt(10);
+            int value = r.nextInt(1 << 30);
+            storage.putVarInt(pos, value);
+            assertEquals(value, storage.getVarInt(pos));
+        }
+    }
+
+    @Test
+    public void testPutUtf8WrapAround() {
+        Random r = new Random(1);
+        char[] chars = { 'a', '\u00e4', '\u20ac', '\ud83d', '\ude00' };
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int c = r.nextInt(4); c > 0; c--)
+                sb.append(chars[r.nextInt(chars.length)]);
+            byte[] expected = sb.toString().getBytes(utf8);
+            int length = BufferStorage.utf8Length(sb);
+            assertEquals(expected.length, length);
+
+            int pos = r.nextInt(10);
+            assertEquals((pos + length) % 10, storage.putUtf8(pos, sb, length));
+            byte[] result = new byte[length];
+            storage.get(pos, result, 0, length);
+            assertArrayEquals(expected, result);
+        }
+    }
+
+    @Test
+    public void testWriteTo() throws Exception {
+        storage.put(8, "abcd".getBytes(utf8), 0, 4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        storage.writeTo(8, 4, out);
+        assertEquals("abcd", new String(out.toByteArray(), utf8));
+    }
+
+    @Test
+    public void testRingBuffer() {
+        EsIndexRequestBuffer buf = new EsIndexRequestRingBuffer(new ByteBufferStorage(100));
+        checkRingBuffer(buf);
+    }
+
+    @Test
+    public void testLockFreeRingBuffer() {
+        EsIndexRequestBuffer buf = new EsIndexRequestLockFreeRingBuffer(new ByteBufferStorage(96));
+        checkRingBuffer(buf);
+    }
+
+    private void checkRingBuffer(EsIndexRequestBuffer buf) {
+        Random r = new Random(1);
+        Deque<byte[]> expected = new ArrayDeque<>();
+        for (int i = 0; i < 100000; i++) {
+            for (int p = r.nextInt(4); p > 0; p--) {
+                byte[] element = new byte[r.nextInt(20)];
+                r.nextBytes(element);
+                if (buf.put(element))
+                    expected.add(element);
+            }
+            for (byte[] element : buf.drain(r.nextInt(4), -1, Duration.ZERO))
+                assertArrayEquals(expected.remove(), element);
+            assertEquals(expected.size(), buf.availableElements());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.github.ruediste.elasticsearchAppender.log4j.EsAppenderLog4j1;
+import com.github.ruediste.elasticsearchAppender.log4j.EsAppenderLog4j2;
+import com.github.ruediste.elasticsearchAppender.logback.EsAppenderLogback;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * Checks the bytes allocated per event by the appenders in garbage free mode.
+ * No Elasticsearch instance is required, the events stay in the buffer.
+ */
+public class EsAppenderAllocationTest {
+
+    private static final int COUNT = 10000;
+
+    private <T extends EsIndexerProps & EsAppenderHelperProps> void configure(T appender) {
+        appender.setGarbageFree("true");
+        appender.setEsUrl("http://localhost:1");
+        appender.setPerformJMXRegistration("false");
+        appender.setStopTimeout("PT0.1S");
+        appender.setTags("foo,bar");
+    }
+
+    private long allocatedBytesPerEvent(Runnable append) {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < COUNT; i++)
+            append.run();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < COUNT; i++)
+            append.run();
+        long perEvent = (threadBean.getThreadAllocatedBytes(threadId) - before) / COUNT;
+        System.out.println("Bytes allocated per event: " + perEvent);
+        return perEvent;
+    }
+
+    /**
+     * Allow for a few bytes of allocations outside of the appender, for
+     * example by the JIT
+     */
+    private void assertGarbageFree(long perEvent) {
+        assertAllocated(perEvent, 0);
+    }
+
+    private void assertAllocated(long perEvent, long expected) {
+        assertTrue("allocated " + perEvent + " bytes per event", perEvent <= expected + 8);
+    }
+
+    @Test
+    public void testLogback() {
+        LoggerContext context = new LoggerContext();
+        EsAppenderLogback appender = new EsAppenderLogback();
+        appender.setContext(context);
+        configure(appender);
+        appender.start();
+        try {
+            LoggingEvent event = new LoggingEvent(getClass().getName(), context.getLogger("foo"),
+                    ch.qos.logback.classic.Level.INFO, "Hello {}", null, new Object[] { "World" });
+            // AppenderBase iterates the filters of the appender, allocating a
+            // CopyOnWriteArrayList iterator of 24 bytes
+            assertAllocated(allocatedBytesPerEvent(() -> appender.doAppend(event)), 24);
+        } finally {
+            appender.stop();
+        }
+    }
+
+    @Test
+    public void testLog4j1() {
+        // The ES appenders of the logging configurations of the test resources
+        // initialize the logging frameworks recursively while starting. Depending
+        // on the initialization order in the JVM, this breaks Log4j.
+        try {
+            org.apache.log4j.LogManager.getRootLogger();
+        } catch (LinkageError e) {
+            Assume.assumeNoException(e);
+        }
+        EsAppenderLog4j1 appender = new EsAppenderLog4j1();
+        configure(appender);
+        appender.activateOptions();
+        try {
+            org.apache.log4j.spi.LoggingEvent event = new org.apache.log4j.spi.LoggingEvent(getClass().getName(),
+                    org.apache.log4j.Logger.getLogger("foo"), org.apache.log4j.Level.INFO, "Hello World", null);
+            assertGarbageFree(allocatedBytesPerEvent(() -> appender.doAppend(event)));
+        } finally {
+            appender.close();
+        }
+    }
+
+    @Test
+    public void testLog4j2() {
+        EsAppenderLog4j2.Builder builder = EsAppenderLog4j2.newBuilder();
+        configure(builder);
+        builder.setName("allocationTest");
+        EsAppenderLog4j2 appender = builder.build();
+        appender.start();
+        try {
+            Log4jLogEvent event = Log4jLogEvent.newBuilder().setLoggerName("foo")
+                    .setLevel(org.apache.logging.log4j.Level.INFO)
+                    .setMessage(new ParameterizedMessage("Hello {}", "World")).build();
+            assertGarbageFree(allocatedBytesPerEvent(() -> appender.append(event)));
+        } finally {
+            appender.stop();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.time.Duration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class EsBulkEntityTest {
+
+    Charset utf8 = Charset.forName("UTF-8");
+    EsIndexRequestRingBuffer buf;
+    EsIndexTypeDictionary dictionary;
+    EsLogRecordWriter writer;
+
+    @Before
+    public void setUp() {
+        buf = new EsIndexRequestRingBuffer(1024);
+        dictionary = new EsIndexTypeDictionary();
+        writer = new EsLogRecordWriter(null);
+    }
+
+    @Test
+    public void testWriteTo() throws Exception {
+        put("logs", "log", "{\"message\":\"f\\u00f6\"}");
+        put("logs-2", "my\"type\\", "{}");
+        EsIndexRequestBatch batch = buf.drainBatch(10, -1, Duration.ZERO);
+        EsBulkEntity entity = new EsBulkEntity(batch, dictionary);
+        String expected = "{\"index\":{\"_index\":\"logs\",\"_type\":\"log\"}}\n{\"message\":\"f\\u00f6\"}\n"
+                + "{\"index\":{\"_index\":\"logs-2\",\"_type\":\"my\\\"type\\\\\"}}\n{}\n";
+        assertEquals(expected, toString(entity));
+        // the entity is repeatable
+        assertTrue(entity.isRepeatable());
+        assertEquals(expected, toString(entity));
+        assertEquals(expected, new String(ByteStreams.toByteArray(entity.getContent()), utf8));
+        buf.release(batch);
+    }
+
+    @Test
+    public void testDictionary() throws Exception {
+        putWithId("logs", "log", "{\"a\":1}");
+        put("logs", "log", "{\"a\":2}");
+        putWithId("logs", "my\"type", "{\"a\":3}");
+        putWithId("logs", "log", "{\"a\":4}");
+        assertEquals(2, dictionary.size());
+        EsIndexRequestBatch batch = buf.drainBatch(10, -1, Duration.ZERO);
+        assertEquals("{\"index\":{\"_index\":\"logs\",\"_type\":\"log\"}}\n{\"a\":1}\n"
+                + "{\"index\":{\"_index\":\"logs\",\"_type\":\"log\"}}\n{\"a\":2}\n"
+                + "{\"index\":{\"_index\":\"logs\",\"_type\":\"my\\\"type\"}}\n{\"a\":3}\n"
+                + "{\"index\":{\"_index\":\"logs\",\"_type\":\"log\"}}\n{\"a\":4}\n",
+                toString(new EsBulkEntity(batch, dictionary)));
+    }
+
+    @Test
+    public void testPayloadNotDecoded() throws Exception {
+        put("i", "t", "{\"m\":\"ä€\"}");
+        EsIndexRequestBatch batch = buf.drainBatch(10, -1, Duration.ZERO);
+        assertEquals("{\"index\":{\"_index\":\"i\",\"_type\":\"t\"}}\n{\"m\":\"ä€\"}\n",
+                toString(new EsBulkEntity(batch, dictionary)));
+    }
+
+    @Test
+    public void testControlCharacterEscaped() throws Exception {
+        put("i", "a\tb", "{}");
+        EsIndexRequestBatch batch = buf.drainBatch(10, -1, Duration.ZERO);
+        assertEquals("{\"index\":{\"_index\":\"i\",\"_type\":\"a\\u0009b\"}}\n{}\n",
+                toString(new EsBulkEntity(batch, dictionary)));
+    }
+
+    @Test
+    public void testBinaryRecord() throws Exception {
+        EsStringDictionary strings = new EsStringDictionary();
+        EsLogRecord record = new EsLogRecord();
+        record.time = 1;
+        record.logger = "foo";
+        record.message = "a\"b";
+        writer.reset();
+        writer.writeElementHeader(dictionary.id("i", "t"));
+        writer.writeBinaryRecord(record, strings);
+        assertTrue(buf.put(writer.toByteArray()));
+        put("i", "t", "{}");
+        EsIndexRequestBatch batch = buf.drainBatch(10, -1, Duration.ZERO);
+        assertEquals("{\"index\":{\"_index\":\"i\",\"_type\":\"t\"}}\n{\"time\":1,\"logger\":\"foo\",\"message\":\"a\\\"b\"}\n"
+                + "{\"index\":{\"_index\":\"i\",\"_type\":\"t\"}}\n{}\n",
+                toString(new EsBulkEntity(batch, dictionary, strings)));
+    }
+
+    private String toString(EsBulkEntity entity) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return new String(out.toByteArray(), utf8);
+    }
+
+    private void put(String index, String type, String payload) throws Exception {
+        writer.reset();
+        writer.writeElementHeader(index, type);
+        writer.writeUtf8(payload);
+        assertTrue(buf.put(writer.toByteArray()));
+    }
+
+    private void putWithId(String index, String type, String payload) throws Exception {
+        writer.reset();
+        writer.writeElementHeader(dictionary.id(index, type));
+        writer.writeUtf8(payload);
+        assertTrue(buf.put(writer.toByteArray()));
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EsBulkRendererTest {
+
+    Charset utf8 = Charset.forName("UTF-8");
+    EsIndexRequestRingBuffer buf;
+    EsIndexTypeDictionary dictionary;
+    EsStringDictionary strings;
+    EsBulkRenderer renderer;
+
+    @Before
+    public void setUp() {
+        buf = new EsIndexRequestRingBuffer(64 * 1024);
+        dictionary = new EsIndexTypeDictionary();
+        strings = new EsStringDictionary();
+        renderer = new EsBulkRenderer(4, "renderer-", dictionary, strings);
+    }
+
+    @After
+    public void tearDown() {
+        renderer.shutdown();
+    }
+
+    private void putElements(int count) {
+        EsLogRecordWriter writer = new EsLogRecordWriter(null);
+        for (int i = 0; i < count; i++) {
+            EsLogRecord record = new EsLogRecord();
+            record.time = i;
+            record.thread = "thread " + (i % 3);
+            record.message = "message\n" + i;
+            writer.reset();
+            if (i % 2 == 0) {
+                writer.writeElementHeader(dictionary.id("logs", "log"));
+                writer.writeBinaryRecord(record, strings);
+            } else {
+                writer.writeElementHeader("logs", "log");
+                writer.writeRecord(record);
+            }
+            assertTrue(buf.put(writer.toByteArray()));
+        }
+    }
+
+    private String toString(EsBulkEntity entity) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return new String(out.toByteArray(), utf8);
+    }
+
+    @Test
+    public void testSameAsStreaming() throws Exception {
+        putElements(101);
+        EsIndexRequestBatch batch = buf.drainBatch(1000, -1, Duration.ZERO);
+        String expected = toString(new EsBulkEntity(batch, dictionary, strings));
+
+        List<byte[]> segments = renderer.render(batch).get();
+        // split into a chunk per thread
+        assertEquals(4, segments.size());
+        StringBuilder sb = new StringBuilder();
+        for (byte[] segment : segments)
+            sb.append(new String(segment, utf8));
+        assertEquals(expected, sb.toString());
+
+        // the entity writes the rendered segments
+        batch.rendered = renderer.render(batch);
+        assertEquals(expected, toString(new EsBulkEntity(batch, dictionary, strings)));
+        buf.release(batch);
+    }
+
+    @Test
+    public void testSmallBatchSingleChunk() throws Exception {
+        putElements(3);
+        EsIndexRequestBatch batch = buf.drainBatch(1000, -1, Duration.ZERO);
+        assertEquals(1, renderer.render(batch).get().size());
+        buf.release(batch);
+    }
+}
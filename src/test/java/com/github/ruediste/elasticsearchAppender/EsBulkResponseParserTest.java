@@ -0,0 +1,65 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class EsBulkResponseParserTest {
+
+    Charset utf8 = Charset.forName("UTF-8");
+
+    private EsBulkResponse parse(String json) throws IOException {
+        return EsBulkResponseParser.parse(new ByteArrayInputStream(json.getBytes(utf8)));
+    }
+
+    @Test
+    public void testSucceeded() throws Exception {
+        assertSame(EsBulkResponse.SUCCEEDED, parse(
+                "{\"took\":3,\"errors\":false,\"items\":[{\"index\":{\"_index\":\"foo\",\"status\":201}}]}"));
+    }
+
+    @Test
+    public void testItemsNotReadIfSucceeded() throws Exception {
+        // the parser stops after the errors flag
+        InputStream in = new ByteArrayInputStream("{\"took\":3,\"errors\":false,\"items\":[ broken".getBytes(utf8));
+        assertSame(EsBulkResponse.SUCCEEDED, EsBulkResponseParser.parse(in));
+    }
+
+    @Test
+    public void testFailedItems() throws Exception {
+        EsBulkResponse response = parse("{\"took\":3,\"errors\":true,\"items\":["
+                + "{\"index\":{\"_index\":\"foo\",\"_type\":\"bar\",\"status\":201}},"
+                + "{\"index\":{\"_index\":\"foo\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\","
+                + "\"reason\":\"failed to parse [a]\",\"caused_by\":{\"type\":\"x\",\"reason\":null}}}},"
+                + "{\"index\":{\"_index\":\"foo\",\"status\":429}}]}");
+        assertFalse(response.succeeded);
+        assertEquals("One or more of the items in the bulk request failed", response.errorMessage);
+        assertEquals(Arrays.asList("{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse [a]\","
+                + "\"caused_by\":{\"type\":\"x\",\"reason\":null}}", "Status 429"), response.failedItemErrors);
+    }
+
+    @Test
+    public void testWhitespaceAndEscapes() throws Exception {
+        EsBulkResponse response = parse("{\n  \"took\" : 3,\n  \"errors\" : true,\n  \"items\" : [ {\n"
+                + "    \"index\" : {\n      \"_id\" : \"a\\\"}\",\n      \"status\" : 400,\n"
+                + "      \"error\" : \"failed \\\"badly\\\"\"\n    }\n  } ]\n}");
+        assertFalse(response.succeeded);
+        assertEquals(Arrays.asList("\"failed \\\"badly\\\"\""), response.failedItemErrors);
+    }
+
+    @Test
+    public void testItemsBeforeErrors() throws Exception {
+        EsBulkResponse response = parse(
+                "{\"items\":[{\"index\":{\"status\":400,\"error\":\"failed\"}}],\"errors\":true,\"took\":3}");
+        assertFalse(response.succeeded);
+        assertEquals(Arrays.asList("\"failed\""), response.failedItemErrors);
+    }
+}
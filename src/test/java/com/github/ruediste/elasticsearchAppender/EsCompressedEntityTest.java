@@ -0,0 +1,124 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class EsCompressedEntityTest {
+
+    Charset utf8 = Charset.forName("UTF-8");
+
+    private String body() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            sb.append("{\"index\":{\"_index\":\"logs\",\"_type\":\"log\"}}\n{\"message\":\"message " + i + "\"}\n");
+        return sb.toString();
+    }
+
+    private byte[] write(EsCompressedEntity entity) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private String decompress(InputStream in) throws Exception {
+        return new String(ByteStreams.toByteArray(in), utf8);
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        String body = body();
+        EsCompressedEntity entity = new EsCompressedEntity(new StringEntity(body, utf8), true,
+                new EsCompressedEntity.Compressor(new Deflater(Deflater.DEFAULT_COMPRESSION, true)));
+        assertEquals("gzip", entity.getContentEncoding().getValue());
+        byte[] compressed = write(entity);
+        assertEquals(body, decompress(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+        assertEquals(body.length(), entity.uncompressedBytes());
+        assertEquals(compressed.length, entity.compressedBytes());
+        assertTrue(compressed.length * 8 < body.length());
+
+        // the deflater is reset, the entity is repeatable
+        byte[] again = write(entity);
+        assertEquals(body, decompress(new GZIPInputStream(new ByteArrayInputStream(again))));
+        assertEquals(2L * body.length(), entity.uncompressedBytes());
+        assertEquals(body, decompress(new GZIPInputStream(entity.getContent())));
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        String body = body();
+        EsCompressedEntity entity = new EsCompressedEntity(new StringEntity(body, utf8), false,
+                new EsCompressedEntity.Compressor(new Deflater(Deflater.BEST_SPEED)));
+        assertEquals("deflate", entity.getContentEncoding().getValue());
+        byte[] compressed = write(entity);
+        assertEquals(body, decompress(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+        assertEquals(-1, entity.getContentLength());
+        assertTrue(entity.isChunked());
+    }
+
+    @Test
+    public void testSmallWritesAndReuse() throws Exception {
+        String body = body();
+        byte[] bytes = body.getBytes(utf8);
+        // writes pieces of varying sizes, like the bulk entity
+        AbstractHttpEntity pieces = new AbstractHttpEntity() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                int pos = 0;
+                for (int i = 0; pos < bytes.length; i++) {
+                    if (i % 3 == 0) {
+                        out.write(bytes[pos++]);
+                        continue;
+                    }
+                    int length = Math.min(bytes.length - pos, i % 3 == 1 ? 7 : 20000);
+                    out.write(bytes, pos, length);
+                    pos += length;
+                }
+            }
+
+            @Override
+            public boolean isStreaming() {
+                return false;
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+
+            @Override
+            public InputStream getContent() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long getContentLength() {
+                return bytes.length;
+            }
+        };
+        EsCompressedEntity.Compressor compressor = new EsCompressedEntity.Compressor(
+                new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        for (int i = 0; i < 2; i++) {
+            EsCompressedEntity entity = new EsCompressedEntity(pieces, true, compressor);
+            byte[] compressed = write(entity);
+            assertEquals(body, decompress(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+            assertEquals(compressed.length, entity.compressedBytes());
+        }
+        compressor.end();
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EsEventAggregatorTest {
+
+    List<EsLogRecord> sent;
+    EsEventAggregator aggregator;
+
+    @Before
+    public void setUp() {
+        sent = new ArrayList<>();
+        aggregator = new EsEventAggregator(1000, 2, sent::add);
+    }
+
+    private static EsLogRecord record(String message, long time) {
+        EsLogRecord record = new EsLogRecord();
+        record.logger = "foo";
+        record.level = "INFO";
+        record.message = message;
+        record.time = time;
+        return record;
+    }
+
+    @Test
+    public void testRepeatedEventsAggregated() {
+        assertTrue(aggregator.add(record("a 1", 0), "a {}", 0));
+        assertFalse(aggregator.add(record("a 2", 10), "a {}", 0));
+        EsLogRecord last = record("a 3", 20);
+        assertFalse(aggregator.add(last, "a {}", 0));
+        // the aggregator copies the record, it may be reused by the appender
+        last.clear();
+        // different template or exception
+        assertTrue(aggregator.add(record("b", 30), "b", 0));
+        assertTrue(aggregator.add(record("a 4", 30), "a {}", 1234));
+
+        aggregator.flush(999);
+        assertTrue(sent.isEmpty());
+        aggregator.flush(1000);
+        assertEquals(1, sent.size());
+        EsLogRecord aggregate = sent.get(0);
+        assertEquals("a 3", aggregate.message);
+        assertEquals(Integer.valueOf(2), aggregate.count);
+        assertEquals(Long.valueOf(10), aggregate.firstTime);
+        assertEquals(Long.valueOf(20), aggregate.lastTime);
+        assertEquals(1, aggregator.size());
+    }
+
+    @Test
+    public void testWindowEndedByNextEvent() {
+        assertTrue(aggregator.add(record("a", 0), "a", 0));
+        assertFalse(aggregator.add(record("a", 500), "a", 0));
+        EsLogRecord next = record("a", 1000);
+        assertTrue(aggregator.add(next, "a", 0));
+        assertEquals(1, sent.size());
+        assertEquals(Integer.valueOf(1), sent.get(0).count);
+        assertNull(next.count);
+        assertFalse(aggregator.add(record("a", 1001), "a", 0));
+    }
+
+    @Test
+    public void testMaxSize() {
+        assertTrue(aggregator.add(record("a", 0), "a", 0));
+        assertTrue(aggregator.add(record("b", 0), "b", 0));
+        assertTrue(aggregator.add(record("c", 0), "c", 0));
+        // not tracked
+        assertTrue(aggregator.add(record("c", 0), "c", 0));
+        assertEquals(2, aggregator.size());
+    }
+
+    @Test
+    public void testStopFlushesAll() {
+        aggregator.start();
+        aggregator.add(record("a", 0), "a", 0);
+        aggregator.add(record("a", 1), "a", 0);
+        aggregator.stop();
+        assertEquals(1, sent.size());
+        assertEquals(0, aggregator.size());
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentAddAndFlush() throws Exception {
+        AtomicLong aggregated = new AtomicLong();
+        EsEventAggregator aggregator = new EsEventAggregator(5, 2, r -> aggregated.addAndGet(r.count));
+        AtomicLong queued = new AtomicLong();
+        int threadCount = 4;
+        int eventCount = 20000;
+        AtomicBoolean done = new AtomicBoolean();
+        Thread flusher = new Thread(() -> {
+            while (!done.get())
+                aggregator.flush(System.nanoTime() / 1000000);
+        });
+        flusher.start();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(() -> {
+                EsLogRecord record = new EsLogRecord();
+                for (int i = 0; i < eventCount; i++) {
+                    record.clear();
+                    record.logger = "foo";
+                    record.level = "INFO";
+                    record.message = i % 2 == 0 ? "a" : "b";
+                    record.time = System.nanoTime() / 1000000;
+                    if (aggregator.add(record, record.message, 0))
+                        queued.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        done.set(true);
+        flusher.join();
+        aggregator.flush(Long.MAX_VALUE);
+        // every event is either queued or counted by an aggregate
+        assertEquals(threadCount * eventCount, queued.get() + aggregated.get());
+        assertEquals(0, aggregator.size());
+    }
+}
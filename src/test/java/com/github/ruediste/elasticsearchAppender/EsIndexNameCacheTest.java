@@ -0,0 +1,63 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class EsIndexNameCacheTest {
+
+    @Test
+    public void testGranularity() {
+        assertEquals(ChronoUnit.DAYS, EsIndexNameCache.granularity("'logstash-'yyyy.MM.dd"));
+        assertEquals(ChronoUnit.HOURS, EsIndexNameCache.granularity("'logstash-'yyyy.MM.dd.HH"));
+        assertEquals(ChronoUnit.MONTHS, EsIndexNameCache.granularity("'logs-'yyyy.MM"));
+        assertEquals(ChronoUnit.DAYS, EsIndexNameCache.granularity("'logs-'YYYY.ww"));
+        assertEquals(ChronoUnit.FOREVER, EsIndexNameCache.granularity("'logs-''all'''"));
+        assertEquals(ChronoUnit.MILLIS, EsIndexNameCache.granularity("yyyyMMddHHmmssSSS"));
+    }
+
+    @Test
+    public void testDaily() {
+        EsIndexNameCache cache = new EsIndexNameCache("'logstash-'yyyy.MM.dd");
+        long midnight = Instant.parse("2017-03-05T00:00:00Z").toEpochMilli();
+        String name = cache.get(midnight + 1000);
+        assertEquals("logstash-2017.03.05", name);
+        assertSame(name, cache.get(midnight));
+        assertSame(name, cache.get(midnight + 24 * 3600 * 1000 - 1));
+        assertEquals("logstash-2017.03.04", cache.get(midnight - 1));
+        assertEquals("logstash-2017.03.06", cache.get(midnight + 24 * 3600 * 1000));
+    }
+
+    @Test
+    public void testConstant() {
+        EsIndexNameCache cache = new EsIndexNameCache("'logs'");
+        String name = cache.get(0);
+        assertEquals("logs", name);
+        assertSame(name, cache.get(Instant.parse("2100-01-01T00:00:00Z").toEpochMilli()));
+    }
+
+    @Test
+    public void testMatchesFormatter() {
+        Random random = new Random(1);
+        long base = Instant.parse("2016-12-20T00:00:00Z").toEpochMilli();
+        for (String pattern : new String[] { "'logstash-'yyyy.MM.dd", "'logstash-'yyyy.MM.dd.HH", "'logs-'yyyy.MM",
+                "'logs-'YYYY.ww", "'logs-'yyyy", "yyyy.MM.dd.HH.mm", "'x'yyyyMMddHHmmssSSS" }) {
+            EsIndexNameCache cache = new EsIndexNameCache(pattern);
+            DateTimeFormatter formatter = DateTimeFormatter.ofPattern(pattern);
+            long time = base;
+            for (int i = 0; i < 100000; i++) {
+                // mostly increasing, sometimes jumping back
+                time += random.nextInt(100000) - 10000;
+                String expected = formatter.format(Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC));
+                assertEquals(pattern, expected, cache.get(time));
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Compares the put throughput of the buffer implementations with many
+ * concurrent producers and a single consumer. The buffer is large enough for
+ * most of the events of a run and the consumer drains zero-copy batches, such
+ * that the producers rarely find the buffer full and the contention on the put
+ * path is measured rather than the drain throughput. Producers retry if the
+ * buffer is full, such that all events pass through the buffer.
+ */
+public class EsIndexRequestBufferContentionPerfTest {
+
+    private static final int CAPACITY = 64 * 1024 * 1024;
+    private static final int EVENTS_PER_RUN = 500000;
+
+    @Test
+    @Ignore("benchmark, run manually")
+    public void testContention() throws Throwable {
+        for (int threadCount : new int[] { 1, 4, 16, 64 }) {
+            run("monitor ", EsIndexRequestRingBuffer::new, threadCount);
+            run("lockFree", EsIndexRequestLockFreeRingBuffer::new, threadCount);
+            run("striped ", capacity -> new EsIndexRequestStripedBuffer(capacity, 8), threadCount);
+        }
+    }
+
+    private void run(String name, IntFunction<EsIndexRequestBuffer> bufferFactory, int threadCount)
+            throws Throwable {
+        EsIndexRequestBuffer buffer = bufferFactory.apply(CAPACITY);
+        byte[] header = new byte[20];
+        byte[] payload = new byte[100];
+        int perThread = EVENTS_PER_RUN / threadCount;
+
+        AtomicLong retries = new AtomicLong();
+        AtomicLong drained = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch producersDone = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                long count = 0;
+                for (int i = 0; i < perThread; i++) {
+                    while (!buffer.put(header, payload)) {
+                        count++;
+                        Thread.yield();
+                    }
+                }
+                retries.addAndGet(count);
+                producersDone.countDown();
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread consumer = new Thread(() -> {
+            while (true) {
+                EsIndexRequestBatch batch = buffer.drainBatch(1000, -1, Duration.ofMillis(100));
+                drained.addAndGet(batch.size());
+                buffer.release(batch);
+                if (producersDone.getCount() == 0 && buffer.availableElements() == 0)
+                    return;
+            }
+        });
+        consumer.setDaemon(true);
+        consumer.start();
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        producersDone.await();
+        long putDuration = System.nanoTime() - startTime;
+        consumer.join();
+        long duration = System.nanoTime() - startTime;
+
+        long total = (long) perThread * threadCount;
+        assertEquals(total, drained.get());
+        System.out.println(String.format(
+                "%s threads: %2d put: %,12.0f events/s put and drain: %,12.0f events/s full buffer retries: %,d",
+                name, threadCount, 1e9 * total / putDuration, 1e9 * total / duration, retries.get()));
+    }
+}
@@ -0,0 +1,287 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EsIndexRequestLockFreeRingBufferTest {
+
+    Timer timer;
+    EsIndexRequestLockFreeRingBuffer buf;
+    int putCounter;
+
+    Charset utf8 = Charset.forName("UTF-8");
+
+    @Before
+    public void setUp() throws Exception {
+        timer = new Timer(true);
+        buf = new EsIndexRequestLockFreeRingBuffer(100);
+        putCounter = 0;
+    }
+
+    @Test
+    public void testCapacityRounded() {
+        assertEquals(96, buf.capacity());
+    }
+
+    @Test
+    public void testPutTake() {
+        put("foo");
+        assertEquals(1, buf.availableElements());
+        assertEquals(8, buf.available());
+        assertArrayEquals(new Object[] { "foo" }, drain(10));
+        assertEquals(0, buf.availableElements());
+        assertEquals(0, buf.available());
+    }
+
+    @Test
+    public void testPutTakeRandom() {
+        Random r = new Random(1);
+        int available = 0;
+        for (int i = 0; i < 1000000; i++) {
+            int putCount = r.nextInt(4);
+            for (int p = 0; p < putCount; p++)
+                if (buf.put(new byte[r.nextInt(20)]))
+                    available++;
+            assertEquals(available, buf.availableElements());
+
+            List<byte[]> drained = buf.drain(r.nextInt(4), -1, Duration.ZERO);
+            available -= drained.size();
+            assertEquals(available, buf.availableElements());
+        }
+    }
+
+    @Test
+    public void testTakePut() {
+        Instant start = Instant.now();
+        timer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                put("foo");
+            }
+        }, 500);
+        assertArrayEquals(new Object[] { "foo" }, drain(10, 100, Duration.ofSeconds(1)));
+        assertTrue(start.plusMillis(400).isBefore(Instant.now()));
+    }
+
+    @Test
+    public void testTakeTimeout() {
+        Instant start = Instant.now();
+        assertArrayEquals(new Object[] {}, drain(10, 100, Duration.ofMillis(200)));
+        assertTrue(start.plusMillis(150).isBefore(Instant.now()));
+    }
+
+    @Test
+    public void testDrainMaxCount() throws Exception {
+        put("foo");
+        put("bar");
+        put("fooBar");
+        assertArrayEquals(new Object[] { "foo", "bar" }, drain(2));
+        assertArrayEquals(new Object[] { "fooBar" }, drain(2));
+        assertArrayEquals(new Object[] {}, drain(2));
+    }
+
+    @Test
+    public void testDrainOverflow() throws Exception {
+        // 8 bytes times four elements
+        buf = new EsIndexRequestLockFreeRingBuffer(8 * 4);
+        put(3);
+        drain(10);
+        assertTrue(put("e3"));
+        assertTrue(put("e4"));
+        assertTrue(put("e5"));
+        assertTrue(put("e6"));
+        assertFalse(put("e7"));
+        assertArrayEquals(new Object[] { "e3", "e4", "e5", "e6" }, drain(10));
+    }
+
+    @Test
+    public void testWrapAround() throws Exception {
+        buf = new EsIndexRequestLockFreeRingBuffer(24);
+        put("0123456789");
+        drain(10);
+        // starts at position 16 and wraps around
+        put("abcdefghijklmnopqrs");
+        assertArrayEquals(new Object[] { "abcdefghijklmnopqrs" }, drain(10));
+    }
+
+    @Test
+    public void testDrainMaxSize() throws Exception {
+        // 20 bytes
+        put(10);
+        assertEquals(4, drain(100, 9, null).length);
+    }
+
+    @Test
+    public void testDrainFirstNoLimit() throws Exception {
+        put(10);
+        assertEquals(1, drain(100, 1, null).length);
+    }
+
+    @Test
+    public void testLargeElementLength() throws Exception {
+        buf = new EsIndexRequestLockFreeRingBuffer(1 << 16);
+        byte[] element = new byte[20000];
+        new Random(1).nextBytes(element);
+        assertTrue(buf.put(element));
+        assertArrayEquals(element, buf.drain(1, -1, Duration.ZERO).get(0));
+    }
+
+    @Test
+    public void testConcurrentPutKeepsThreadOrder() throws Exception {
+        int threadCount = 8;
+        int perThread = 100000;
+        buf = new EsIndexRequestLockFreeRingBuffer(64 * 1024);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            int threadNr = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    byte[] element = ByteBuffer.allocate(8).putInt(threadNr).putInt(i).array();
+                    while (!buf.put(element))
+                        Thread.yield();
+                }
+            });
+            threads[t].start();
+        }
+
+        int[] next = new int[threadCount];
+        int received = 0;
+        while (received < threadCount * perThread) {
+            for (byte[] element : buf.drain(100, -1, Duration.ofSeconds(1))) {
+                ByteBuffer bb = ByteBuffer.wrap(element);
+                int threadNr = bb.getInt();
+                assertEquals(next[threadNr]++, bb.getInt());
+                received++;
+            }
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, buf.availableElements());
+        assertEquals(0, buf.available());
+    }
+
+    @Test
+    public void testDrainBatchKeepsElements() throws Exception {
+        put("foo");
+        put("bar");
+        EsIndexRequestBatch batch = buf.drainBatch(10, -1, Duration.ZERO);
+        assertEquals(2, batch.size());
+        assertEquals(6, batch.elementBytes());
+        assertArrayEquals(new Object[] { "foo", "bar" }, toStrings(batch));
+        // visiting again yields the same elements
+        assertArrayEquals(new Object[] { "foo", "bar" }, toStrings(batch));
+        assertEquals(2, buf.availableElements());
+
+        // elements of unreleased batches are not drained again
+        put("fooBar");
+        EsIndexRequestBatch second = buf.drainBatch(10, -1, Duration.ZERO);
+        assertArrayEquals(new Object[] { "fooBar" }, toStrings(second));
+        assertTrue(buf.drainBatch(10, -1, Duration.ZERO).isEmpty());
+
+        buf.release(batch);
+        assertEquals(1, buf.availableElements());
+        buf.release(second);
+        assertEquals(0, buf.availableElements());
+        assertEquals(0, buf.available());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseOutOfOrder() throws Exception {
+        put("foo");
+        EsIndexRequestBatch batch = buf.drainBatch(1, -1, Duration.ZERO);
+        put("bar");
+        EsIndexRequestBatch second = buf.drainBatch(1, -1, Duration.ZERO);
+        assertEquals(1, batch.size());
+        buf.release(second);
+    }
+
+    @Test
+    public void testDrainBatchWrapAround() throws Exception {
+        buf = new EsIndexRequestLockFreeRingBuffer(24);
+        put("0123456789");
+        drain(10);
+        put("abcdefghijklm");
+        EsIndexRequestBatch batch = buf.drainBatch(10, -1, Duration.ZERO);
+        batch.forEach(element -> {
+            assertEquals(13, element.length());
+            assertTrue(element.firstPartLength() < element.length());
+            assertEquals('c', element.get(2));
+            assertEquals("defghijklm", element.toString(3, 10, utf8));
+        });
+        buf.release(batch);
+    }
+
+    @Test
+    public void testPutCharSequence() throws Exception {
+        buf = new EsIndexRequestLockFreeRingBuffer(24);
+        put("0123456789");
+        drain(10);
+        // header and payload, starting at position 12 and wrapping around
+        assertTrue(buf.put(EsIndexRequestBuffer.DEFAULT_LEVEL, "h:xx".getBytes(utf8), 2, "\u00e4\u20acbc\ud83d\ude00"));
+        assertArrayEquals(new Object[] { "h:\u00e4\u20acbc\ud83d\ude00" }, drain(10));
+        assertTrue(buf.put(EsIndexRequestBuffer.DEFAULT_LEVEL, new byte[0], 0, new StringBuilder("foo")));
+        assertArrayEquals(new Object[] { "foo" }, drain(10));
+    }
+
+    @Test
+    public void testAwaitElements() {
+        Instant start = Instant.now();
+        for (int i = 1; i <= 3; i++)
+            timer.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    put(1);
+                }
+            }, 100 * i);
+        assertTrue(buf.awaitElements(3, Integer.MAX_VALUE, Duration.ofSeconds(5)));
+        assertTrue(start.plusMillis(250).isBefore(Instant.now()));
+
+        EsIndexRequestBatch batch = buf.drainBatch(1, -1, Duration.ZERO);
+        assertFalse(buf.awaitElements(3, Integer.MAX_VALUE, Duration.ofMillis(100)));
+        assertTrue(buf.awaitElements(2, Integer.MAX_VALUE, Duration.ZERO));
+        buf.release(batch);
+    }
+
+    private String[] toStrings(EsIndexRequestBatch batch) {
+        List<String> result = new ArrayList<>();
+        batch.forEach(element -> result.add(element.toString(0, element.length(), utf8)));
+        return result.toArray(new String[] {});
+    }
+
+    private String[] drain(int maxCount) {
+        return drain(maxCount, -1, Duration.ZERO);
+    }
+
+    private String[] drain(int maxCount, int maxSize, Duration maxWait) {
+        List<byte[]> drain = buf.drain(maxCount, maxSize, maxWait);
+        return drain.stream().map(x -> new String(x, utf8)).collect(toList()).toArray(new String[] {});
+    }
+
+    private boolean put(String element) {
+        return buf.put(element.getBytes(utf8));
+    }
+
+    private void put(int count) {
+        for (int i = 0; i < count; i++) {
+            put("e" + putCounter++);
+        }
+    }
+}
@@ -3,20 +3,26 @@ package com.github.ruediste.elasticsearchAppender;
 import static java.util.stream.Collectors.toList;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.nio.charset.Charset;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.github.ruediste.elasticsearchAppender.EsIndexRequestBuffer.OverflowPolicy;
+
 public class EsIndexRequestRingBufferTest {
 
     Timer timer;
@@ -143,8 +149,8 @@ public class EsIndexRequestRingBufferTest {
 
     @Test
     public void testDrainOverflow() throws Exception {
-        // 3 bytes times five elements
-        buf = new EsIndexRequestRingBuffer(3 * 5);
+        // 4 bytes (length, level, element) times five elements
+        buf = new EsIndexRequestRingBuffer(4 * 5);
         put(3);
         drain(10);
         put(4);
@@ -153,8 +159,8 @@ public class EsIndexRequestRingBufferTest {
 
     @Test
     public void testDrainLimit() throws Exception {
-        // 3 bytes times five elements
-        buf = new EsIndexRequestRingBuffer(3 * 5);
+        // 4 bytes (length, level, element) times five elements
+        buf = new EsIndexRequestRingBuffer(4 * 5);
         put(3);
         drain(10);
         put(2);
@@ -175,6 +181,328 @@ public class EsIndexRequestRingBufferTest {
         assertEquals(1, drain(100, 1, null).length);
     }
 
+    @Test
+    public void testDrainBatchKeepsElements() throws Exception {
+        put("foo");
+        put("bar");
+        EsIndexRequestBatch batch = buf.drainBatch(10, -1, Duration.ZERO);
+        assertEquals(2, batch.size());
+        assertEquals(6, batch.elementBytes());
+        assertArrayEquals(new Object[] { "foo", "bar" }, toStrings(batch));
+        // visiting again yields the same elements
+        assertArrayEquals(new Object[] { "foo", "bar" }, toStrings(batch));
+        assertEquals(2, buf.availableElements());
+
+        // elements of unreleased batches are not drained again
+        put("fooBar");
+        EsIndexRequestBatch second = buf.drainBatch(10, -1, Duration.ZERO);
+        assertArrayEquals(new Object[] { "fooBar" }, toStrings(second));
+        assertTrue(buf.drainBatch(10, -1, Duration.ZERO).isEmpty());
+
+        buf.release(batch);
+        assertEquals(1, buf.availableElements());
+        buf.release(second);
+        assertEquals(0, buf.availableElements());
+        assertEquals(0, buf.available());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseOutOfOrder() throws Exception {
+        put("foo");
+        EsIndexRequestBatch batch = buf.drainBatch(1, -1, Duration.ZERO);
+        put("bar");
+        EsIndexRequestBatch second = buf.drainBatch(1, -1, Duration.ZERO);
+        assertEquals(1, batch.size());
+        buf.release(second);
+    }
+
+    @Test
+    public void testDrainBatchWrapAround() throws Exception {
+        buf = new EsIndexRequestRingBuffer(24);
+        put("0123456789");
+        drain(10);
+        put("abcdefghijklm");
+        EsIndexRequestBatch batch = buf.drainBatch(10, -1, Duration.ZERO);
+        batch.forEach(element -> {
+            assertEquals(13, element.length());
+            assertTrue(element.firstPartLength() < element.length());
+            assertEquals('c', element.get(2));
+            assertEquals("defghijklm", element.toString(3, 10, utf8));
+        });
+        buf.release(batch);
+    }
+
+    @Test
+    public void testPutCharSequence() throws Exception {
+        buf = new EsIndexRequestRingBuffer(24);
+        put("0123456789");
+        drain(10);
+        // header and payload, starting at position 12 and wrapping around
+        assertTrue(buf.put(EsIndexRequestBuffer.DEFAULT_LEVEL, "h:xx".getBytes(utf8), 2, "\u00e4\u20acbc\ud83d\ude00"));
+        assertArrayEquals(new Object[] { "h:\u00e4\u20acbc\ud83d\ude00" }, drain(10));
+        assertTrue(buf.put(EsIndexRequestBuffer.DEFAULT_LEVEL, new byte[0], 0, new StringBuilder("foo")));
+        assertArrayEquals(new Object[] { "foo" }, drain(10));
+    }
+
+    @Test
+    public void testAwaitElements() {
+        Instant start = Instant.now();
+        for (int i = 1; i <= 3; i++)
+            timer.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    put(1);
+                }
+            }, 100 * i);
+        assertTrue(buf.awaitElements(3, Integer.MAX_VALUE, Duration.ofSeconds(5)));
+        assertTrue(start.plusMillis(250).isBefore(Instant.now()));
+        assertEquals(3, buf.drainableElements());
+    }
+
+    @Test
+    public void testAwaitElementsIgnoresDrainedBatches() {
+        put(2);
+        EsIndexRequestBatch batch = buf.drainBatch(1, -1, Duration.ZERO);
+        assertFalse(buf.awaitElements(2, Integer.MAX_VALUE, Duration.ofMillis(100)));
+        assertTrue(buf.awaitElements(1, Integer.MAX_VALUE, Duration.ofMillis(100)));
+        assertTrue(buf.awaitElements(10, 4, Duration.ofMillis(100)));
+        buf.release(batch);
+    }
+
+    @Test
+    public void testWakeUp() {
+        Instant start = Instant.now();
+        timer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                buf.wakeUp();
+            }
+        }, 200);
+        assertArrayEquals(new Object[] {}, drain(10, 100, Duration.ofSeconds(5)));
+        assertTrue(start.plusMillis(150).isBefore(Instant.now()));
+        assertTrue(start.plusMillis(2000).isAfter(Instant.now()));
+    }
+
+    @Test
+    public void testOverflowBlock() throws Exception {
+        buf = new EsIndexRequestRingBuffer(4 * 2);
+        buf.setOverflowPolicy(OverflowPolicy.BLOCK, Duration.ofSeconds(10));
+        put(2);
+        timer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                drain(1);
+            }
+        }, 200);
+        Instant start = Instant.now();
+        assertTrue(buf.put("e2".getBytes(utf8)));
+        assertTrue(start.plusMillis(150).isBefore(Instant.now()));
+        assertArrayEquals(new Object[] { "e1", "e2" }, drain(10));
+    }
+
+    @Test
+    public void testOverflowBlockTimeout() throws Exception {
+        buf = new EsIndexRequestRingBuffer(4 * 2);
+        buf.setOverflowPolicy(OverflowPolicy.BLOCK, Duration.ofMillis(200));
+        put(2);
+        Instant start = Instant.now();
+        assertFalse(buf.put("e2".getBytes(utf8)));
+        assertTrue(start.plusMillis(150).isBefore(Instant.now()));
+        assertArrayEquals(new Object[] { "e0", "e1" }, drain(10));
+    }
+
+    @Test
+    public void testOverflowDropOldest() throws Exception {
+        buf = new EsIndexRequestRingBuffer(4 * 4);
+        buf.setOverflowPolicy(OverflowPolicy.DROP_OLDEST, null);
+        AtomicInteger evicted = new AtomicInteger();
+        buf.setEvictionListener(evicted::addAndGet);
+        put(4);
+        put(1);
+        assertEquals(1, evicted.get());
+        assertEquals(4, buf.availableElements());
+        assertArrayEquals(new Object[] { "e1", "e2", "e3", "e4" }, drain(10));
+    }
+
+    @Test
+    public void testOverflowDropOldestKeepsDrainedBatch() throws Exception {
+        buf = new EsIndexRequestRingBuffer(4 * 4);
+        buf.setOverflowPolicy(OverflowPolicy.DROP_OLDEST, null);
+        put(4);
+        EsIndexRequestBatch batch = buf.drainBatch(1, -1, Duration.ZERO);
+        put(1);
+        assertArrayEquals(new Object[] { "e0" }, toStrings(batch));
+        buf.release(batch);
+        assertEquals(3, buf.availableElements());
+        assertArrayEquals(new Object[] { "e2", "e3", "e4" }, drain(10));
+        assertEquals(0, buf.available());
+    }
+
+    @Test
+    public void testOverflowDropLowestLevel() throws Exception {
+        buf = new EsIndexRequestRingBuffer(4 * 5);
+        buf.setOverflowPolicy(OverflowPolicy.DROP_LOWEST_LEVEL, null);
+        AtomicInteger evicted = new AtomicInteger();
+        buf.setEvictionListener(evicted::addAndGet);
+        put(2, "d0");
+        put(5, "e0");
+        put(2, "d1");
+        put(4, "w0");
+        put(3, "i0");
+
+        // the oldest element with the lowest level is evicted
+        assertTrue(put(4, "w1"));
+        // elements with a higher level are not evicted
+        assertFalse(put(1, "t0"));
+        assertTrue(put(5, "e1"));
+        assertEquals(2, evicted.get());
+        assertArrayEquals(new Object[] { "e0", "w0", "i0", "w1", "e1" }, drain(10));
+    }
+
+    @Test
+    public void testOverflowDropLowestLevelWrapAround() throws Exception {
+        buf = new EsIndexRequestRingBuffer(4 * 5);
+        buf.setOverflowPolicy(OverflowPolicy.DROP_LOWEST_LEVEL, null);
+        put(3);
+        drain(3);
+        put(5, "e0");
+        put(2, "d0");
+        put(5, "e1");
+        EsIndexRequestBatch batch = buf.drainBatch(1, -1, Duration.ZERO);
+        put(2, "d1");
+        put(5, "e2");
+
+        // evicts d0, moving e1, d1 and e2 across the end of the buffer
+        assertTrue(put(3, "i0"));
+        assertArrayEquals(new Object[] { "e0" }, toStrings(batch));
+        buf.release(batch);
+        assertArrayEquals(new Object[] { "e1", "d1", "e2", "i0" }, drain(10));
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        buf = new EsIndexRequestRingBuffer(8192);
+        buf.setCompactionBlockSize(512);
+        List<String> elements = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String element = "{\"time\":" + (1000 + i) + ",\"logger\":\"com.example.Foo\",\"message\":\"Request " + i
+                    + " handled\",\"level\":\"INFO\"}";
+            elements.add(element);
+            put(element);
+        }
+        int uncompressed = buf.available();
+        while (buf.compact())
+            ;
+        assertFalse(buf.awaitCompactable(Duration.ZERO));
+        assertEquals(50, buf.availableElements());
+        assertTrue("compressed to " + buf.available(), buf.available() * 3 < uncompressed);
+
+        // blocks are drained as a whole
+        EsIndexRequestBatch batch = buf.drainBatch(1, -1, Duration.ZERO);
+        assertTrue(batch.size() > 1);
+        String[] first = toStrings(batch);
+        assertEquals(batch.size(), first.length);
+        assertArrayEquals(first, toStrings(batch));
+        buf.release(batch);
+        List<String> drained = new ArrayList<>();
+        drained.addAll(Arrays.asList(first));
+        drained.addAll(Arrays.asList(drain(100)));
+        assertEquals(elements, drained);
+        assertEquals(0, buf.available());
+    }
+
+    @Test
+    public void testCompactWrapAround() throws Exception {
+        buf = new EsIndexRequestRingBuffer(320);
+        buf.setCompactionBlockSize(100);
+        // move the write position towards the end of the buffer
+        put(40);
+        drain(40);
+        put(2);
+        EsIndexRequestBatch batch = buf.drainBatch(2, -1, Duration.ZERO);
+        // the records of the second block wrap around the end
+        for (int i = 0; i < 10; i++)
+            assertTrue(put(3, "aaaaaaaaaaaaaaaaaaaa" + i));
+        int uncompressed = buf.available();
+        assertTrue(buf.compact());
+        assertTrue(buf.available() < uncompressed - 100);
+        assertArrayEquals(new Object[] { "e40", "e41" }, toStrings(batch));
+        buf.release(batch);
+        for (int i = 10; i < 18; i++)
+            assertTrue(put(3, "aaaaaaaaaaaaaaaaaaaa" + i));
+        while (buf.compact())
+            ;
+        String[] drained = drain(100);
+        assertEquals(18, drained.length);
+        for (int i = 0; i < 18; i++)
+            assertEquals("aaaaaaaaaaaaaaaaaaaa" + i, drained[i]);
+    }
+
+    @Test
+    public void testCompactEvictsBlocks() throws Exception {
+        buf = new EsIndexRequestRingBuffer(1000);
+        buf.setCompactionBlockSize(200);
+        buf.setOverflowPolicy(OverflowPolicy.DROP_LOWEST_LEVEL, null);
+        AtomicInteger evicted = new AtomicInteger();
+        buf.setEvictionListener(evicted::addAndGet);
+        int count = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(put(i % 100 == 0 ? 5 : 3, "Some message of the level INFO " + i));
+            count++;
+            buf.compact();
+        }
+        // error elements are never evicted
+        assertFalse(put(4, new String(new byte[900])));
+        assertTrue(evicted.get() > 0);
+        String[] drained = drain(2000);
+        assertEquals(count - evicted.get(), drained.length);
+        assertEquals("Some message of the level INFO 999", drained[drained.length - 1]);
+    }
+
+    @Test
+    public void testCompactionBuffersMoreEvents() throws Exception {
+        EsLogRecordWriter writer = new EsLogRecordWriter(null);
+        Random r = new Random(1);
+        int[] counts = new int[2];
+        for (int compaction = 0; compaction < 2; compaction++) {
+            buf = new EsIndexRequestRingBuffer(64 * 1024);
+            if (compaction == 1)
+                buf.setCompactionBlockSize(4096);
+            while (true) {
+                EsLogRecord record = new EsLogRecord();
+                record.time = 1500000000000L + counts[compaction] * 7;
+                record.thread = "http-nio-8080-exec-" + r.nextInt(10);
+                record.logger = "com.example.service.OrderService" + r.nextInt(5);
+                record.level = r.nextInt(10) == 0 ? "WARN" : "INFO";
+                record.message = "Processed order " + r.nextInt(100000) + " for customer " + r.nextInt(1000) + " in "
+                        + r.nextInt(500) + "ms";
+                writer.reset();
+                writer.writeRecord(record);
+                if (!buf.put(EsIndexRequestBuffer.DEFAULT_LEVEL, writer.array(), 0, writer.length())) {
+                    if (!buf.compact())
+                        break;
+                    continue;
+                }
+                counts[compaction]++;
+            }
+        }
+        assertTrue("buffered " + counts[0] + " events without and " + counts[1] + " with compaction",
+                counts[1] > 5 * counts[0]);
+    }
+
+    private boolean put(int level, String element) {
+        return buf.put(level, element.getBytes(utf8));
+    }
+
+    private String[] toStrings(EsIndexRequestBatch batch) {
+        List<String> result = new ArrayList<>();
+        batch.forEach(element -> result.add(element.toString(0, element.length(), utf8)));
+        return result.toArray(new String[] {});
+    }
+
     private String[] drain(int maxCount) {
         return drain(maxCount, -1, Duration.ZERO);
     }
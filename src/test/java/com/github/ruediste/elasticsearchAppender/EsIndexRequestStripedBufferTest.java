@@ -0,0 +1,170 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EsIndexRequestStripedBufferTest {
+
+    Timer timer;
+    EsIndexRequestStripedBuffer buf;
+
+    Charset utf8 = Charset.forName("UTF-8");
+
+    @Before
+    public void setUp() throws Exception {
+        timer = new Timer(true);
+        buf = new EsIndexRequestStripedBuffer(400, 4);
+    }
+
+    @Test
+    public void testPutTake() {
+        put("foo");
+        assertEquals(400, buf.capacity());
+        assertEquals(1, buf.availableElements());
+        assertEquals(5, buf.available());
+        assertArrayEquals(new Object[] { "foo" }, drain(10, -1, Duration.ZERO));
+        assertEquals(0, buf.availableElements());
+        assertEquals(0, buf.available());
+    }
+
+    @Test
+    public void testTakePut() {
+        Instant start = Instant.now();
+        timer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                put("foo");
+            }
+        }, 500);
+        assertArrayEquals(new Object[] { "foo" }, drain(10, 100, Duration.ofSeconds(1)));
+        assertTrue(start.plusMillis(400).isBefore(Instant.now()));
+    }
+
+    @Test
+    public void testTakeTimeout() {
+        Instant start = Instant.now();
+        assertArrayEquals(new Object[] {}, drain(10, 100, Duration.ofMillis(200)));
+        assertTrue(start.plusMillis(150).isBefore(Instant.now()));
+    }
+
+    @Test
+    public void testDrainAcrossStripes() throws Exception {
+        // one thread per stripe
+        for (int t = 0; t < 8; t++) {
+            String element = "e" + t;
+            Thread thread = new Thread(() -> put(element));
+            thread.start();
+            thread.join();
+        }
+        assertEquals(8, buf.availableElements());
+        assertEquals(8 * 4, buf.available());
+        assertEquals(8 * 4 / 400., buf.usedCapacityFraction(), 1e-9);
+
+        EsIndexRequestBatch batch = buf.drainBatch(5, -1, Duration.ZERO);
+        assertEquals(5, batch.size());
+        assertEquals(10, batch.elementBytes());
+        assertEquals(8, buf.availableElements());
+        buf.release(batch);
+        assertEquals(3, buf.availableElements());
+        assertEquals(3, drain(10, -1, Duration.ZERO).length);
+        assertEquals(0, buf.available());
+    }
+
+    @Test
+    public void testEmptyDrainAllocatesNoBatch() {
+        assertSame(EsIndexRequestBatch.EMPTY, buf.drainBatch(10, -1, Duration.ZERO));
+        assertSame(EsIndexRequestBatch.EMPTY, buf.drainBatch(10, -1, Duration.ofMillis(10)));
+    }
+
+    @Test(timeout = 10000)
+    public void testAwaitElementsAcrossStripes() throws Exception {
+        Instant start = Instant.now();
+        // one thread per element, spread over the stripes, none of which
+        // reaches the awaited count on its own
+        for (int t = 0; t < 8; t++) {
+            String element = "e" + t;
+            timer.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    Thread thread = new Thread(() -> put(element));
+                    thread.start();
+                }
+            }, 100 + 50 * t);
+        }
+        assertTrue(buf.awaitElements(8, Integer.MAX_VALUE, Duration.ofSeconds(5)));
+        assertTrue(start.plusSeconds(4).isAfter(Instant.now()));
+        assertEquals(8, buf.availableElements());
+    }
+
+    @Test
+    public void testDrainMaxSizeAcrossStripes() throws Exception {
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> put("0123456789"));
+            thread.start();
+            thread.join();
+        }
+        // the size limit is only ignored for the first element
+        assertEquals(1, drain(10, 5, Duration.ZERO).length);
+        assertEquals(2, drain(10, 25, Duration.ZERO).length);
+        assertEquals(1, drain(10, -1, Duration.ZERO).length);
+    }
+
+    @Test
+    public void testConcurrentPutKeepsThreadOrder() throws Exception {
+        int threadCount = 8;
+        int perThread = 100000;
+        buf = new EsIndexRequestStripedBuffer(64 * 1024, 4);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            int threadNr = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    byte[] element = ByteBuffer.allocate(8).putInt(threadNr).putInt(i).array();
+                    while (!buf.put(element))
+                        Thread.yield();
+                }
+            });
+            threads[t].start();
+        }
+
+        int[] next = new int[threadCount];
+        int received = 0;
+        while (received < threadCount * perThread) {
+            for (byte[] element : buf.drain(100, -1, Duration.ofSeconds(1))) {
+                ByteBuffer bb = ByteBuffer.wrap(element);
+                int threadNr = bb.getInt();
+                assertEquals(next[threadNr]++, bb.getInt());
+                received++;
+            }
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, buf.availableElements());
+        assertEquals(0, buf.available());
+    }
+
+    private String[] drain(int maxCount, int maxSize, Duration maxWait) {
+        List<byte[]> drain = buf.drain(maxCount, maxSize, maxWait);
+        return drain.stream().map(x -> new String(x, utf8)).collect(toList()).toArray(new String[] {});
+    }
+
+    private boolean put(String element) {
+        return buf.put(element.getBytes(utf8));
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EsIndexTypeDictionaryTest {
+
+    @Test
+    public void testIds() {
+        EsIndexTypeDictionary dictionary = new EsIndexTypeDictionary();
+        int id = dictionary.id("logs-1", "log");
+        assertNotEquals(EsIndexTypeDictionary.INLINE_ID, id);
+        assertEquals(id, dictionary.id(new String("logs-1"), "log"));
+        int other = dictionary.id("logs-1", "audit");
+        assertNotEquals(id, other);
+        assertNotEquals(other, dictionary.id("logs-2", "audit"));
+        assertEquals(3, dictionary.size());
+
+        assertEquals("logs-1", dictionary.get(other).index);
+        assertEquals("audit", dictionary.get(other).type);
+    }
+
+    @Test
+    public void testGrowing() {
+        EsIndexTypeDictionary dictionary = new EsIndexTypeDictionary();
+        for (int i = 0; i < 100; i++) {
+            int id = dictionary.id("logs-" + i, "log");
+            assertEquals("logs-" + i, dictionary.get(id).index);
+        }
+        assertEquals("logs-3", dictionary.get(dictionary.id("logs-3", "log")).index);
+    }
+
+    @Test
+    public void testMaxSize() {
+        EsIndexTypeDictionary dictionary = new EsIndexTypeDictionary(2);
+        int id = dictionary.id("a", "t");
+        dictionary.id("b", "t");
+        assertEquals(EsIndexTypeDictionary.INLINE_ID, dictionary.id("c", "t"));
+        assertEquals(id, dictionary.id("a", "t"));
+    }
+
+    @Test(timeout = 10000)
+    public void testFullWithoutLocking() throws Exception {
+        EsIndexTypeDictionary dictionary = new EsIndexTypeDictionary(1);
+        dictionary.id("a", "t");
+        assertEquals(EsIndexTypeDictionary.INLINE_ID, dictionary.id("b", "t"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            synchronized (dictionary) {
+                // unknown pairs of a full dictionary do not wait for the lock
+                assertEquals(EsIndexTypeDictionary.INLINE_ID,
+                        (int) executor.submit(() -> dictionary.id("c", "t")).get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, dictionary.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownId() {
+        new EsIndexTypeDictionary().get(1);
+    }
+}
@@ -4,7 +4,6 @@ import static org.mockito.Mockito.mock;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
@@ -24,8 +23,8 @@ public class EsIndexerPerfTest {
         expectedCount = 1000000;
         EsIndexer indexer = new EsIndexer("test", new EsIndexerLoggerConsole()) {
             @Override
-            protected void processElements(List<byte[]> elements) {
-                processed += elements.size();
+            protected int processElements(EsIndexRequestBatch batch) {
+                processed += batch.size();
                 if (processed >= expectedCount)
                     allProcessed.countDown();
                 try {
@@ -33,6 +32,7 @@ public class EsIndexerPerfTest {
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
+                return 0;
             }
         };
         indexer.jestClient = mock(JestClient.class);
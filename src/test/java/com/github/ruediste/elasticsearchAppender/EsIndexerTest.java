@@ -1,14 +1,30 @@
 package com.github.ruediste.elasticsearchAppender;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.http.HttpEntity;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpServer;
+
 public class EsIndexerTest {
 
     EsIndexer indexer;
@@ -19,8 +35,9 @@ public class EsIndexerTest {
         processedRequests = new ArrayList<>();
         indexer = new EsIndexer("test", new EsIndexerLoggerConsole()) {
             @Override
-            protected void processElements(List<byte[]> elements) {
-                elements.forEach(bb -> processedRequests.add(toIndexRequest(bb)));
+            protected int processElements(EsIndexRequestBatch batch) {
+                batch.forEach(element -> processedRequests.add(toIndexRequest(element)));
+                return 0;
             }
         };
         indexer.start();
@@ -33,8 +50,12 @@ public class EsIndexerTest {
 
     @Test
     public void testIndexRequestPassing() {
+        // use an indexer without indexing thread, which would drain the buffer
+        EsIndexer indexer = new EsIndexer("test", new EsIndexerLoggerConsole());
+        indexer.createBuffer();
+        indexer.started = true;
         indexer.queue("foo", "bar", "fooBar");
-        byte[] bb = indexer.buffer.drain(100, -1, null).get(0);
+        byte[] bb = indexer.buffer.drain(100, -1, Duration.ZERO).get(0);
 
         EsIndexRequest req = indexer.toIndexRequest(bb);
         assertEquals("foo", req.index);
@@ -42,6 +63,25 @@ public class EsIndexerTest {
         assertEquals("fooBar", req.payload);
     }
 
+    @Test
+    public void testSuppressedCount() throws Exception {
+        indexer.stop();
+        indexer.slidingWindowSlotSize = 20;
+        indexer.start();
+        indexer.countSuppressed();
+        indexer.countSuppressed();
+        assertEquals(2, indexer.getTotalEventSuppressedCount());
+        // added to the current slot
+        assertEquals(0, indexer.getEventSuppressedCount());
+        Thread.sleep(50);
+        indexer.countSuppressed();
+        assertEquals(2, indexer.getEventSuppressedCount());
+        // not lost
+        assertEquals(0, indexer.getTotalEventLostCount());
+        indexer.resetStatistics();
+        assertEquals(0, indexer.getTotalEventSuppressedCount());
+    }
+
     @Test(timeout = 3000)
     public void testStartStop() {
         indexer.stop();
@@ -56,6 +96,396 @@ public class EsIndexerTest {
         assertEquals("foo", processedRequests.get(0).index);
     }
 
+    @Test
+    public void testDeferredRendering() throws Throwable {
+        indexer.stop();
+        indexer.deferredRendering = true;
+        indexer.start();
+        EsLogRecord record = new EsLogRecord();
+        record.time = 1;
+        record.logger = "foo";
+        record.message = "hello";
+        indexer.queue("foo", "bar", record, EsAppenderHelper.level("INFO"));
+        Thread.sleep(100);
+        assertEquals(1, processedRequests.size());
+        assertEquals("bar", processedRequests.get(0).type);
+        assertEquals("{\"time\":1,\"logger\":\"foo\",\"message\":\"hello\"}", processedRequests.get(0).payload);
+    }
+
+    @Test(timeout = 10000)
+    public void testPriorityLane() throws Throwable {
+        CountDownLatch firstBulkStarted = new CountDownLatch(1);
+        CountDownLatch firstBulkBlocked = new CountDownLatch(1);
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        EsIndexer indexer = new EsIndexer("priorityTest", new EsIndexerLoggerConsole()) {
+            @Override
+            protected int processElements(EsIndexRequestBatch batch) {
+                batch.forEach(element -> processed.add(toIndexRequest(element).payload));
+                firstBulkStarted.countDown();
+                try {
+                    firstBulkBlocked.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return 0;
+            }
+        };
+        indexer.priorityCapacity = 1024;
+        indexer.maxBulkDocumentCount = 1;
+        indexer.start();
+        try {
+            indexer.queue("foo", "bar", "info1", EsAppenderHelper.level("INFO"));
+            firstBulkStarted.await();
+            indexer.queue("foo", "bar", "info2", EsAppenderHelper.level("INFO"));
+            indexer.queue("foo", "bar", "error", EsAppenderHelper.level("ERROR"));
+            // includes the element being processed
+            assertEquals(3, indexer.getQueueLength());
+            assertEquals(1, indexer.getPriorityQueueLength());
+            firstBulkBlocked.countDown();
+            while (indexer.getQueueLength() > 0)
+                Thread.sleep(10);
+            Thread.sleep(10);
+            assertEquals(Arrays.asList("info1", "error", "info2"), processed);
+            assertEquals(3, indexer.getTotalEventIndexedCount());
+            assertEquals(1, indexer.getTotalPriorityEventIndexedCount());
+        } finally {
+            firstBulkBlocked.countDown();
+            indexer.stop();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testLinger() throws Throwable {
+        List<Integer> bulkSizes = Collections.synchronizedList(new ArrayList<>());
+        EsIndexer indexer = new EsIndexer("lingerTest", new EsIndexerLoggerConsole()) {
+            @Override
+            protected int processElements(EsIndexRequestBatch batch) {
+                bulkSizes.add(batch.size());
+                return 0;
+            }
+        };
+        indexer.minBulkDocumentCount = 3;
+        indexer.lingerTime = Duration.ofSeconds(5);
+        indexer.start();
+        try {
+            indexer.queue("foo", "bar", "1");
+            indexer.queue("foo", "bar", "2");
+            Thread.sleep(200);
+            assertEquals(Collections.emptyList(), bulkSizes);
+            indexer.queue("foo", "bar", "3");
+            while (indexer.getQueueLength() > 0)
+                Thread.sleep(10);
+            Thread.sleep(10);
+            assertEquals(Arrays.asList(3), bulkSizes);
+
+            // stopping sends the lingering documents
+            indexer.queue("foo", "bar", "4");
+            Thread.sleep(100);
+        } finally {
+            indexer.stop();
+        }
+        assertEquals(Arrays.asList(3, 1), bulkSizes);
+    }
+
+    @Test(timeout = 10000)
+    public void testIndexingConcurrency() throws Throwable {
+        CountDownLatch bulksStarted = new CountDownLatch(3);
+        CountDownLatch firstBulkBlocked = new CountDownLatch(1);
+        List<String> completed = Collections.synchronizedList(new ArrayList<>());
+        EsIndexer indexer = new EsIndexer("concurrencyTest", new EsIndexerLoggerConsole()) {
+            @Override
+            protected int processElements(EsIndexRequestBatch batch) {
+                List<String> payloads = new ArrayList<>();
+                batch.forEach(element -> payloads.add(toIndexRequest(element).payload));
+                bulksStarted.countDown();
+                if (payloads.contains("1")) {
+                    try {
+                        firstBulkBlocked.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                completed.addAll(payloads);
+                return 0;
+            }
+        };
+        indexer.indexingConcurrency = 3;
+        indexer.maxBulkDocumentCount = 1;
+        indexer.start();
+        try {
+            indexer.queue("foo", "bar", "1");
+            indexer.queue("foo", "bar", "2");
+            indexer.queue("foo", "bar", "3");
+            bulksStarted.await();
+            while (completed.size() < 2)
+                Thread.sleep(10);
+            Thread.sleep(10);
+            // the completed bulks are held back by the first bulk
+            assertEquals(3, indexer.getQueueLength());
+            assertEquals(2, indexer.getTotalEventIndexedCount());
+
+            firstBulkBlocked.countDown();
+            while (indexer.getQueueLength() > 0)
+                Thread.sleep(10);
+            assertEquals(3, indexer.getTotalEventIndexedCount());
+
+            // stopping waits for the bulks in flight
+            for (int i = 4; i <= 10; i++)
+                indexer.queue("foo", "bar", String.valueOf(i));
+        } finally {
+            firstBulkBlocked.countDown();
+            indexer.stop();
+        }
+        assertEquals(10, completed.size());
+        assertEquals(10, indexer.getTotalEventIndexedCount());
+        assertEquals(0, indexer.getQueueLength());
+    }
+
+    @Test(timeout = 10000)
+    public void testStreamingBulk() throws Throwable {
+        Charset utf8 = Charset.forName("UTF-8");
+        List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/_bulk", exchange -> {
+            String body = new String(ByteStreams.toByteArray(exchange.getRequestBody()), utf8);
+            bodies.add(body);
+            String status = body.contains("fail") ? "400,\"error\":\"failed\"" : "201";
+            byte[] response = ("{\"took\":1,\"errors\":" + body.contains("fail")
+                    + ",\"items\":[{\"index\":{\"_index\":\"foo\",\"_type\":\"bar\",\"status\":" + status
+                    + "}}]}").getBytes(utf8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        server.start();
+        EsIndexer indexer = new EsIndexer("streamingTest", new EsIndexerLoggerConsole());
+        indexer.esUrl = "http://localhost:" + server.getAddress().getPort() + "/";
+        indexer.start();
+        try {
+            indexer.queue("foo", "bar", "{\"message\":\"hello\"}");
+            while (indexer.getTotalEventIndexedCount() < 1)
+                Thread.sleep(10);
+            indexer.queue("foo", "bar", "{\"message\":\"fail\"}");
+            while (indexer.getTotalEventIndexingFailedCount() < 1)
+                Thread.sleep(10);
+        } finally {
+            indexer.stop();
+            server.stop(0);
+        }
+        assertEquals(Arrays.asList("{\"index\":{\"_index\":\"foo\",\"_type\":\"bar\"}}\n{\"message\":\"hello\"}\n",
+                "{\"index\":{\"_index\":\"foo\",\"_type\":\"bar\"}}\n{\"message\":\"fail\"}\n"), bodies);
+        assertEquals(1, indexer.getTotalEventIndexedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testRenderingAhead() throws Throwable {
+        Charset utf8 = Charset.forName("UTF-8");
+        StringBuilder bodies = new StringBuilder();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/_bulk", exchange -> {
+            synchronized (bodies) {
+                bodies.append(new String(ByteStreams.toByteArray(exchange.getRequestBody()), utf8));
+            }
+            byte[] response = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes(utf8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        server.start();
+        EsIndexer indexer = new EsIndexer("renderingTest", new EsIndexerLoggerConsole());
+        indexer.esUrl = "http://localhost:" + server.getAddress().getPort();
+        indexer.deferredRendering = true;
+        indexer.renderingConcurrency = 2;
+        indexer.maxBulkDocumentCount = 40;
+        indexer.start();
+        StringBuilder expected = new StringBuilder();
+        try {
+            for (int i = 0; i < 200; i++) {
+                EsLogRecord record = new EsLogRecord();
+                record.time = i;
+                record.logger = "foo";
+                record.message = "message " + i;
+                indexer.queue("foo", "bar", record, EsAppenderHelper.level("INFO"));
+                expected.append("{\"index\":{\"_index\":\"foo\",\"_type\":\"bar\"}}\n{\"time\":" + i
+                        + ",\"logger\":\"foo\",\"message\":\"message " + i + "\"}\n");
+            }
+            while (indexer.getTotalEventIndexedCount() < 200)
+                Thread.sleep(10);
+        } finally {
+            indexer.stop();
+            server.stop(0);
+        }
+        // a single worker sends the bulks in order
+        assertEquals(expected.toString(), bodies.toString());
+    }
+
+    @Test(timeout = 10000)
+    public void testCompression() throws Throwable {
+        Charset utf8 = Charset.forName("UTF-8");
+        List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/_bulk", exchange -> {
+            bodies.add(exchange.getRequestHeaders().getFirst("Content-Encoding") + ":" + new String(
+                    ByteStreams.toByteArray(new GZIPInputStream(exchange.getRequestBody())), utf8));
+            byte[] response = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes(utf8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        server.start();
+        EsIndexer indexer = new EsIndexer("compressionTest", new EsIndexerLoggerConsole());
+        indexer.esUrl = "http://localhost:" + server.getAddress().getPort();
+        indexer.compression = EsIndexer.Compression.GZIP;
+        indexer.start();
+        try {
+            indexer.queue("foo", "bar", "{\"message\":\"hello\"}");
+            while (indexer.getTotalEventIndexedCount() < 1)
+                Thread.sleep(10);
+            indexer.queue("foo", "bar", "{\"message\":\"again\"}");
+            while (indexer.getTotalEventIndexedCount() < 2)
+                Thread.sleep(10);
+        } finally {
+            indexer.stop();
+            server.stop(0);
+        }
+        assertEquals(Arrays.asList("gzip:{\"index\":{\"_index\":\"foo\",\"_type\":\"bar\"}}\n{\"message\":\"hello\"}\n",
+                "gzip:{\"index\":{\"_index\":\"foo\",\"_type\":\"bar\"}}\n{\"message\":\"again\"}\n"), bodies);
+        assertEquals(bodies.get(0).length() + bodies.get(1).length() - 2 * "gzip:".length(),
+                indexer.getTotalUncompressedBulkBytes());
+        assertTrue(indexer.getTotalCompressedBulkBytes() > 0);
+    }
+
+    @Test(timeout = 10000)
+    public void testBufferCompression() throws Throwable {
+        CountDownLatch firstBulkStarted = new CountDownLatch(1);
+        CountDownLatch firstBulkBlocked = new CountDownLatch(1);
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        EsIndexer indexer = new EsIndexer("bufferCompressionTest", new EsIndexerLoggerConsole()) {
+            @Override
+            protected int processElements(EsIndexRequestBatch batch) {
+                firstBulkStarted.countDown();
+                try {
+                    firstBulkBlocked.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                batch.forEach(element -> processed.add(toIndexRequest(element).payload));
+                return 0;
+            }
+        };
+        indexer.capacity = 64 * 1024;
+        indexer.maxBulkDocumentCount = 1;
+        indexer.bufferCompression = true;
+        indexer.start();
+        int count = 2000;
+        try {
+            indexer.queue("foo", "bar", "{\"message\":\"first\"}");
+            firstBulkStarted.await();
+            // more events than the buffer holds uncompressed, waiting for the
+            // compression to keep up
+            EsIndexRequestRingBuffer buffer = (EsIndexRequestRingBuffer) indexer.buffer;
+            for (int i = 0; i < count; i++) {
+                indexer.queue("foo", "bar", "{\"logger\":\"com.example.Foo\",\"message\":\"Request " + i + " handled\"}");
+                while (buffer.awaitCompactable(Duration.ZERO))
+                    Thread.sleep(1);
+            }
+            assertEquals(0, indexer.getTotalEventDiscardedCount());
+            // including the first event, which is in flight
+            assertEquals(count + 1, indexer.getQueueLength());
+            assertTrue(indexer.buffer.available() < indexer.capacity / 2);
+        } finally {
+            firstBulkBlocked.countDown();
+            indexer.stop();
+        }
+        assertEquals(count + 1, processed.size());
+        for (int i = 0; i < count; i++)
+            assertEquals("{\"logger\":\"com.example.Foo\",\"message\":\"Request " + i + " handled\"}",
+                    processed.get(i + 1));
+    }
+
+    @Test(timeout = 10000)
+    public void testBuiltInTransport() throws Throwable {
+        Charset utf8 = Charset.forName("UTF-8");
+        List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/_bulk", exchange -> {
+            String body = new String(ByteStreams.toByteArray(exchange.getRequestBody()), utf8);
+            bodies.add(exchange.getRequestHeaders().getFirst("Transfer-Encoding") + ":" + body);
+            String status = body.contains("fail") ? "400,\"error\":{\"type\":\"failed\"}" : "201";
+            byte[] response = ("{\"took\":1,\"errors\":" + body.contains("fail")
+                    + ",\"items\":[{\"index\":{\"_index\":\"foo\",\"_type\":\"bar\",\"status\":" + status
+                    + "}}]}").getBytes(utf8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        server.start();
+        EsIndexer indexer = new EsIndexer("builtInTransportTest", new EsIndexerLoggerConsole());
+        indexer.esUrl = "http://localhost:" + server.getAddress().getPort();
+        indexer.builtInTransport = true;
+        indexer.start();
+        try {
+            indexer.queue("foo", "bar", "{\"message\":\"hello\"}");
+            while (indexer.getTotalEventIndexedCount() < 1)
+                Thread.sleep(10);
+            indexer.queue("foo", "bar", "{\"message\":\"fail\"}");
+            while (indexer.getTotalEventIndexingFailedCount() < 1)
+                Thread.sleep(10);
+        } finally {
+            indexer.stop();
+            server.stop(0);
+        }
+        assertEquals(Arrays.asList(
+                "chunked:{\"index\":{\"_index\":\"foo\",\"_type\":\"bar\"}}\n{\"message\":\"hello\"}\n",
+                "chunked:{\"index\":{\"_index\":\"foo\",\"_type\":\"bar\"}}\n{\"message\":\"fail\"}\n"), bodies);
+        assertEquals(1, indexer.getTotalEventIndexedCount());
+        assertNull(indexer.jestClient);
+    }
+
+    @Test(timeout = 10000)
+    public void testFlushWhileIndexingFails() throws Throwable {
+        File file = File.createTempFile("esIndexerFlushTest", ".dat");
+        file.delete();
+        AtomicInteger flushes = new AtomicInteger();
+        AtomicInteger attempts = new AtomicInteger();
+        EsIndexer indexer = new EsIndexer("flushTest", new EsIndexerLoggerConsole()) {
+            @Override
+            void flushStorages() {
+                super.flushStorages();
+                flushes.incrementAndGet();
+            }
+        };
+        indexer.bufferStorage = EsIndexer.BufferStorageType.MAPPED;
+        indexer.bufferFile = file.getPath();
+        indexer.bufferFlushInterval = Duration.ofMillis(20);
+        indexer.failurePause = Duration.ofMillis(200);
+        indexer.bulkTransport = new EsBulkTransport() {
+            @Override
+            public EsBulkResponse execute(HttpEntity body) throws IOException {
+                attempts.incrementAndGet();
+                // Elasticsearch is down until the buffer was flushed
+                if (flushes.get() < 3)
+                    throw new IOException("connection refused");
+                return EsBulkResponse.SUCCEEDED;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        indexer.start();
+        try {
+            indexer.queue("foo", "bar", "{\"message\":\"hello\"}");
+            while (indexer.getTotalEventIndexedCount() < 1)
+                Thread.sleep(10);
+        } finally {
+            indexer.stop();
+            file.delete();
+        }
+        // the indexing thread was retrying while the buffer got flushed
+        assertTrue(attempts.get() > 1);
+    }
+
     @Test
     public void testParseMemorySizeValue() throws Exception {
         assertEquals(100, EsIndexer.parseMemorySizeValue("100"));
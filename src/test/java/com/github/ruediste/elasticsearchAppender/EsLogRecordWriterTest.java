@@ -0,0 +1,237 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+
+public class EsLogRecordWriterTest {
+
+    Charset utf8 = Charset.forName("UTF-8");
+    Gson gson = new Gson();
+    EsLogRecordWriter writer;
+    EsLogRecord record;
+
+    @Before
+    public void setUp() {
+        writer = new EsLogRecordWriter(gson);
+        record = new EsLogRecord();
+        record.time = 1234567890123L;
+        record.timeAdjustment = -3L;
+        record.thread = "main";
+        record.logger = "com.example.Foo";
+        record.message = "quote \" backslash \\ newline \n tab \t control \u0001 umlaut ä euro € clef 𝄞";
+        record.level = "INFO";
+        record.mdc = new HashMap<>();
+        record.mdc.put("user", "alice");
+        record.ndc = Arrays.asList("a", "b");
+        record.tags = new LinkedHashSet<>(Arrays.asList("t1", "t2"));
+        record.labels = new LinkedHashMap<>();
+        record.labels.put("env", "prod");
+    }
+
+    @Test
+    public void testMatchesGson() {
+        record.exceptionClass = "java.lang.RuntimeException";
+        record.exceptionMessage = "<boom>";
+        record.stackTrace = "at Foo.bar(Foo.java:1)\n\tat  ";
+        record.stackTraceHash = "1f3a";
+        record.count = 3;
+        record.firstTime = 10L;
+        record.lastTime = 20L;
+        record.ext = new LinkedHashMap<>();
+        record.ext.put("count", 3);
+        record.ext.put("ratio", 0.5);
+        record.ext.put("flag", true);
+        record.ext.put("missing", null);
+        record.ext.put("list", Arrays.asList(1L, "x", null));
+        record.ext.put("nested", new HashMap<>(record.labels));
+        writer.writeRecord(record);
+        assertSameJson(gson.toJson(record), new String(writer.toByteArray(), utf8));
+    }
+
+    @Test
+    public void testStaticFields() {
+        EsAppenderHelper helper = new EsAppenderHelper();
+        helper.tags = "t1,t\"2";
+        helper.labels = "env=prod,dc=zürich";
+        helper.start();
+        EsLogRecord record = new EsLogRecord();
+        record.message = "foo";
+        helper.prepareLogRecord(record, 1000);
+        assertTrue(record.staticFields != null);
+        writer.writeRecord(record);
+        String json = new String(writer.toByteArray(), utf8);
+        assertSameJson(gson.toJson(record), json);
+        assertTrue(json,
+                json.contains("\"tags\":[\"t1\",\"t\\\"2\"],\"labels\":{\"env\":\"prod\",\"dc\":\"zürich\"}"));
+    }
+
+    @Test
+    public void testNoStaticFields() {
+        EsAppenderHelper helper = new EsAppenderHelper();
+        helper.start();
+        EsLogRecord record = new EsLogRecord();
+        helper.prepareLogRecord(record, 1000);
+        assertEquals(null, record.staticFields);
+        writer.writeRecord(record);
+        assertSameJson(gson.toJson(record), new String(writer.toByteArray(), utf8));
+    }
+
+    @Test
+    public void testNullFieldsOmitted() {
+        EsLogRecord record = new EsLogRecord();
+        writer.writeRecord(record);
+        assertEquals("{\"time\":0}", new String(writer.toByteArray(), utf8));
+    }
+
+    @Test
+    public void testMinValue() {
+        record = new EsLogRecord();
+        record.time = Long.MIN_VALUE;
+        writer.writeRecord(record);
+        assertEquals("{\"time\":-9223372036854775808}", new String(writer.toByteArray(), utf8));
+    }
+
+    @Test
+    public void testUnpairedSurrogate() {
+        writer.writeString("a\ud834b");
+        assertEquals("\"a?b\"", new String(writer.toByteArray(), utf8));
+    }
+
+    @Test
+    public void testElementHeader() {
+        writer.writeElementHeader("logstash-2017.01.01", "tä");
+        writer.writeRecord(record);
+        EsIndexRequest request = new EsIndexer().toIndexRequest(writer.toByteArray());
+        assertEquals("logstash-2017.01.01", request.index);
+        assertEquals("tä", request.type);
+        assertSameJson(gson.toJson(record), request.payload);
+    }
+
+    @Test
+    public void testReset() {
+        writer.writeString("foo");
+        writer.reset();
+        writer.writeString("bar");
+        assertEquals("\"bar\"", new String(writer.toByteArray(), utf8));
+    }
+
+    private String renderBinary(EsLogRecord record, EsStringDictionary strings) {
+        EsLogRecordWriter binaryWriter = new EsLogRecordWriter(gson);
+        binaryWriter.writeBinaryRecord(record, strings);
+        EsIndexRequestElement element = EsIndexRequestElement.of(binaryWriter.toByteArray());
+        assertTrue(EsLogRecordWriter.isBinaryRecord(element, 0));
+        writer.reset();
+        writer.renderBinaryRecord(element, 0, strings);
+        return new String(writer.toByteArray(), utf8);
+    }
+
+    private String json(EsLogRecord record) {
+        writer.reset();
+        writer.writeRecord(record);
+        return new String(writer.toByteArray(), utf8);
+    }
+
+    @Test
+    public void testBinaryRecord() {
+        EsAppenderHelper helper = new EsAppenderHelper();
+        helper.tags = "t1,t\"2";
+        helper.labels = "env=prod";
+        helper.start();
+        helper.prepareLogRecord(record, 1000);
+        record.message = record.message + " separators \u2028\u2029 unpaired \ud834 end";
+        record.exceptionClass = "java.lang.RuntimeException";
+        record.exceptionMessage = "<boom>";
+        record.stackTrace = "at Foo.bar(Foo.java:1)\n\tat  ";
+        record.stackTraceHash = "1f3a";
+        record.mdc.put("missing", null);
+        record.mdc.put("ä", "\"");
+        record.ndc = Arrays.asList("a", null);
+        record.count = 3;
+        record.firstTime = 10L;
+        record.lastTime = 20L;
+        assertTrue(EsLogRecordWriter.isBinarySupported(record));
+
+        String expected = json(record);
+        EsStringDictionary strings = new EsStringDictionary();
+        assertEquals(expected, renderBinary(record, strings));
+        // thread, logger, level, exception class and two mdc keys
+        assertEquals(6, strings.size());
+        // rendered again using the registered strings
+        assertEquals(expected, renderBinary(record, strings));
+        assertEquals(expected, renderBinary(record, null));
+    }
+
+    @Test
+    public void testBinaryRecordMessageChars() {
+        record.messageChars = new StringBuilder("from builder");
+        record.tags = null;
+        record.labels = null;
+        assertEquals(json(record), renderBinary(record, new EsStringDictionary()));
+    }
+
+    @Test
+    public void testBinaryRecordEmpty() {
+        assertEquals("{\"time\":0}", renderBinary(new EsLogRecord(), null));
+    }
+
+    @Test
+    public void testBinaryRecordFullDictionary() {
+        EsStringDictionary strings = new EsStringDictionary(1);
+        record.tags = null;
+        record.labels = null;
+        // only the thread name is registered
+        assertEquals(json(record), renderBinary(record, strings));
+        assertEquals(1, strings.size());
+    }
+
+    @Test
+    public void testBinaryNotSupported() {
+        // tags and labels without static fields
+        assertFalse(EsLogRecordWriter.isBinarySupported(record));
+        record.tags = null;
+        record.labels = null;
+        assertTrue(EsLogRecordWriter.isBinarySupported(record));
+        record.ext = new HashMap<>();
+        assertFalse(EsLogRecordWriter.isBinarySupported(record));
+    }
+
+    @Test
+    public void testAllocationPerEvent() {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            writer.reset();
+            writer.writeRecord(record);
+        }
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < count; i++) {
+            writer.reset();
+            writer.writeRecord(record);
+        }
+        long perEvent = (threadBean.getThreadAllocatedBytes(threadId) - before) / count;
+        System.out.println("Bytes allocated per event: " + perEvent);
+        // no allocation per field or character. Depending on the JIT, the
+        // iterator of the tag set is not eliminated
+        assertTrue("allocated " + perEvent + " bytes per event", perEvent <= 64);
+    }
+
+    private void assertSameJson(String expected, String actual) {
+        assertEquals(new JsonParser().parse(expected), new JsonParser().parse(actual));
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EsRateLimiterTest {
+
+    long now;
+
+    private EsRateLimiter limiter(String rules, String sampleRates) {
+        return new EsRateLimiter(rules, sampleRates, () -> now);
+    }
+
+    private int acquire(EsRateLimiter limiter, String logger, String level, int count) {
+        int result = 0;
+        for (int i = 0; i < count; i++)
+            if (limiter.tryAcquire(logger, EsAppenderHelper.level(level)))
+                result++;
+        return result;
+    }
+
+    @Test
+    public void testRate() {
+        EsRateLimiter limiter = limiter("com.foo=100/s", null);
+        // burst of one second
+        assertEquals(100, acquire(limiter, "com.foo.Bar", "INFO", 1000));
+        assertEquals(1000, acquire(limiter, "com.other.Bar", "INFO", 1000));
+
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        assertEquals(10, acquire(limiter, "com.foo.Bar", "INFO", 1000));
+        now += TimeUnit.SECONDS.toNanos(10);
+        assertEquals(100, acquire(limiter, "com.foo.Bar", "INFO", 1000));
+    }
+
+    @Test
+    public void testLongestPrefix() {
+        EsRateLimiter limiter = limiter("*=10/s,com.foo=5/s,com.foo.noisy=1/m", null);
+        assertEquals(1, acquire(limiter, "com.foo.noisy.X", "INFO", 100));
+        assertEquals(5, acquire(limiter, "com.foo.Y", "INFO", 100));
+        assertEquals(10, acquire(limiter, "org.Z", "INFO", 100));
+        // the rules are shared by all loggers with the same prefix
+        assertEquals(0, acquire(limiter, "org.W", "INFO", 100));
+    }
+
+    @Test
+    public void testLevel() {
+        EsRateLimiter limiter = limiter("com.foo:DEBUG=1/s", null);
+        assertEquals(1, acquire(limiter, "com.foo", "DEBUG", 100));
+        assertEquals(0, acquire(limiter, "com.foo", "TRACE", 100));
+        assertEquals(100, acquire(limiter, "com.foo", "INFO", 100));
+    }
+
+    @Test
+    public void testSampling() {
+        EsRateLimiter limiter = limiter(null, "DEBUG=0.1,TRACE=0");
+        int passed = acquire(limiter, "com.foo", "DEBUG", 100000);
+        assertTrue(String.valueOf(passed), passed > 9000 && passed < 11000);
+        assertEquals(0, acquire(limiter, "com.foo", "TRACE", 1000));
+        assertEquals(1000, acquire(limiter, "com.foo", "INFO", 1000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidUnit() {
+        limiter("com.foo=1/d", null);
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        EsRateLimiter limiter = limiter("com.foo=1000/s", null);
+        int[] passed = new int[4];
+        Thread[] threads = new Thread[passed.length];
+        for (int t = 0; t < threads.length; t++) {
+            int nr = t;
+            threads[t] = new Thread(() -> passed[nr] = acquire(limiter, "com.foo", "INFO", 10000));
+            threads[t].start();
+        }
+        int sum = 0;
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            sum += passed[t];
+        }
+        assertEquals(1000, sum);
+        assertFalse(limiter.tryAcquire("com.foo", 3));
+    }
+}
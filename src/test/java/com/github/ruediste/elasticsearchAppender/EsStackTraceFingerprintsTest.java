@@ -0,0 +1,122 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class EsStackTraceFingerprintsTest {
+
+    private static Throwable create(String message, int line) {
+        RuntimeException cause = new RuntimeException("cause");
+        cause.setStackTrace(new StackTraceElement[] { new StackTraceElement("a.B", "c", "B.java", 3) });
+        IllegalStateException t = new IllegalStateException(message, cause);
+        t.setStackTrace(new StackTraceElement[] { new StackTraceElement("a.D", "e", "D.java", line),
+                new StackTraceElement("a.B", "f", "B.java", 10) });
+        return t;
+    }
+
+    @Test
+    public void testFingerprint() {
+        long fingerprint = EsStackTraceFingerprints.fingerprint(create("foo", 1));
+        // messages are ignored
+        assertEquals(fingerprint, EsStackTraceFingerprints.fingerprint(create("bar", 1)));
+        assertNotEquals(fingerprint, EsStackTraceFingerprints.fingerprint(create("foo", 2)));
+        assertNotEquals(fingerprint, EsStackTraceFingerprints.fingerprint(create("foo", 1).getCause()));
+    }
+
+    @Test
+    public void testCircularCause() {
+        RuntimeException a = new RuntimeException();
+        RuntimeException b = new RuntimeException(a);
+        a.initCause(b);
+        EsStackTraceFingerprints.fingerprint(b);
+    }
+
+    @Test
+    public void testWindow() {
+        EsStackTraceFingerprints fingerprints = new EsStackTraceFingerprints(1000, 10);
+        assertTrue(fingerprints.sendFullTrace(1, 0));
+        assertFalse(fingerprints.sendFullTrace(1, 999));
+        assertTrue(fingerprints.sendFullTrace(2, 999));
+        assertTrue(fingerprints.sendFullTrace(1, 1000));
+        assertFalse(fingerprints.sendFullTrace(1, 1999));
+    }
+
+    @Test
+    public void testMaxSize() {
+        EsStackTraceFingerprints fingerprints = new EsStackTraceFingerprints(1000, 2);
+        assertTrue(fingerprints.sendFullTrace(1, 0));
+        assertTrue(fingerprints.sendFullTrace(2, 0));
+        assertFalse(fingerprints.sendFullTrace(1, 0));
+        // evicts 1, which uses the same slot
+        assertTrue(fingerprints.sendFullTrace(3, 0));
+        assertEquals(2, fingerprints.size());
+        assertFalse(fingerprints.sendFullTrace(2, 0));
+        assertTrue(fingerprints.sendFullTrace(1, 0));
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentWindowEnd() throws Exception {
+        EsStackTraceFingerprints fingerprints = new EsStackTraceFingerprints(1000, 10);
+        assertTrue(fingerprints.sendFullTrace(-5, 0));
+        // once the window ended, only one of the racing events sends the full
+        // trace
+        AtomicInteger fullTraces = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                Uninterruptibles.awaitUninterruptibly(start);
+                for (int i = 0; i < 1000; i++) {
+                    if (fingerprints.sendFullTrace(-5, 1000))
+                        fullTraces.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(1, fullTraces.get());
+    }
+
+    @Test
+    public void testHelperSetStackTrace() {
+        EsAppenderHelper helper = new EsAppenderHelper();
+        helper.stackTraceDedupWindow = Duration.ofMinutes(1);
+        helper.start();
+
+        EsLogRecord first = new EsLogRecord();
+        first.time = 1000;
+        helper.setStackTrace(first, create("foo", 1));
+        assertNotNull(first.stackTrace);
+        assertNotNull(first.stackTraceHash);
+
+        EsLogRecord repeated = new EsLogRecord();
+        repeated.time = 2000;
+        helper.setStackTrace(repeated, create("bar", 1));
+        assertNull(repeated.stackTrace);
+        assertEquals(first.stackTraceHash, repeated.stackTraceHash);
+    }
+
+    @Test
+    public void testHelperDisabled() {
+        EsAppenderHelper helper = new EsAppenderHelper();
+        helper.start();
+        EsLogRecord record = new EsLogRecord();
+        helper.setStackTrace(record, create("foo", 1));
+        assertNotNull(record.stackTrace);
+        assertNull(record.stackTraceHash);
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class EsStackTraceRendererTest {
+
+    private static final String NL = System.lineSeparator();
+
+    private static StackTraceElement[] frames(String... classNames) {
+        StackTraceElement[] result = new StackTraceElement[classNames.length];
+        for (int i = 0; i < classNames.length; i++)
+            result[i] = new StackTraceElement(classNames[i], "m" + i, classNames[i] + ".java", i + 1);
+        return result;
+    }
+
+    private static Throwable createThrowable() {
+        RuntimeException cause = new RuntimeException("cause");
+        cause.setStackTrace(frames("c.Cause", "b.Shared", "a.Main"));
+        IllegalStateException t = new IllegalStateException("outer", cause);
+        t.setStackTrace(frames("d.Outer", "b.Shared", "a.Main"));
+        Exception suppressed = new Exception();
+        suppressed.setStackTrace(frames("e.Suppressed", "a.Main"));
+        t.addSuppressed(suppressed);
+        return t;
+    }
+
+    private static String printStackTrace(Throwable t) {
+        StringWriter result = new StringWriter();
+        t.printStackTrace(new PrintWriter(result));
+        return result.toString();
+    }
+
+    @Test
+    public void testSameAsPrintStackTrace() {
+        Throwable t = createThrowable();
+        assertEquals(printStackTrace(t), new EsStackTraceRenderer(10000, true).render(t));
+    }
+
+    @Test
+    public void testCircularReference() {
+        RuntimeException a = new RuntimeException("a");
+        a.setStackTrace(frames("x.A"));
+        RuntimeException b = new RuntimeException("b", a);
+        b.setStackTrace(frames("x.B"));
+        a.initCause(b);
+        assertEquals("java.lang.RuntimeException: b" + NL + "\tat x.B.m0(x.B.java:1)" + NL
+                + "Caused by: java.lang.RuntimeException: a" + NL + "\tat x.A.m0(x.A.java:1)" + NL
+                + "Caused by: [CIRCULAR REFERENCE: java.lang.RuntimeException: b]" + NL,
+                new EsStackTraceRenderer(10000, true).render(b));
+    }
+
+    @Test
+    public void testTruncated() {
+        Throwable t = createThrowable();
+        String full = printStackTrace(t);
+        for (int maxLength = 0; maxLength < full.length() + 5; maxLength++) {
+            String expected = full.length() > maxLength ? full.substring(0, maxLength) + "..." : full;
+            assertEquals(expected, new EsStackTraceRenderer(maxLength, true).render(t));
+        }
+    }
+
+    @Test
+    public void testStopsAtMaxLength() {
+        RuntimeException cause = new RuntimeException() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public StackTraceElement[] getStackTrace() {
+                throw new AssertionError("cause should not be rendered");
+            }
+        };
+        RuntimeException t = new RuntimeException("outer", cause);
+        String result = new EsStackTraceRenderer(50, true).render(t);
+        assertEquals(53, result.length());
+        assertTrue(result.endsWith("..."));
+    }
+
+    @Test
+    public void testCommonFramesNotElided() {
+        Throwable t = createThrowable();
+        String result = new EsStackTraceRenderer(10000, false).render(t);
+        assertTrue(result.endsWith("Caused by: java.lang.RuntimeException: cause" + NL + "\tat c.Cause.m0(c.Cause.java:1)"
+                + NL + "\tat b.Shared.m1(b.Shared.java:2)" + NL + "\tat a.Main.m2(a.Main.java:3)" + NL));
+    }
+
+    @Test
+    public void testCollapsedFrames() {
+        RuntimeException t = new RuntimeException("foo");
+        t.setStackTrace(frames("app.A", "fw.X", "fw.Y", "fw.Z", "app.B", "fw.X", "fw.Y", "app.C"));
+        String result = new EsStackTraceRenderer(10000, true, "fw.").render(t);
+        assertEquals("java.lang.RuntimeException: foo" + NL + "\tat app.A.m0(app.A.java:1)" + NL
+                + "\tat fw.X.m1(fw.X.java:2)" + NL + "\t... 2 collapsed frames" + NL + "\tat app.B.m4(app.B.java:5)"
+                + NL + "\tat fw.X.m5(fw.X.java:6)" + NL + "\tat fw.Y.m6(fw.Y.java:7)" + NL
+                + "\tat app.C.m7(app.C.java:8)" + NL, result);
+    }
+}
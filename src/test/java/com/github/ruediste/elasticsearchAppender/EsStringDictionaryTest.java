@@ -0,0 +1,43 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EsStringDictionaryTest {
+
+    @Test
+    public void testIds() {
+        EsStringDictionary dictionary = new EsStringDictionary();
+        int id = dictionary.id("main");
+        assertNotEquals(EsStringDictionary.INLINE_ID, id);
+        assertEquals(id, dictionary.id(new String("main")));
+        assertNotEquals(id, dictionary.id("worker-1"));
+        assertEquals("main", dictionary.get(id).value);
+    }
+
+    @Test(timeout = 10000)
+    public void testFullWithoutLocking() throws Exception {
+        EsStringDictionary dictionary = new EsStringDictionary(1);
+        int id = dictionary.id("main");
+        assertEquals(EsStringDictionary.INLINE_ID, dictionary.id("worker-1"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            synchronized (dictionary) {
+                // unknown strings of a full dictionary do not wait for the
+                // lock
+                assertEquals(EsStringDictionary.INLINE_ID,
+                        (int) executor.submit(() -> dictionary.id("worker-2")).get(5, TimeUnit.SECONDS));
+                assertEquals(id, (int) executor.submit(() -> dictionary.id("main")).get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, dictionary.size());
+    }
+}
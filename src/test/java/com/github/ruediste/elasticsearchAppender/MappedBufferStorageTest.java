@@ -0,0 +1,120 @@
+package com.github.ruediste.elasticsearchAppender;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedBufferStorageTest {
+
+    File file;
+    MappedBufferStorage storage;
+    EsIndexRequestRingBuffer buf;
+
+    Charset utf8 = Charset.forName("UTF-8");
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("esLogBuffer", ".dat");
+        open(100);
+    }
+
+    @After
+    public void tearDown() {
+        storage.close();
+        file.delete();
+    }
+
+    @Test
+    public void testElementsRetained() throws Exception {
+        put("foo");
+        put("bar");
+        put("fooBar");
+        assertArrayEquals(new Object[] { "foo" }, drain(1));
+        reopen(100);
+        assertEquals(2, buf.availableElements());
+        assertArrayEquals(new Object[] { "bar", "fooBar" }, drain(10));
+        reopen(100);
+        assertEquals(0, buf.availableElements());
+    }
+
+    @Test
+    public void testWrapAroundRetained() throws Exception {
+        buf = new EsIndexRequestRingBuffer(storage);
+        for (int i = 0; i < 10; i++) {
+            put("0123456789" + i);
+            drain(1);
+        }
+        put("abcdefghij");
+        reopen(100);
+        assertArrayEquals(new Object[] { "abcdefghij" }, drain(10));
+    }
+
+    @Test
+    public void testUnreleasedBatchRetained() throws Exception {
+        put("foo");
+        EsIndexRequestBatch batch = buf.drainBatch(10, -1, Duration.ZERO);
+        assertEquals(1, batch.size());
+        reopen(100);
+        assertArrayEquals(new Object[] { "foo" }, drain(10));
+    }
+
+    @Test
+    public void testCapacityChangeDiscardsContents() throws Exception {
+        put("foo");
+        reopen(200);
+        assertEquals(200, buf.capacity());
+        assertEquals(0, buf.availableElements());
+        put("bar");
+        reopen(200);
+        assertArrayEquals(new Object[] { "bar" }, drain(10));
+    }
+
+    @Test
+    public void testCompressedBlocksRetained() throws Exception {
+        reopen(1000);
+        buf.setCompactionBlockSize(200);
+        for (int i = 0; i < 20; i++)
+            put("{\"message\":\"Message " + i + "\"}");
+        assertTrue(buf.compact());
+        reopen(1000);
+        assertEquals(20, buf.availableElements());
+        String[] drained = drain(100);
+        assertEquals(20, drained.length);
+        assertEquals("{\"message\":\"Message 19\"}", drained[19]);
+    }
+
+    @Test(expected = IOException.class)
+    public void testFileLocked() throws Exception {
+        MappedBufferStorage.open(file, 100);
+    }
+
+    private void open(int capacity) throws IOException {
+        storage = MappedBufferStorage.open(file, capacity);
+        buf = new EsIndexRequestRingBuffer(storage);
+    }
+
+    private void reopen(int capacity) throws IOException {
+        storage.close();
+        open(capacity);
+    }
+
+    private String[] drain(int maxCount) {
+        List<byte[]> drain = buf.drain(maxCount, -1, Duration.ZERO);
+        return drain.stream().map(x -> new String(x, utf8)).collect(toList()).toArray(new String[] {});
+    }
+
+    private void put(String element) {
+        buf.put(element.getBytes(utf8));
+    }
+}